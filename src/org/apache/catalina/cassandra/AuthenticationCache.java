@@ -0,0 +1,127 @@
+// @(#)$Id: AuthenticationCache.java,v 1.1 2014/02/17 10:21:45 morten Exp $
+package org.apache.catalina.cassandra;
+
+import java.util.*;
+
+import java.security.Principal;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <ul>
+ *   <li><b>Project:</b> TomcatCassandra</li>
+ *   <li><b>Class:</b> org.apache.catalina.cassandra.AuthenticationCache</li>
+ *   <li><b>Author:</b> morten.jorgensen@openjawtech.com</li>
+ *   <li><b>Created:</b> 17 Feb 2014 10:21:45</li>
+ *   <li><b>Description:</b>
+ *     Node-local cache of the authentication state (authentication type and
+ *     principal) of sessions. Each entry holds the authentication version
+ *     stamp that was stored in Cassandra when the entry was loaded, and an
+ *     entry is only valid while that stamp is unchanged. The cache is
+ *     bounded, and the least recently used entries are evicted first.
+ *   </li>
+ *   <li><b>Functional spec. ref.:</b> </li>
+ *   <li><b>Design spec.ref.:</b> </li>
+ * </ul>
+ */
+class AuthenticationCache {
+
+    /** Log4J logger instance for class AuthenticationCache. */
+    private final static Logger cat = Logger.getLogger(AuthenticationCache.class);
+    /** Log4J debug setting for class AuthenticationCache. */
+    private final static boolean debug = cat.isDebugEnabled();
+
+    /** Cached entries, keyed by session ID, in least recently used order. */
+    private Map<String,AuthenticationCache.Entry> entries;
+
+    /**
+     * Creates a new authentication cache.
+     * @param size Maximum number of sessions to cache.
+     */
+    AuthenticationCache(final int size) {
+        this.entries = new LinkedHashMap<String,AuthenticationCache.Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            protected boolean removeEldestEntry(Map.Entry<String,AuthenticationCache.Entry> eldest) {
+                return size() > size;
+            }
+        };
+    }
+
+    /**
+     * Obtains the cached authentication state for a session.
+     * @param sid Session ID.
+     * @return cached authentication state, or null if not cached.
+     */
+    synchronized Entry get(String sid) {
+        return this.entries.get(sid);
+    }
+
+    /**
+     * Caches the authentication state for a session.
+     * @param sid Session ID.
+     * @param entry Authentication state.
+     */
+    synchronized void put(String sid, Entry entry) {
+        this.entries.put(sid, entry);
+    }
+
+    /**
+     * Removes the cached authentication state for a session.
+     * @param sid Session ID.
+     */
+    synchronized void remove(String sid) {
+        this.entries.remove(sid);
+    }
+
+    /**
+     * Authentication state of a single session.
+     */
+    static class Entry {
+
+        /** Authentication version stamp this entry was loaded for. */
+        private String version;
+        /** Session authentication type. */
+        private String authType;
+        /** Authenticated principal. */
+        private Principal principal;
+
+        /**
+         * Creates a new authentication state entry.
+         * @param version Authentication version stamp (or null).
+         * @param authType Session authentication type.
+         * @param principal Authenticated principal.
+         */
+        Entry(String version, String authType, Principal principal) {
+            this.version = version;
+            this.authType = authType;
+            this.principal = principal;
+        }
+
+        /**
+         * Tells you if this entry was loaded for a given version stamp.
+         * @param version Authentication version stamp (or null).
+         * @return true if this entry is valid for the version stamp.
+         */
+        boolean isVersion(String version) {
+            if (this.version == null) return (version == null);
+            return this.version.equals(version);
+        }
+
+        /**
+         * Returns the session authentication type.
+         * @return the session authentication type.
+         */
+        String getAuthType() {
+            return this.authType;
+        }
+
+        /**
+         * Returns the authenticated principal.
+         * @return the authenticated principal.
+         */
+        Principal getPrincipal() {
+            return this.principal;
+        }
+    }
+
+}
@@ -12,13 +12,17 @@ import me.prettyprint.hector.api.beans.Row;
 import me.prettyprint.hector.api.beans.HColumn;
 import me.prettyprint.hector.api.beans.OrderedRows;
 import me.prettyprint.hector.api.beans.ColumnSlice;
+import me.prettyprint.hector.api.beans.HCounterColumn;
 import me.prettyprint.hector.api.factory.HFactory;
 import me.prettyprint.hector.api.mutation.Mutator;
 import me.prettyprint.hector.api.query.*;
 import me.prettyprint.cassandra.model.ConfigurableConsistencyLevel;
+import me.prettyprint.cassandra.model.ExecutingKeyspace;
 import me.prettyprint.cassandra.service.FailoverPolicy;
 import me.prettyprint.cassandra.service.CassandraHostConfigurator;
 
+import org.apache.cassandra.thrift.IndexExpression;
+import org.apache.cassandra.thrift.IndexOperator;
 import org.apache.catalina.cassandra.utils.SessionObjectSerialiser;
 
 import org.apache.log4j.Logger;
@@ -51,11 +55,115 @@ class CassandraClient {
 
     /** Cassandra keyspace reference. */
     private Keyspace keyspace = null;
+
+    /** Parallel scanner for full scans (null until first used). */
+    private TokenRangeScanner scanner = null;
+
+    /**
+     * Max inactive intervals of the sessions last read or written by this
+     * node, keyed by session ID, in least recently used order (TTL expiry
+     * mode only). Sessions that are not here get the session timeout.
+     */
+    private final Map<String,Long> intervals = new LinkedHashMap<String,Long>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        protected boolean removeEldestEntry(Map.Entry<String,Long> eldest) {
+            return size() > INTERVALS;
+        }
+    };
     
     /** Name of key used to store sessions. */
     private static final String SESSIONS = "sessions";
     /** Name of key used to store session objects. */
     private static final String SESSIONOBJECTS = "sessionobjects";
+    /** Name of key used to store the session expiry index. */
+    private static final String EXPIRY = "sessionexpiry";
+
+    /**
+     * Name of the session column that flags that the session has an
+     * attribute index. Sessions created before the index was enabled have
+     * no index, and we must then assume that any session object may exist.
+     */
+    private static final String INDEX = "AttributeIndex";
+    /**
+     * Prefix for the session columns that make up the attribute index.
+     * Note that "Attribute:*" sorts before "AttributeIndex", so the whole
+     * index, including the flag, can be read in a single slice.
+     */
+    private static final String INDEX_PREFIX = "Attribute:";
+
+    /**
+     * Name of the session column that holds the session version stamp. The
+     * stamp is replaced whenever a session object is written or removed,
+     * allowing node-local caches to validate cached session objects.
+     */
+    private static final String VERSION = "Version";
+
+    /**
+     * Name of the session column that holds the time when the time-to-live
+     * of all session columns was last refreshed (TTL expiry mode only).
+     */
+    private static final String REFRESHED = "TtlRefreshed";
+
+    /**
+     * Prefix of the session columns that mark session objects written with
+     * a time-to-live of their own (TTL expiry mode only). Note that these
+     * sort after "AttributeIndex", so they are not read with the index.
+     */
+    private static final String OBJECT_TTL_PREFIX = "ObjectTtl:";
+
+    /**
+     * Names of the session columns that are rewritten at the end of every
+     * request (TTL expiry mode), and so expire exactly one session timeout
+     * after the last access.
+     */
+    private static final Set<String> ACCESSED = new HashSet<String>(Arrays.asList(
+        "ID", "New", "Valid", "Created", "LastAccessed", "LastEndAccessed"));
+
+    /**
+     * Name of the session column that holds the expiry index bucket the
+     * session is filed under (expiry index mode only).
+     */
+    private static final String BUCKET = "ExpiryBucket";
+    /**
+     * Row key of the expiry index row that holds the last bucket purged.
+     * Bucket rows are keyed by bucket number, so this never clashes.
+     */
+    private static final String CURSOR = "Cursor";
+    /**
+     * Prefix of the cursor row columns that mark each bucket handled but
+     * not yet passed by the cursor (partitioned purge only).
+     */
+    private static final String DONE_PREFIX = "Done:";
+    /**
+     * Prefix of the cursor row columns that hold each purger's claim on a
+     * bucket it is handling (partitioned purge only).
+     */
+    private static final String CLAIM_PREFIX = "Claim:";
+    /**
+     * Row key of the expiry index row that holds the heartbeat of each live
+     * purger (partitioned purge only).
+     */
+    private static final String PURGERS = "Purgers";
+    /** Maximum number of session IDs read from a bucket in a single slice. */
+    private static final int BUCKET_PAGE = 1000;
+    /**
+     * Name of the column family that holds the sketches of active sessions,
+     * one row per time window and one column per node.
+     */
+    private static final String COUNTS = "sessioncount";
+    /**
+     * Name of the (counter) column family that holds the session quota
+     * leased by all nodes, one row per time window.
+     */
+    private static final String QUOTA = "sessionquota";
+    /** Column of a session quota row that counts the quota leased. */
+    private static final String LEASED = "Leased";
+
+    /** Source of version stamps. */
+    private static final Random stamps = new Random();
+
+    /** Maximum number of session max inactive intervals kept. */
+    private static final int INTERVALS = 10000;
     
     /**
      * Creates a new cassandra accessor object.
@@ -84,6 +192,9 @@ class CassandraClient {
      * Shuts down the cassandra client.
      */
     public void shutdown() {
+        synchronized (this) {
+            if (this.scanner != null) this.scanner.shutdown();
+        }
         this.cluster.getConnectionManager().shutdown();
     }
 
@@ -134,6 +245,19 @@ class CassandraClient {
         }
     }
     
+    /**
+     * Returns the parallel scanner used for full scans.
+     * @return the token range scanner, or null if full scans are done by a
+     *    single thread.
+     */
+    private TokenRangeScanner getScanner() {
+        if (this.config.getScanParallelism() <= 1) return null;
+        synchronized (this) {
+            if (this.scanner == null) this.scanner = new TokenRangeScanner(this.cluster, (ExecutingKeyspace)this.getKeyspace(), this.config.getScanParallelism(), this.config.getSessionPageSize());
+            return this.scanner;
+        }
+    }
+
     /**
      * Creates a mutator for a cluster and the configured keyspace.
      * @param cluster Cassandra cluster.
@@ -164,7 +288,7 @@ class CassandraClient {
     private void insert(Mutator<String> mutator, String colfamily, String key, String name, String value) {
         final StringSerializer str = StringSerializer.get();
         final HColumn<String, String> column = HFactory.createColumn(name, value, str, str);
-        //column.setTtl((int)this.ttl);
+        this.setTtl(column, this.getColumnTtl(colfamily, key, name), key);
         mutator.addInsertion(key, colfamily, column);
     }
 
@@ -180,6 +304,7 @@ class CassandraClient {
     private void insert(Mutator<String> mutator, String colfamily, String key, String name, Object value, SessionObjectSerialiser serialiser) {
         final StringSerializer str = StringSerializer.get();
         final HColumn<String,Object> column = HFactory.createColumn(name, value, str, serialiser);
+        this.setTtl(column, 0, key);
         mutator.addInsertion(key, colfamily, column);
     }
 
@@ -195,10 +320,119 @@ class CassandraClient {
         final StringSerializer str = StringSerializer.get();
         final LongSerializer lng = LongSerializer.get();
         final HColumn<String, Long> column = HFactory.createColumn(name, value, str, lng);
-        //column.setTtl((int)this.ttl);
+        this.setTtl(column, this.getColumnTtl(colfamily, key, name), key);
         mutator.addInsertion(key, colfamily, column);
     }
 
+    /**
+     * Returns the time-to-live of session columns. In TTL expiry mode the
+     * columns are only refreshed every half max inactive interval, so they
+     * are written with half an interval of slack on top of the interval, so
+     * that they never expire while the session is still live.
+     * @param sid Session ID.
+     * @return the time-to-live in seconds (0 if not in TTL expiry mode, -1
+     *    if the session never expires).
+     */
+    private int getSessionTtl(String sid) {
+        final int ttl = this.getAccessTtl(sid);
+        return (ttl > 0 ? ttl + ttl / 2 : ttl);
+    }
+
+    /**
+     * Returns the time-to-live of the session columns that are rewritten at
+     * the end of every request. These decide when the session itself
+     * expires, so they expire after exactly the session's max inactive
+     * interval (or the session timeout if it has none).
+     * @param sid Session ID.
+     * @return the time-to-live in seconds (0 if not in TTL expiry mode, -1
+     *    if the session never expires).
+     */
+    private int getAccessTtl(String sid) {
+        if (!config.isTtlExpiry()) return 0;
+        long interval = this.getInterval(sid);
+        if (interval == 0L) interval = config.getTimeout();
+        if (interval < 0L) return -1;
+        return (int)interval;
+    }
+
+    /**
+     * Returns the time-to-live of a column written by the insert helpers.
+     * @param colfamily Column family.
+     * @param key Row key.
+     * @param name Column name.
+     * @return the time-to-live in seconds, -1 for none, or 0 for the session
+     *    time-to-live.
+     */
+    private int getColumnTtl(String colfamily, String key, String name) {
+        if (SESSIONS.equals(colfamily) && ACCESSED.contains(name)) return this.getAccessTtl(key);
+        // Expiry index entries are keyed by bucket, and named by session.
+        if (EXPIRY.equals(colfamily)) return this.getSessionTtl(name);
+        return 0;
+    }
+
+    /**
+     * Sets the time-to-live of a column.
+     * @param column Column to be inserted.
+     * @param ttl Time-to-live in seconds of the column's session object, -1
+     *    for none, or 0 to use the session time-to-live (if any).
+     * @param sid Session ID.
+     */
+    private void setTtl(HColumn<String,?> column, int ttl, String sid) {
+        if (ttl == 0) ttl = this.getSessionTtl(sid);
+        if (ttl > 0) column.setTtl(ttl);
+    }
+
+    /**
+     * Returns the max inactive interval of a session, as last read or
+     * written by this node.
+     * @param sid Session ID.
+     * @return the interval in seconds (0 if not known).
+     */
+    private long getInterval(String sid) {
+        synchronized (this.intervals) {
+            final Long interval = this.intervals.get(sid);
+            return (interval != null ? interval.longValue() : 0L);
+        }
+    }
+
+    /**
+     * Records the max inactive interval of a session (TTL expiry mode only),
+     * so that the session's columns are written with a matching
+     * time-to-live.
+     * @param sid Session ID.
+     * @param interval Interval in seconds (0 for the session timeout).
+     */
+    private void setInterval(String sid, long interval) {
+        if (!config.isTtlExpiry()) return;
+        synchronized (this.intervals) {
+            if (interval != 0L)
+                this.intervals.put(sid, Long.valueOf(interval));
+            else
+                this.intervals.remove(sid);
+        }
+    }
+
+    /**
+     * Returns the Cassandra clock (in microseconds) for a write timestamp.
+     * @param timestamp Write timestamp in milliseconds (0 for current time).
+     * @return Cassandra clock.
+     */
+    private long getClock(long timestamp) {
+        if (timestamp <= 0) return this.getKeyspace().createClock();
+        return timestamp * 1000L;
+    }
+
+    /**
+     * Generates a new version stamp. Version stamps are stored as strings,
+     * as the sessions column family validates undeclared columns as UTF-8.
+     * @return a new version stamp.
+     */
+    private String nextVersion() {
+        long version = 0L;
+        while (version == 0L) version = stamps.nextLong();
+        return Long.toString(version);
+    }
+
     /**
      * Removes a key (session ID).
      * @param mutator Mutator to add delete to.
@@ -212,8 +446,9 @@ class CassandraClient {
     /**
      * Adds a new session to the cassandra cache.
      * @param sid Session ID.
+     * @return the initial session version stamp.
      */
-    public void addSession(String sid) {
+    public String addSession(String sid) {
         final long now = System.currentTimeMillis();
         final Mutator<String> mutator = this.getMutator(cluster);
         this.insert(mutator, SESSIONS, sid, "ID", sid);
@@ -225,7 +460,19 @@ class CassandraClient {
         this.insert(mutator, SESSIONS, sid, "LastAccessInterval", 0L);
         this.insert(mutator, SESSIONS, sid, "MaxInactiveInterval", 0L);
         this.insert(mutator, SESSIONS, sid, "Sentinel", 0L);
+        if (config.isTtlExpiry()) {
+            this.insert(mutator, SESSIONS, sid, REFRESHED, Long.toString(now));
+        }
+        if (config.isAttributeIndex()) {
+            this.insert(mutator, SESSIONS, sid, INDEX, "true");
+        }
+        if (config.isExpiryIndex()) {
+            this.fileExpiry(mutator, sid, this.getBucket(this.getDeadline(now, 0L)), -1L);
+        }
+        final String version = this.nextVersion();
+        this.insert(mutator, SESSIONS, sid, VERSION, version);
         this.commitMutator(mutator);
+        return version;
     }
     
     /**
@@ -233,9 +480,24 @@ class CassandraClient {
      * @param sid Session ID.
      */
     public void access(String sid) {
-        final long last = this.getSessionValueAsLong(sid, "LastEndAccessed");
-        final long now = System.currentTimeMillis();
         final Mutator<String> mutator = this.getMutator(cluster);
+        long last = 0L;
+        if (config.isExpiryIndex() || config.isTtlExpiry()) {
+            // Read everything we need in a single slice. The interval gives
+            // the time-to-live of the columns written for this request.
+            final Map<String,byte[]> values = this.getSessionValues(sid, "LastEndAccessed", "MaxInactiveInterval", BUCKET);
+            last = toLong(values.get("LastEndAccessed"));
+            this.setInterval(sid, toLong(values.get("MaxInactiveInterval")));
+            if (config.isExpiryIndex()) {
+                // Move the session to the bucket for its new deadline.
+                final long deadline = this.getDeadline(System.currentTimeMillis(), toLong(values.get("MaxInactiveInterval")));
+                this.fileExpiry(mutator, sid, this.getBucket(deadline), getBucket(values));
+            }
+        }
+        else {
+            last = this.getSessionValueAsLong(sid, "LastEndAccessed");
+        }
+        final long now = System.currentTimeMillis();
         this.insert(mutator, SESSIONS, sid, "LastAccessed", now);
         this.insert(mutator, SESSIONS, sid, "LastAccessInterval", (now - last));
         if (debug) {
@@ -279,7 +541,17 @@ class CassandraClient {
      * @param sid Session ID.
      */
     public void endAccess(String sid) {
-        final long created = this.getSessionValueAsLong(sid, "Created");
+        long created = 0L;
+        long refreshed = 0L;
+        if (config.isTtlExpiry()) {
+            final Map<String,byte[]> values = this.getSessionValues(sid, "Created", "MaxInactiveInterval", REFRESHED);
+            created = toLong(values.get("Created"));
+            refreshed = parseLong(values.get(REFRESHED));
+            this.setInterval(sid, toLong(values.get("MaxInactiveInterval")));
+        }
+        else {
+            created = this.getSessionValueAsLong(sid, "Created");
+        }
         final long now = System.currentTimeMillis();
         final Mutator<String> mutator = this.getMutator(cluster);
         this.insert(mutator, SESSIONS, sid, "ID", sid);
@@ -289,6 +561,247 @@ class CassandraClient {
         this.insert(mutator, SESSIONS, sid, "LastAccessed", now);
         this.insert(mutator, SESSIONS, sid, "LastEndAccessed", now);
         this.commitMutator(mutator);
+        final int ttl = this.getAccessTtl(sid);
+        if (ttl > 0 && refreshed + ttl * 500L < now) this.refresh(sid);
+    }
+
+    /**
+     * Refreshes the time-to-live of a session in TTL expiry mode, if it has
+     * not been refreshed within half its max inactive interval. This is used
+     * by code paths that persist a session without calling endAccess().
+     * @param sid Session ID.
+     */
+    void refreshIfDue(String sid) {
+        if (!config.isTtlExpiry()) return;
+        final Map<String,byte[]> values = this.getSessionValues(sid, "MaxInactiveInterval", REFRESHED);
+        this.setInterval(sid, toLong(values.get("MaxInactiveInterval")));
+        final int ttl = this.getAccessTtl(sid);
+        if (ttl > 0 && parseLong(values.get(REFRESHED)) + ttl * 500L < System.currentTimeMillis()) this.refresh(sid);
+    }
+
+    /**
+     * Rewrites all columns of a session, in the sessions and session objects
+     * column families, with a new time-to-live. Each column is rewritten with
+     * its own value and a timestamp just after its original timestamp, so
+     * that a concurrent write of the same column always wins. Session
+     * objects with a time-to-live of their own are left to expire. The
+     * columns of a session that never expires are rewritten without a
+     * time-to-live.
+     * @param sid Session ID.
+     */
+    private void refresh(String sid) {
+        final int ttl = this.getSessionTtl(sid);
+        final int accessTtl = this.getAccessTtl(sid);
+        final Keyspace keyspace = this.getKeyspace();
+        final StringSerializer str = StringSerializer.get();
+        final BytesArraySerializer bytes = BytesArraySerializer.get();
+        final Mutator<String> mutator = this.getMutator(cluster);
+        final String[] families = { SESSIONS, SESSIONOBJECTS };
+        final List<List<HColumn<String,byte[]>>> rows = new ArrayList<List<HColumn<String,byte[]>>>(families.length);
+        final Map<String,String> marked = new HashMap<String,String>();
+        for (int i=0; i<families.length; i++) {
+            final SliceQuery<String, String, byte[]> query =
+                HFactory.createSliceQuery(keyspace, str, str, bytes);
+            query.setColumnFamily(families[i]);
+            query.setKey(sid);
+            query.setRange("", "", false, Integer.MAX_VALUE);
+            final List<HColumn<String,byte[]>> columns = query.execute().get().getColumns();
+            for (int j=0; j<columns.size(); j++) {
+                final String name = columns.get(j).getName();
+                if (!SESSIONS.equals(families[i]) || !name.startsWith(OBJECT_TTL_PREFIX)) continue;
+                marked.put(name.substring(OBJECT_TTL_PREFIX.length()), str.fromBytes(columns.get(j).getValue()));
+            }
+            rows.add(columns);
+        }
+
+        int count = 0;
+        for (int i=0; i<families.length; i++) {
+            final List<HColumn<String,byte[]>> columns = rows.get(i);
+            for (int j=0; j<columns.size(); j++) {
+                final HColumn<String,byte[]> column = columns.get(j);
+                if (REFRESHED.equals(column.getName())) continue;
+                if (this.hasObjectTtl(families[i], column, marked)) continue;
+                final HColumn<String,byte[]> copy = HFactory.createColumn(column.getName(), column.getValue(), column.getClock() + 1L, str, bytes);
+                final int columnTtl = (SESSIONS.equals(families[i]) && ACCESSED.contains(column.getName()) ? accessTtl : ttl);
+                if (columnTtl > 0) copy.setTtl(columnTtl);
+                mutator.addInsertion(sid, families[i], copy);
+                count++;
+            }
+        }
+        // A session that has already expired is not brought back.
+        if (count == 0) return;
+        this.insert(mutator, SESSIONS, sid, REFRESHED, Long.toString(System.currentTimeMillis()));
+        this.commitMutator(mutator);
+        if (debug) cat.debug("["+sid+"] Refreshed time-to-live of "+count+" session columns");
+    }
+
+    /**
+     * Tells you if a session column belongs to a session object written
+     * with a time-to-live of its own, which must be left to expire rather
+     * than be refreshed. The object is marked with the clock of the write,
+     * so that a later write of the object without its own time-to-live is
+     * refreshed.
+     * @param colfamily Column family.
+     * @param column Session column.
+     * @param marked Clocks of the marked writes, keyed by object name.
+     * @return true if the column must not be refreshed.
+     */
+    private boolean hasObjectTtl(String colfamily, HColumn<String,byte[]> column, Map<String,String> marked) {
+        String name = column.getName();
+        if (SESSIONS.equals(colfamily)) {
+            if (name.startsWith(OBJECT_TTL_PREFIX)) return true;
+            if (!name.startsWith(INDEX_PREFIX)) return false;
+            name = name.substring(INDEX_PREFIX.length());
+        }
+        return Long.toString(column.getClock()).equals(marked.get(name));
+    }
+
+    /**
+     * Marks a session object written with a time-to-live of its own (TTL
+     * expiry mode only), so that the refresh leaves it to expire. The mark
+     * holds the clock of the write, and expires with the object.
+     * @param mutator Mutator to add the mark to.
+     * @param sid Session ID.
+     * @param name Session object name.
+     * @param clock Cassandra clock of the write.
+     * @param ttl Time-to-live in seconds of the session object.
+     */
+    private void markObjectTtl(Mutator<String> mutator, String sid, String name, long clock, int ttl) {
+        if (!config.isTtlExpiry() || ttl <= 0) return;
+        final StringSerializer str = StringSerializer.get();
+        final HColumn<String,String> mark = HFactory.createColumn(OBJECT_TTL_PREFIX+name, Long.toString(clock), clock, str, str);
+        mark.setTtl(ttl);
+        mutator.addInsertion(sid, SESSIONS, mark);
+    }
+
+    /**
+     * Returns the time when a session expires.
+     * @param accessed Time the session was last accessed.
+     * @param interval Session max inactive interval in seconds (0 to use the
+     *    session timeout, negative if the session never expires).
+     * @return the expiry deadline, or -1 if the session never expires.
+     */
+    private long getDeadline(long accessed, long interval) {
+        if (interval == 0L) interval = config.getTimeout();
+        if (interval < 0L) return -1L;
+        return accessed + interval * 1000L;
+    }
+
+    /**
+     * Returns the expiry index bucket for a deadline.
+     * @param deadline Expiry deadline (-1 if the session never expires).
+     * @return the bucket number, or -1 if the session is not indexed.
+     */
+    private long getBucket(long deadline) {
+        if (deadline < 0L) return -1L;
+        return deadline / (Math.max(1L, config.getExpiryBucket()) * 1000L);
+    }
+
+    /**
+     * Returns the expiry index bucket that a session is filed under.
+     * @param values Raw session values, as read by getSessionValues().
+     * @return the bucket number, or -1 if the session is not indexed.
+     */
+    private static long getBucket(Map<String,byte[]> values) {
+        final byte[] value = values.get(BUCKET);
+        return (value != null ? parseLong(value) : -1L);
+    }
+
+    /**
+     * Moves a session from one expiry index bucket to another. Nothing is
+     * written if the bucket has not changed, so a session is only moved
+     * about once per bucket width however often it is accessed.
+     * @param mutator Mutator to add the changes to.
+     * @param sid Session ID.
+     * @param bucket New bucket (-1 to drop the session from the index).
+     * @param old Current bucket (-1 if the session is not indexed).
+     */
+    private void fileExpiry(Mutator<String> mutator, String sid, long bucket, long old) {
+        if (bucket == old) return;
+        final StringSerializer str = StringSerializer.get();
+        if (old >= 0L) {
+            mutator.addDeletion(Long.toString(old), EXPIRY, sid, str);
+        }
+        if (bucket >= 0L) {
+            this.insert(mutator, EXPIRY, Long.toString(bucket), sid, "");
+            this.insert(mutator, SESSIONS, sid, BUCKET, Long.toString(bucket));
+        }
+        else {
+            mutator.addDeletion(sid, SESSIONS, BUCKET, str);
+        }
+    }
+
+    /**
+     * Files a session under the expiry index bucket for its current last
+     * accessed time and max inactive interval. This is used by code paths
+     * that change these values without calling access().
+     * @param sid Session ID.
+     */
+    void updateExpiry(String sid) {
+        if (!config.isExpiryIndex()) return;
+        final Map<String,byte[]> values = this.getSessionValues(sid, "LastAccessed", "MaxInactiveInterval", BUCKET);
+        if (!values.containsKey("LastAccessed")) return;
+        final long deadline = this.getDeadline(toLong(values.get("LastAccessed")), toLong(values.get("MaxInactiveInterval")));
+        final long bucket = this.getBucket(deadline);
+        final long old = getBucket(values);
+        if (bucket == old) return;
+        final Mutator<String> mutator = this.getMutator(cluster);
+        this.fileExpiry(mutator, sid, bucket, old);
+        this.commitMutator(mutator);
+    }
+
+    /**
+     * Obtains several raw session values for a given session in a single
+     * query. Use toLong() for the declared numeric columns, and parseLong()
+     * for numbers stored as strings in undeclared columns.
+     * @param sid Session ID.
+     * @param names Names.
+     * @return values that exist, keyed by name.
+     */
+    private Map<String,byte[]> getSessionValues(String sid, String... names) {
+        final Keyspace keyspace = this.getKeyspace();
+        final StringSerializer str = StringSerializer.get();
+        final BytesArraySerializer bytes = BytesArraySerializer.get();
+
+        final SliceQuery<String, String, byte[]> query =
+            HFactory.createSliceQuery(keyspace, str, str, bytes);
+        query.setColumnFamily(SESSIONS);
+        query.setKey(sid);
+        query.setColumnNames(names);
+
+        final Map<String,byte[]> values = new HashMap<String,byte[]>();
+        final List<HColumn<String,byte[]>> columns = query.execute().get().getColumns();
+        for (int i=0; i<columns.size(); i++) {
+            values.put(columns.get(i).getName(), columns.get(i).getValue());
+        }
+        return values;
+    }
+
+    /**
+     * Decodes a raw numeric session value.
+     * @param value Raw value (or null).
+     * @return the value, or 0 if null.
+     */
+    private static long toLong(byte[] value) {
+        if (value == null) return 0L;
+        return LongSerializer.get().fromBytes(value).longValue();
+    }
+
+    /**
+     * Decodes a raw session value holding a number as a string. Numbers in
+     * undeclared session columns are stored as strings, as the sessions
+     * column family validates undeclared columns as UTF-8.
+     * @param value Raw value (or null).
+     * @return the value, or 0 if null or not a number.
+     */
+    private static long parseLong(byte[] value) {
+        if (value == null) return 0L;
+        try {
+            return Long.parseLong(StringSerializer.get().fromBytes(value));
+        }
+        catch (NumberFormatException e) {
+            return 0L;
+        }
     }
     
     /**
@@ -314,9 +827,75 @@ class CassandraClient {
      * @param value Value.
      */
     public void setSessionValue(String sid, String name, long value) {
+        final boolean interval = "MaxInactiveInterval".equals(name);
+        if (interval) this.setInterval(sid, value);
         final Mutator<String> mutator = this.getMutator(cluster);
         this.insert(mutator, SESSIONS, sid, name, value);
         this.commitMutator(mutator);
+        if (interval) this.retime(sid);
+    }
+    
+    /**
+     * Stores several session values for a given session in one mutation.
+     * Each value must be either a String or a Long.
+     * @param sid Session ID.
+     * @param values Values, keyed by name.
+     */
+    public void setSessionValues(String sid, Map<String,Object> values) {
+        final Object interval = values.get("MaxInactiveInterval");
+        if (interval != null) this.setInterval(sid, ((Long)interval).longValue());
+        final Mutator<String> mutator = this.getMutator(cluster);
+        final Iterator<Map.Entry<String,Object>> entries = values.entrySet().iterator();
+        while (entries.hasNext()) {
+            final Map.Entry<String,Object> entry = entries.next();
+            if (entry.getValue() instanceof Long)
+                this.insert(mutator, SESSIONS, sid, entry.getKey(), ((Long)entry.getValue()).longValue());
+            else
+                this.insert(mutator, SESSIONS, sid, entry.getKey(), (String)entry.getValue());
+        }
+        this.commitMutator(mutator);
+        if (interval != null) this.retime(sid);
+    }
+
+    /**
+     * Rewrites all columns of a session with the time-to-live of its new
+     * max inactive interval, in TTL expiry mode.
+     * @param sid Session ID.
+     */
+    private void retime(String sid) {
+        if (config.isTtlExpiry()) this.refresh(sid);
+    }
+
+    /**
+     * Stores the authentication type for a given session, together with a
+     * new authentication version stamp.
+     * @param sid Session ID.
+     * @param authType Authentication type.
+     */
+    public void setAuthType(String sid, String authType) {
+        final Mutator<String> mutator = this.getMutator(cluster);
+        if (authType != null) {
+            this.insert(mutator, SESSIONS, sid, "AuthType", authType);
+        }
+        else {
+            mutator.addDeletion(sid, SESSIONS, "AuthType", StringSerializer.get());
+        }
+        this.insert(mutator, SESSIONS, sid, "AuthVersion", this.nextVersion());
+        this.commitMutator(mutator);
+    }
+
+    /**
+     * Stores the authenticated principal for a given session, together with
+     * a new authentication version stamp.
+     * @param sid Session ID.
+     * @param principal Authenticated principal.
+     * @param serialiser Object serialiser to use.
+     */
+    public void setPrincipal(String sid, Object principal, SessionObjectSerialiser serialiser) {
+        final Mutator<String> mutator = this.getMutator(cluster);
+        this.insert(mutator, SESSIONOBJECTS, sid, "Principal", principal, serialiser);
+        this.insert(mutator, SESSIONS, sid, "AuthVersion", this.nextVersion());
+        this.commitMutator(mutator);
     }
     
     /**
@@ -379,12 +958,74 @@ class CassandraClient {
      * @param sid Session ID.
      */
     public void removeSession(String sid) {
+        this.setInterval(sid, 0L);
         final Mutator<String> mutator = this.getMutator(cluster);
+        if (config.isExpiryIndex()) {
+            final String bucket = this.getSessionValueAsString(sid, BUCKET);
+            if (bucket != null) mutator.addDeletion(bucket, EXPIRY, sid, StringSerializer.get());
+        }
         this.remove(mutator, SESSIONS, sid);
         this.remove(mutator, SESSIONOBJECTS, sid);
         this.commitMutator(mutator);
     }
 
+    /**
+     * Removes any number of sessions, with all their session objects, in a
+     * single batch mutation. This is used to purge sessions found through
+     * the expiry index, and only their entries in the bucket they were found
+     * in are removed, so that a bucket that is read again before it is
+     * released only holds the sessions that are still to be removed.
+     * @param sids Session IDs.
+     * @param bucket Expiry index bucket the sessions were found in (-1 if
+     *    they were not found through the index).
+     */
+    public void removeSessions(List<String> sids, long bucket) {
+        final StringSerializer str = StringSerializer.get();
+        final Mutator<String> mutator = this.getMutator(cluster);
+        for (int i=0; i<sids.size(); i++) {
+            this.setInterval(sids.get(i), 0L);
+            this.remove(mutator, SESSIONS, sids.get(i));
+            this.remove(mutator, SESSIONOBJECTS, sids.get(i));
+            if (bucket >= 0L) mutator.addDeletion(Long.toString(bucket), EXPIRY, sids.get(i), str);
+        }
+        this.commitMutator(mutator);
+    }
+
+    /**
+     * Obtains the creation time, last accessed time and max inactive
+     * interval of a session in a single query.
+     * @param sid Session ID.
+     * @return the three values, in that order (0 where not set).
+     */
+    long[] getSessionTimes(String sid) {
+        final Map<String,byte[]> values = this.getSessionValues(sid, "Created", "LastAccessed", "MaxInactiveInterval");
+        final long[] times = new long[3];
+        times[0] = toLong(values.get("Created"));
+        times[1] = toLong(values.get("LastAccessed"));
+        times[2] = toLong(values.get("MaxInactiveInterval"));
+        return times;
+    }
+
+    /**
+     * Obtains all serialised session objects of a session in a single slice.
+     * @param sid Session ID.
+     * @return Serialised session objects, keyed by name.
+     */
+    Map<String,byte[]> getSessionObjectsBytes(String sid) {
+        final StringSerializer str = StringSerializer.get();
+        final SliceQuery<String, String, byte[]> query =
+            HFactory.createSliceQuery(this.getKeyspace(), str, str, BytesArraySerializer.get());
+        query.setColumnFamily(SESSIONOBJECTS);
+        query.setKey(sid);
+        query.setRange("", "", false, Integer.MAX_VALUE);
+        final Map<String,byte[]> objects = new LinkedHashMap<String,byte[]>();
+        final List<HColumn<String,byte[]>> columns = query.execute().get().getColumns();
+        for (int i=0; i<columns.size(); i++) {
+            objects.put(columns.get(i).getName(), columns.get(i).getValue());
+        }
+        return objects;
+    }
+
     /**
      * Returns the number of sessions.
      * @return the number of sessions.
@@ -402,41 +1043,493 @@ class CassandraClient {
     }
     
     /**
-     * Obtains a list of all sessions. This is a very heavy operation and it
-     * should be avoided at all costs.
-     * @return List of active sessions.
+     * Writes a node's sketches of active sessions.
+     * @param node Unique ID of the node.
+     * @param sketches Sketch registers, keyed by time window.
+     * @param ttl Time-to-live of the sketches in seconds.
      */
-    public List<String> getSessions() {
-        // List to store session IDs in.
-        final List<String> sessions = new ArrayList<String>();
-
-        final Keyspace keyspace = getKeyspace();
+    void setSessionCounts(String node, Map<Long,byte[]> sketches, int ttl) {
         final StringSerializer str = StringSerializer.get();
+        final BytesArraySerializer bytes = BytesArraySerializer.get();
+        final Mutator<String> mutator = this.getMutator(cluster);
+        final Iterator<Map.Entry<Long,byte[]>> entries = sketches.entrySet().iterator();
+        while (entries.hasNext()) {
+            final Map.Entry<Long,byte[]> entry = entries.next();
+            final HColumn<String,byte[]> column = HFactory.createColumn(node, entry.getValue(), str, bytes);
+            column.setTtl(ttl);
+            mutator.addInsertion(entry.getKey().toString(), COUNTS, column);
+        }
+        this.commitMutator(mutator);
+    }
 
-        // Initialise the query.
-        final RangeSlicesQuery<String, String, String> query =
-            HFactory.createRangeSlicesQuery(keyspace, str, str, str);
-        query.setColumnFamily(SESSIONS);
-        query.setKeys("", "");
+    /**
+     * Reads the sketches of active sessions of all nodes for a number of
+     * time windows in a single query.
+     * @param windows Time windows.
+     * @return Sketch registers.
+     */
+    List<byte[]> getSessionCounts(List<Long> windows) {
+        final StringSerializer str = StringSerializer.get();
+        final MultigetSliceQuery<String, String, byte[]> query =
+            HFactory.createMultigetSliceQuery(this.getKeyspace(), str, str, BytesArraySerializer.get());
+        final String[] keys = new String[windows.size()];
+        for (int i=0; i<keys.length; i++) keys[i] = windows.get(i).toString();
+        query.setColumnFamily(COUNTS);
+        query.setKeys(keys);
         query.setRange("", "", false, Integer.MAX_VALUE);
-        query.setReturnKeysOnly();
-        
-        // Iterate over all sessions in the results.
-        final QueryResult<OrderedRows<String, String, String>> result = query.execute();
-        final List<Row<String,String,String>> rows = result.get().getList();
-        for (int i=0; i<rows.size(); i++) {
-            final Row<String,String,String> row = rows.get(i);
-            sessions.add(row.getKey());
+
+        final List<byte[]> sketches = new ArrayList<byte[]>();
+        final Iterator<Row<String,String,byte[]>> rows = query.execute().get().iterator();
+        while (rows.hasNext()) {
+            final List<HColumn<String,byte[]>> columns = rows.next().getColumnSlice().getColumns();
+            for (int i=0; i<columns.size(); i++) sketches.add(columns.get(i).getValue());
         }
-        
+        return sketches;
+    }
+
+    /**
+     * Leases session quota from the shared counter of a time window.
+     * @param window Time window.
+     * @param amount Quota to lease.
+     * @return the total quota leased by all nodes in the window, including
+     *    this lease.
+     */
+    long leaseSessionQuota(long window, long amount) {
+        final StringSerializer str = StringSerializer.get();
+        final String key = Long.toString(window);
+        this.getMutator(cluster).incrementCounter(key, QUOTA, LEASED, amount);
+
+        final CounterQuery<String, String> query =
+            HFactory.createCounterColumnQuery(this.getKeyspace(), str, str);
+        query.setColumnFamily(QUOTA);
+        query.setKey(key);
+        query.setName(LEASED);
+        final HCounterColumn<String> column = query.execute().get();
+        return (column != null ? column.getValue().longValue() : amount);
+    }
+
+    /**
+     * Returns session quota leased from the shared counter of a time window
+     * that could not be used.
+     * @param window Time window.
+     * @param amount Quota to return.
+     */
+    void returnSessionQuota(long window, long amount) {
+        this.getMutator(cluster).decrementCounter(Long.toString(window), QUOTA, LEASED, amount);
+    }
+
+    /**
+     * Obtains a list of all sessions. This is a very heavy operation and it
+     * should be avoided at all costs; use iterateSessions() instead.
+     * @return List of active sessions.
+     */
+    public List<String> getSessions() {
+        final List<String> sessions = new ArrayList<String>();
+        this.scanSessions(new TokenRangeScanner.Consumer() {
+            public boolean accept(List<String> keys) {
+                sessions.addAll(keys);
+                return true;
+            }
+        });
         return sessions;
     }
 
     /**
-     * Obtains the IDs of all expired sessions.
+     * Scans all sessions, handing the session IDs to a consumer a page at a
+     * time. The token ranges of the ring are scanned in parallel, unless the
+     * scan parallelism is 1, in which case the sessions are paged through in
+     * token order.
+     * @param consumer Receives the session IDs.
+     */
+    public void scanSessions(TokenRangeScanner.Consumer consumer) {
+        final TokenRangeScanner scanner = this.getScanner();
+        if (scanner != null) {
+            scanner.scan(SESSIONS, "ID", null, consumer);
+            return;
+        }
+        final int size = Math.max(1, config.getSessionPageSize());
+        final Iterator<String> ids = this.iterateSessions(size);
+        final List<String> page = new ArrayList<String>(size);
+        while (ids.hasNext()) {
+            page.add(ids.next());
+            if (page.size() < size && ids.hasNext()) continue;
+            if (!consumer.accept(new ArrayList<String>(page))) return;
+            page.clear();
+        }
+    }
+
+    /**
+     * Iterates over the IDs of all sessions. The IDs are read a page at a
+     * time as the iterator is used, so only one page is held in memory.
+     * @param pageSize Number of session IDs read per query.
+     * @return Iterator over session IDs (in token order).
+     */
+    public Iterator<String> iterateSessions(int pageSize) {
+        return new SessionIterator(Math.max(1, pageSize));
+    }
+
+    /**
+     * Pages through the sessions column family with bounded range slices.
+     */
+    private class SessionIterator implements Iterator<String> {
+
+        /** Number of session IDs read per query. */
+        private int pageSize;
+        /** Session IDs of the current page. */
+        private List<String> page = new ArrayList<String>();
+        /** Position of the next session ID in the current page. */
+        private int index = 0;
+        /** Last row key read, where the next page starts (null at start). */
+        private String last = null;
+        /** Flags that the last page has been read. */
+        private boolean done = false;
+
+        /**
+         * Creates a new session ID iterator.
+         * @param pageSize Number of session IDs read per query.
+         */
+        SessionIterator(int pageSize) {
+            this.pageSize = pageSize;
+        }
+
+        public boolean hasNext() {
+            while (this.index >= this.page.size() && !this.done) this.fetch();
+            return (this.index < this.page.size());
+        }
+
+        public String next() {
+            if (!this.hasNext()) throw new NoSuchElementException();
+            return this.page.get(this.index++);
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Reads the next page of session IDs. Each page after the first
+         * starts with the last row of the previous one. Only the ID column is
+         * read, so that rows of removed sessions, which come back without
+         * columns, can be skipped.
+         */
+        private void fetch() {
+            final StringSerializer str = StringSerializer.get();
+            final RangeSlicesQuery<String, String, String> query =
+                HFactory.createRangeSlicesQuery(CassandraClient.this.getKeyspace(), str, str, str);
+            final int count = (this.last != null ? this.pageSize + 1 : this.pageSize);
+            query.setColumnFamily(SESSIONS);
+            query.setKeys(this.last != null ? this.last : "", "");
+            query.setRowCount(count);
+            query.setColumnNames("ID");
+
+            this.page.clear();
+            this.index = 0;
+            final List<Row<String,String,String>> rows = query.execute().get().getList();
+            for (int i=0; i<rows.size(); i++) {
+                final Row<String,String,String> row = rows.get(i);
+                if (row.getKey().equals(this.last)) continue;
+                if (row.getColumnSlice().getColumns().size() == 0) continue;
+                this.page.add(row.getKey());
+            }
+            if (rows.size() < count)
+                this.done = true;
+            else
+                this.last = rows.get(rows.size() - 1).getKey();
+        }
+    }
+
+    /**
+     * Obtains the IDs of all expired sessions by scanning the sessions
+     * column family.
      * @return List of expired sessions.
      */
     public List<String> getExpiredSessions() {
+        return this.getExpiredSessionsFromScan();
+    }
+
+    /**
+     * Registers a heartbeat for a purger, and obtains the IDs of all live
+     * purgers. A purger whose heartbeat has not been renewed within the
+     * time-to-live is no longer live, and its share of the purge is taken
+     * over by the others.
+     * @param node ID of this purger.
+     * @param ttl Time-to-live of the heartbeat in seconds.
+     * @return IDs of all live purgers, in order.
+     */
+    List<String> getPurgers(String node, int ttl) {
+        final StringSerializer str = StringSerializer.get();
+        final Mutator<String> mutator = this.getMutator(cluster);
+        final HColumn<String,String> heartbeat = HFactory.createColumn(node, Long.toString(System.currentTimeMillis()), str, str);
+        heartbeat.setTtl(ttl);
+        mutator.addInsertion(PURGERS, EXPIRY, heartbeat);
+        this.commitMutator(mutator);
+
+        final SliceQuery<String, String, String> query =
+            HFactory.createSliceQuery(this.getKeyspace(), str, str, str);
+        query.setColumnFamily(EXPIRY);
+        query.setKey(PURGERS);
+        query.setRange("", "", false, Integer.MAX_VALUE);
+        final List<String> purgers = new ArrayList<String>();
+        final List<HColumn<String,String>> columns = query.execute().get().getColumns();
+        for (int i=0; i<columns.size(); i++) purgers.add(columns.get(i).getName());
+        if (!purgers.contains(node)) {
+            purgers.add(node);
+            Collections.sort(purgers);
+        }
+        return purgers;
+    }
+
+    /**
+     * Obtains the IDs of the expired sessions that are not in the expiry
+     * index. Sessions created before the index was enabled are not in it, so
+     * until the expiry index cursor has first been moved, the first purger
+     * scans for them.
+     * @param node ID of this purger (null if the purge is not partitioned).
+     * @param purgers IDs of all live purgers, in order (null if the purge is
+     *    not partitioned).
+     * @return List of expired sessions.
+     */
+    List<String> getUnindexedExpiredSessions(String node, List<String> purgers) {
+        if (purgers != null && !purgers.get(0).equals(node)) return new ArrayList<String>();
+        if (this.getExpiryCursors().get(BUCKET) != null) return new ArrayList<String>();
+        return this.getExpiredSessionsFromScan();
+    }
+
+    /**
+     * Obtains the expiry index buckets that a purger should handle, being
+     * the buckets that have become due since the cursor and that are not
+     * yet marked as done.
+     * <p>
+     * In a partitioned purge, buckets are dealt out to the live purgers in
+     * turn. As purgers may disagree on who is live, a purger must still
+     * claim each bucket before handling it. A bucket that has been due for
+     * longer than the claim time-to-live without being handled (as its
+     * purger has died, or no purger took it to be its own) is handed to any
+     * purger, and goes to the first one to claim it.
+     * @param node ID of this purger (null if the purge is not partitioned).
+     * @param purgers IDs of all live purgers, in order (null if the purge is
+     *    not partitioned).
+     * @param ttl Time-to-live in seconds of a purger's claim on a bucket.
+     * @return the bucket numbers, in order.
+     */
+    List<Long> getDueBuckets(String node, List<String> purgers, int ttl) {
+        final long now = System.currentTimeMillis();
+        final long current = this.getBucket(now);
+        final long span = Math.max(1L, config.getExpiryBucket()) * 1000L;
+        final Map<String,String> cursors = this.getExpiryCursors();
+        final List<Long> buckets = new ArrayList<Long>();
+        for (long bucket=this.getFirstDueBucket(cursors.get(BUCKET), current); bucket<current; bucket++) {
+            if (cursors.containsKey(DONE_PREFIX+bucket)) continue;
+            if (purgers != null) {
+                final boolean mine = purgers.get((int)(bucket % purgers.size())).equals(node);
+                if (!mine && (bucket + 1L) * span + ttl * 1000L >= now) continue;
+            }
+            buckets.add(Long.valueOf(bucket));
+        }
+        return buckets;
+    }
+
+    /**
+     * Returns the first expiry index bucket that may not have been handled.
+     * @param cursor Expiry index cursor (null before the first purge).
+     * @param current Current bucket.
+     * @return the bucket number.
+     */
+    private long getFirstDueBucket(String cursor, long current) {
+        if (cursor != null) return Long.parseLong(cursor) + 1L;
+        return current - config.getTimeout() / Math.max(1L, config.getExpiryBucket()) - 2L;
+    }
+
+    /**
+     * Obtains the IDs of the expired sessions filed under a due expiry index
+     * bucket. Each session is checked against its own deadline: sessions
+     * that have been accessed since they were filed are filed afresh under
+     * their new bucket instead. The bucket itself is left in place until it
+     * is released, once the expired sessions have been removed.
+     * @param bucket Bucket number.
+     * @return List of expired sessions.
+     */
+    List<String> getExpiredSessions(long bucket) {
+        final List<String> sessions = new ArrayList<String>();
+        final long now = System.currentTimeMillis();
+        final Mutator<String> mutator = this.getMutator(cluster);
+        final List<String> candidates = this.getBucketSessions(bucket);
+        for (int i=0; i<candidates.size(); i++) {
+            final String sid = candidates.get(i);
+            final Map<String,byte[]> values = this.getSessionValues(sid, "LastAccessed", "MaxInactiveInterval", BUCKET);
+            if (!values.containsKey("LastAccessed")) {
+                // Expired by Cassandra (removed sessions leave the index).
+                sessions.add(sid);
+                continue;
+            }
+            final long deadline = this.getDeadline(toLong(values.get("LastAccessed")), toLong(values.get("MaxInactiveInterval")));
+            if (deadline >= 0L && deadline < now) {
+                sessions.add(sid);
+            }
+            else {
+                // The bucket row is deleted on release, so file it afresh.
+                this.fileExpiry(mutator, sid, this.getBucket(deadline), -1L);
+            }
+        }
+        this.commitMutator(mutator);
+        if (debug) cat.debug("Checked "+candidates.size()+" sessions in expiry bucket "+bucket+", "+sessions.size()+" expired");
+        return sessions;
+    }
+
+    /**
+     * Releases an expiry index bucket once its expired sessions have been
+     * removed. The bucket row is deleted, the bucket is marked as done, and
+     * the purger's claim on it is dropped.
+     * @param bucket Bucket number.
+     * @param node ID of this purger (null if the purge is not partitioned).
+     */
+    void releaseBucket(long bucket, String node) {
+        final StringSerializer str = StringSerializer.get();
+        final Mutator<String> mutator = this.getMutator(cluster);
+        this.remove(mutator, EXPIRY, Long.toString(bucket));
+        mutator.addInsertion(CURSOR, EXPIRY, HFactory.createColumn(DONE_PREFIX+bucket, (node != null ? node : ""), str, str));
+        if (node != null) mutator.addDeletion(CURSOR, EXPIRY, CLAIM_PREFIX+bucket+":"+node, str);
+        this.commitMutator(mutator);
+    }
+
+    /**
+     * Moves the expiry index cursor past the buckets marked as done, so
+     * that each purge starts from the first bucket that may not have been
+     * handled, and forgets the done markers it has passed.
+     */
+    void moveExpiryCursor() {
+        final StringSerializer str = StringSerializer.get();
+        final long current = this.getBucket(System.currentTimeMillis());
+        final Map<String,String> cursors = this.getExpiryCursors();
+        final long first = this.getFirstDueBucket(cursors.get(BUCKET), current);
+        long low = first - 1L;
+        while (low + 1L < current && cursors.containsKey(DONE_PREFIX+(low + 1L))) low++;
+        if (low < first) return;
+
+        // The cursor itself must never expire.
+        final Mutator<String> mutator = this.getMutator(cluster);
+        mutator.addInsertion(CURSOR, EXPIRY, HFactory.createColumn(BUCKET, Long.toString(low), str, str));
+        // Forget the done markers the cursor has passed (and those left by
+        // earlier versions, which are keyed by purger).
+        final Iterator<String> names = cursors.keySet().iterator();
+        while (names.hasNext()) {
+            final String name = names.next();
+            if (!name.startsWith(DONE_PREFIX)) continue;
+            if (parseBucket(name.substring(DONE_PREFIX.length())) <= low) mutator.addDeletion(CURSOR, EXPIRY, name, str);
+        }
+        this.commitMutator(mutator);
+    }
+
+    /**
+     * Claims an expiry index bucket for a purger. The claim is written
+     * first, and then all claims on the bucket are read back. The bucket is
+     * only handled if no other purger has claimed it, so of two purgers
+     * that claim the same bucket at the same time both back off, and the
+     * bucket is claimed again by a later purge. The claim expires, so that
+     * the bucket is taken over if the purger dies while handling it, and a
+     * purger that takes long to handle a bucket renews it by claiming the
+     * bucket again.
+     * @param bucket Bucket number.
+     * @param node ID of the purger.
+     * @param ttl Time-to-live of the claim in seconds.
+     * @return true if the purger may handle the bucket, false if not.
+     */
+    boolean claimBucket(long bucket, String node, int ttl) {
+        final StringSerializer str = StringSerializer.get();
+        final String prefix = CLAIM_PREFIX+bucket+":";
+        final Mutator<String> mutator = this.getMutator(cluster);
+        final HColumn<String,String> claim = HFactory.createColumn(prefix+node, Long.toString(System.currentTimeMillis()), str, str);
+        claim.setTtl(Math.max(1, ttl));
+        mutator.addInsertion(CURSOR, EXPIRY, claim);
+        this.commitMutator(mutator);
+
+        // Claims on the bucket sort between the prefix and the prefix with
+        // its trailing ':' replaced by the next character.
+        final SliceQuery<String, String, String> query =
+            HFactory.createSliceQuery(this.getKeyspace(), str, str, str);
+        query.setColumnFamily(EXPIRY);
+        query.setKey(CURSOR);
+        query.setRange(prefix, CLAIM_PREFIX+bucket+";", false, Integer.MAX_VALUE);
+        final List<HColumn<String,String>> columns = query.execute().get().getColumns();
+        for (int i=0; i<columns.size(); i++) {
+            if (columns.get(i).getName().equals(prefix+node)) continue;
+            if (debug) cat.debug("Expiry bucket "+bucket+" also claimed by "+columns.get(i).getName().substring(prefix.length()));
+            this.getMutator(cluster).delete(CURSOR, EXPIRY, prefix+node, str);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parses the bucket number of a done marker.
+     * @param value Bucket number as a string.
+     * @return the bucket number, or -1 if the value is not a bucket number.
+     */
+    private static long parseBucket(String value) {
+        try {
+            return Long.parseLong(value);
+        }
+        catch (NumberFormatException e) {
+            return -1L;
+        }
+    }
+
+    /**
+     * Obtains the expiry index cursors: the last bucket purged, and the
+     * buckets handled and claimed in a partitioned purge.
+     * @return the bucket numbers as strings, keyed by column name.
+     */
+    private Map<String,String> getExpiryCursors() {
+        final StringSerializer str = StringSerializer.get();
+        final SliceQuery<String, String, String> query =
+            HFactory.createSliceQuery(this.getKeyspace(), str, str, str);
+        query.setColumnFamily(EXPIRY);
+        query.setKey(CURSOR);
+        query.setRange("", "", false, Integer.MAX_VALUE);
+        final Map<String,String> cursors = new HashMap<String,String>();
+        final List<HColumn<String,String>> columns = query.execute().get().getColumns();
+        for (int i=0; i<columns.size(); i++) {
+            cursors.put(columns.get(i).getName(), columns.get(i).getValue());
+        }
+        return cursors;
+    }
+
+    /**
+     * Obtains the IDs of all sessions filed under an expiry index bucket.
+     * The bucket row is read in slices of a bounded size.
+     * @param bucket Bucket number.
+     * @return List of session IDs.
+     */
+    private List<String> getBucketSessions(long bucket) {
+        final List<String> sessions = new ArrayList<String>();
+        final StringSerializer str = StringSerializer.get();
+        final SliceQuery<String, String, String> query =
+            HFactory.createSliceQuery(this.getKeyspace(), str, str, str);
+        query.setColumnFamily(EXPIRY);
+        query.setKey(Long.toString(bucket));
+
+        String start = "";
+        while (true) {
+            query.setRange(start, "", false, BUCKET_PAGE);
+            final List<HColumn<String,String>> columns = query.execute().get().getColumns();
+            for (int i=0; i<columns.size(); i++) {
+                // Each slice after the first starts with the last column
+                // of the previous one.
+                if (i == 0 && start.length() > 0) continue;
+                sessions.add(columns.get(i).getName());
+            }
+            if (columns.size() < BUCKET_PAGE) break;
+            start = columns.get(columns.size() - 1).getName();
+        }
+        return sessions;
+    }
+
+    /**
+     * Obtains the IDs of all expired sessions by scanning the secondary
+     * index of the sessions column family.
+     * @return List of expired sessions.
+     */
+    private List<String> getExpiredSessionsFromScan() {
         // List to store IDs of expired sessions in.
         final List<String> sessions = new ArrayList<String>();
         // Get the configured keyspace.
@@ -447,6 +1540,21 @@ class CassandraClient {
         // Figure out what the timestamp for expired sessions must be older than.
         final long expired = System.currentTimeMillis() - this.config.getTimeout() * 1000;
 
+        // Scan the token ranges in parallel if enabled.
+        final TokenRangeScanner scanner = this.getScanner();
+        if (scanner != null) {
+            final List<IndexExpression> filter = new ArrayList<IndexExpression>(2);
+            filter.add(new IndexExpression(str.toByteBuffer("LastAccessed"), IndexOperator.LT, lng.toByteBuffer(expired)));
+            filter.add(new IndexExpression(str.toByteBuffer("Sentinel"), IndexOperator.EQ, lng.toByteBuffer(0L)));
+            scanner.scan(SESSIONS, "LastAccessed", filter, new TokenRangeScanner.Consumer() {
+                public boolean accept(List<String> keys) {
+                    sessions.addAll(keys);
+                    return true;
+                }
+            });
+            return sessions;
+        }
+
         // Build the query to find expired sessions.
         final RangeSlicesQuery<String, String, Long> query =
         		HFactory.createRangeSlicesQuery(keyspace, str, str, lng);
@@ -470,16 +1578,62 @@ class CassandraClient {
     }
 
     /**
-     * Adds a session object.
+     * Adds a session object, replacing the session version stamp.
+     * @param sid Session ID.
+     * @param name Session object name.
+     * @param value Session object value.
+     * @return the new session version stamp.
+     */
+    public String addSessionObject(String sid, String name, Object object, SessionObjectSerialiser serialiser) {
+        return this.addSessionObject(sid, name, object, serialiser, 0L);
+    }
+
+    /**
+     * Adds a session object, replacing the session version stamp. The
+     * session object is written with the given timestamp, so that a write
+     * that is applied late never overwrites a write made by a later request.
+     * The version stamp is always written with the current time.
      * @param sid Session ID.
      * @param name Session object name.
      * @param value Session object value.
+     * @param timestamp Write timestamp in milliseconds (0 for current time).
+     * @return the new session version stamp.
      */
-    public void addSessionObject(String sid, String name, Object object, SessionObjectSerialiser serialiser) {
+    public String addSessionObject(String sid, String name, Object object, SessionObjectSerialiser serialiser, long timestamp) {
+        return this.addSessionObject(sid, name, object, serialiser, timestamp, 0);
+    }
+
+    /**
+     * Adds a session object with a time-to-live, replacing the session
+     * version stamp. Cassandra drops the session object (and its attribute
+     * index entry) once the time-to-live has passed.
+     * @param sid Session ID.
+     * @param name Session object name.
+     * @param value Session object value.
+     * @param timestamp Write timestamp in milliseconds (0 for current time).
+     * @param ttl Time-to-live in seconds (0 if the object does not expire).
+     * @return the new session version stamp.
+     */
+    public String addSessionObject(String sid, String name, Object object, SessionObjectSerialiser serialiser, long timestamp, int ttl) {
         final long start = System.currentTimeMillis();
 
+        final String version = this.nextVersion();
         final Mutator<String> mutator = this.getMutator(cluster);
-        this.insert(mutator, SESSIONOBJECTS, sid, name, object, serialiser);
+        final StringSerializer str = StringSerializer.get();
+        final long clock = this.getClock(timestamp);
+        final HColumn<String,Object> column = HFactory.createColumn(name, object, clock, str, serialiser);
+        this.setTtl(column, ttl, sid);
+        mutator.addInsertion(sid, SESSIONOBJECTS, column);
+        this.markObjectTtl(mutator, sid, name, clock, ttl);
+        if (config.isAttributeIndex()) {
+            final HColumn<String,String> index = HFactory.createColumn(INDEX_PREFIX+name, "", clock, str, str);
+            this.setTtl(index, ttl, sid);
+            mutator.addInsertion(sid, SESSIONS, index);
+        }
+        else {
+            this.unindex(mutator, sid);
+        }
+        this.insert(mutator, SESSIONS, sid, VERSION, version);
         this.commitMutator(mutator);
 
         final CassandraStatistics stats = CassandraStatistics.getInstance(); 
@@ -489,6 +1643,120 @@ class CassandraClient {
             stats.setLastDuration(duration);
             stats.write(name);
         }
+        
+        return version;
+    }
+
+    /**
+     * Adds an already serialised session object, replacing the session
+     * version stamp.
+     * @param sid Session ID.
+     * @param name Session object name.
+     * @param bytes Serialised session object.
+     * @return the new session version stamp.
+     */
+    public String addSessionObjectBytes(String sid, String name, byte[] bytes) {
+        return this.addSessionObjectBytes(sid, name, bytes, 0L);
+    }
+
+    /**
+     * Adds an already serialised session object with a given write
+     * timestamp, replacing the session version stamp.
+     * @param sid Session ID.
+     * @param name Session object name.
+     * @param bytes Serialised session object.
+     * @param timestamp Write timestamp in milliseconds (0 for current time).
+     * @return the new session version stamp.
+     */
+    public String addSessionObjectBytes(String sid, String name, byte[] bytes, long timestamp) {
+        return this.addSessionObjectBytes(sid, name, bytes, timestamp, 0);
+    }
+
+    /**
+     * Adds an already serialised session object with a given write
+     * timestamp and time-to-live, replacing the session version stamp.
+     * @param sid Session ID.
+     * @param name Session object name.
+     * @param bytes Serialised session object.
+     * @param timestamp Write timestamp in milliseconds (0 for current time).
+     * @param ttl Time-to-live in seconds (0 if the object does not expire).
+     * @return the new session version stamp.
+     */
+    public String addSessionObjectBytes(String sid, String name, byte[] bytes, long timestamp, int ttl) {
+        final long start = System.currentTimeMillis();
+
+        final String version = this.nextVersion();
+        final Mutator<String> mutator = this.getMutator(cluster);
+        final StringSerializer str = StringSerializer.get();
+        final long clock = this.getClock(timestamp);
+        final HColumn<String,byte[]> column = HFactory.createColumn(name, bytes, clock, str, BytesArraySerializer.get());
+        this.setTtl(column, ttl, sid);
+        mutator.addInsertion(sid, SESSIONOBJECTS, column);
+        this.markObjectTtl(mutator, sid, name, clock, ttl);
+        if (config.isAttributeIndex()) {
+            final HColumn<String,String> index = HFactory.createColumn(INDEX_PREFIX+name, "", clock, str, str);
+            this.setTtl(index, ttl, sid);
+            mutator.addInsertion(sid, SESSIONS, index);
+        }
+        else {
+            this.unindex(mutator, sid);
+        }
+        this.insert(mutator, SESSIONS, sid, VERSION, version);
+        this.commitMutator(mutator);
+
+        final CassandraStatistics stats = CassandraStatistics.getInstance(); 
+        if (stats != null) {
+            final long stop = System.currentTimeMillis();
+            stats.setLastDuration(stop - start);
+            stats.setLastSize(bytes.length);
+            stats.write(name);
+        }
+
+        return version;
+    }
+
+    /**
+     * Adds and removes serialised session objects for any number of sessions
+     * in a single batch mutation, replacing the version stamp of each
+     * session that is written to.
+     * @param writes Session object writes (null bytes remove the object).
+     * @return the new version stamps, keyed by session ID.
+     */
+    Map<String,String> addSessionObjects(List<WriteCoalescer.Write> writes) {
+        final Map<String,String> versions = new HashMap<String,String>();
+        final Mutator<String> mutator = this.getMutator(cluster);
+        final StringSerializer str = StringSerializer.get();
+        for (int i=0; i<writes.size(); i++) {
+            final WriteCoalescer.Write write = writes.get(i);
+            final String sid = write.getId();
+            final String name = write.getName();
+            final long clock = this.getClock(write.getTimestamp());
+            if (write.getBytes() != null) {
+                final HColumn<String,byte[]> column = HFactory.createColumn(name, write.getBytes(), clock, str, BytesArraySerializer.get());
+                this.setTtl(column, write.getTtl(), sid);
+                mutator.addInsertion(sid, SESSIONOBJECTS, column);
+                this.markObjectTtl(mutator, sid, name, clock, write.getTtl());
+                if (config.isAttributeIndex()) {
+                    final HColumn<String,String> index = HFactory.createColumn(INDEX_PREFIX+name, "", clock, str, str);
+                    this.setTtl(index, write.getTtl(), sid);
+                    mutator.addInsertion(sid, SESSIONS, index);
+                }
+            }
+            else {
+                mutator.addDeletion(sid, SESSIONOBJECTS, name, str, clock);
+                if (config.isAttributeIndex()) {
+                    mutator.addDeletion(sid, SESSIONS, INDEX_PREFIX+name, str, clock);
+                }
+            }
+            if (!config.isAttributeIndex()) this.unindex(mutator, sid);
+            if (!versions.containsKey(sid)) {
+                final String version = this.nextVersion();
+                versions.put(sid, version);
+                this.insert(mutator, SESSIONS, sid, VERSION, version);
+            }
+        }
+        this.commitMutator(mutator);
+        return versions;
     }
 
     /**
@@ -528,15 +1796,153 @@ class CassandraClient {
     }
     
     /**
-     * Removes a session object.
+     * Obtains a serialised session object value.
+     * @param sid Session ID.
+     * @param name Session object name.
+     * @return Serialised session object value, or null if it does not exist.
+     */
+    public byte[] getSessionObjectBytes(String sid, String name) {
+        final HColumn<String,byte[]> col = this.getSessionObjectColumn(sid, name);
+        return (col != null ? col.getValue() : null);
+    }
+
+    /**
+     * Obtains a serialised session object column, giving access to the
+     * column's write timestamp and time-to-live.
+     * @param sid Session ID.
+     * @param name Session object name.
+     * @return Session object column, or null if it does not exist.
+     */
+    HColumn<String,byte[]> getSessionObjectColumn(String sid, String name) {
+        final long start = System.currentTimeMillis();
+
+        final Keyspace keyspace = this.getKeyspace();
+        final StringSerializer str = StringSerializer.get();
+        final BytesArraySerializer bytes = BytesArraySerializer.get();
+
+        // Build the query.
+        final ColumnQuery<String, String, byte[]> query =
+            HFactory.createColumnQuery(keyspace, str, str, bytes);
+        query.setColumnFamily(SESSIONOBJECTS);
+        query.setKey(sid);
+        query.setName(name);
+        
+        // Parse the results.
+        final QueryResult<HColumn<String, byte[]>> result = query.execute();
+        final HColumn<String,byte[]> col = result.get();
+        if (col == null) return null;
+        final byte[] value = col.getValue();
+
+        final CassandraStatistics stats = CassandraStatistics.getInstance(); 
+        if (stats != null) {
+            final long stop = System.currentTimeMillis();
+            final long duration = stop - start;
+            stats.setLastDuration(duration);
+            stats.setLastSize(value != null ? value.length : 0);
+            stats.read(name);
+        }
+        
+        return col;
+    }
+    
+    /**
+     * Removes a session object, replacing the session version stamp.
      * @param sid Session ID.
      * @param name Session object name.
+     * @return the new session version stamp.
      */
-    public void removeSessionObject(String sid, String name) {
+    public String removeSessionObject(String sid, String name) {
+        return this.removeSessionObject(sid, name, 0L);
+    }
+
+    /**
+     * Removes a session object, replacing the session version stamp. The
+     * deletion is made with the given timestamp, so that a removal that is
+     * applied late never removes a session object set by a later request.
+     * @param sid Session ID.
+     * @param name Session object name.
+     * @param timestamp Write timestamp in milliseconds (0 for current time).
+     * @return the new session version stamp.
+     */
+    public String removeSessionObject(String sid, String name, long timestamp) {
+        final String version = this.nextVersion();
         final Mutator<String> mutator = this.getMutator(cluster);
         final StringSerializer str = StringSerializer.get();
-        mutator.addDeletion(sid, SESSIONOBJECTS, name, str);
+        final long clock = this.getClock(timestamp);
+        mutator.addDeletion(sid, SESSIONOBJECTS, name, str, clock);
+        if (config.isAttributeIndex()) {
+            mutator.addDeletion(sid, SESSIONS, INDEX_PREFIX+name, str, clock);
+        }
+        else {
+            this.unindex(mutator, sid);
+        }
+        this.insert(mutator, SESSIONS, sid, VERSION, version);
         this.commitMutator(mutator);
+        return version;
+    }
+
+    /**
+     * Clears the attribute index flag of a session. A node that has the
+     * attribute index turned off writes session objects without updating
+     * the index, so the index of the session can no longer be trusted by
+     * nodes that have it turned on. The flag is cleared with the current
+     * clock, so that it is never outdated by the write timestamp. As this
+     * writes a tombstone with every write, it is only done while the index
+     * is being rolled out (dropAttributeIndex).
+     * @param mutator Mutator to add delete to.
+     * @param sid Session ID.
+     */
+    private void unindex(Mutator<String> mutator, String sid) {
+        if (!config.isDropAttributeIndex()) return;
+        mutator.addDeletion(sid, SESSIONS, INDEX, StringSerializer.get());
+    }
+
+    /**
+     * Obtains the session version stamp.
+     * @param sid Session ID.
+     * @return the session version stamp, or null if the session has none.
+     */
+    public String getSessionVersion(String sid) {
+        return this.getSessionValueAsString(sid, VERSION);
+    }
+
+    /**
+     * Obtains the attribute index for a given session, being the names of
+     * all session objects stored for the session. The index is read in a
+     * single slice of the session row, and is much cheaper than listing the
+     * session objects themselves.
+     * @param sid Session ID.
+     * @return Set of session object names, or null if the session has no
+     *    attribute index.
+     */
+    public Set<String> getSessionObjectIndex(String sid) {
+        final Keyspace keyspace = this.getKeyspace();
+        final StringSerializer str = StringSerializer.get();
+
+        // Build the query.
+        final SliceQuery<String, String, String> query =
+            HFactory.createSliceQuery(keyspace, str, str, str);
+        query.setColumnFamily(SESSIONS);
+        query.setKey(sid);
+        query.setRange(INDEX_PREFIX, INDEX, false, Integer.MAX_VALUE);
+        final QueryResult<ColumnSlice<String, String>> result = query.execute();
+
+        // Parse the results.
+        boolean indexed = false;
+        final Set<String> objects = new HashSet<String>();
+        final List<HColumn<String,String>> columns = result.get().getColumns();
+        for (int i=0; i<columns.size(); i++) {
+            final String name = columns.get(i).getName();
+            if (INDEX.equals(name)) {
+                indexed = true;
+            }
+            else if (name.startsWith(INDEX_PREFIX)) {
+                objects.add(name.substring(INDEX_PREFIX.length()));
+            }
+        }
+
+        if (!indexed) return null;
+        return objects;
     }
 
     /**
@@ -620,18 +2026,19 @@ class CassandraClient {
         final Keyspace keyspace = this.getKeyspace();
         final StringSerializer str = StringSerializer.get();
 
-        // Build the query.
-        final SliceQuery<String, String, String> query =
-            HFactory.createSliceQuery(keyspace, str, str, str);
+        // Build the query. The values are read in the same slice, rather
+        // than with one query per session object.
+        final SliceQuery<String, String, byte[]> query =
+            HFactory.createSliceQuery(keyspace, str, str, BytesArraySerializer.get());
         query.setColumnFamily(SESSIONOBJECTS);
         query.setKey(sid);
         query.setRange("", "", false, Integer.MAX_VALUE);
-        final QueryResult<ColumnSlice<String, String>> result = query.execute();
+        final QueryResult<ColumnSlice<String, byte[]>> result = query.execute();
 
         // Parse the results.
-        final List<HColumn<String,String>> columns = result.get().getColumns();
+        final List<HColumn<String,byte[]>> columns = result.get().getColumns();
         for (int i=0; i<columns.size(); i++) {
-            final HColumn<String,String> column = columns.get(i);
+            final HColumn<String,byte[]> column = columns.get(i);
             final String name = column.getName();
             // Get the size of the column name.
             try {
@@ -643,7 +2050,7 @@ class CassandraClient {
             	// ignore... this will never fail!
             }
             // Get the size of the value (in bytes).
-            size += this.getSessionObjectSize(sid, name);
+            if (column.getValue() != null) size += column.getValue().length;
         }
         
         return size;
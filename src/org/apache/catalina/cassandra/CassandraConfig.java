@@ -1,6 +1,8 @@
 // @(#)$Id: CassandraConfig.java,v 1.5 2012/04/13 16:07:47 morten Exp $
 package org.apache.catalina.cassandra;
 
+import java.util.*;
+import java.util.regex.Pattern;
 import java.util.zip.Deflater;
 import org.apache.log4j.Logger;
 
@@ -59,7 +61,171 @@ public class CassandraConfig {
      * run the session purge process every minute.
      */
     private long purgeInterval = 60; // Default is 60 seconds
+
+    /** Maximum number of expired sessions deleted per second (0 for no limit). */
+    private int purgeRate = 1000;
+
+    /** Maximum number of expired sessions deleted in one batch mutation. */
+    private int purgeBatch = 200;
+
+    /**
+     * Shares the purge of expired sessions between all Tomcat nodes using
+     * the same keyspace, instead of every node purging all sessions.
+     */
+    private boolean partitionedPurge = false;
+
+    /**
+     * Notifies the web application's session listeners, and session objects
+     * that are binding listeners, of sessions removed by the purge.
+     */
+    private boolean expiryListeners = false;
+
+    /** Maximum number of purged sessions queued for notification. */
+    private int expiryQueueSize = 10000;
+
+    /** Number of session IDs read per query when enumerating sessions. */
+    private int sessionPageSize = 1000;
+
+    /**
+     * Number of token ranges scanned at the same time by full scans of the
+     * sessions (1 to scan by a single thread).
+     */
+    private int scanParallelism = 4;
+
+    /**
+     * Keeps an approximate count of the active sessions, so that the count
+     * does not have to be read from Cassandra each time it is asked for.
+     */
+    private boolean approximateCount = false;
+
+    /** Interval in seconds between updates of the approximate count. */
+    private long countInterval = 60;
+
+    /** Number of sessions leased from the shared session quota at a time. */
+    private int quotaBlock = 100;
+
+    /** Length in seconds of the time windows of the shared session quota. */
+    private long quotaInterval = 60;
+
+    /**
+     * Maximum number of sessions returned by findSessions() (0 for no
+     * limit), as Tomcat needs them all in memory at once.
+     */
+    private int findSessionsLimit = 10000;
+
+    /**
+     * Enables lazy deserialisation of session objects. When enabled, session
+     * objects that implement one of the lazy interfaces are returned as
+     * proxies that hold the serialised bytes, and the object itself is only
+     * deserialised when a method is called on the proxy.
+     */
+    private boolean lazyDeserialisation = false;
+
+    /**
+     * Comma-separated list of the interfaces that lazy session object proxies
+     * may implement.
+     */
+    private String lazyInterfaces = "java.util.Map,java.util.List,java.util.Set,java.util.Collection";
     
+    /**
+     * Enables the per-session attribute index. When enabled, the names of
+     * all session objects are also stored as columns in the session row, and
+     * the request cache uses this index to answer lookups for session objects
+     * that do not exist without querying Cassandra.
+     */
+    private boolean attributeIndex = false;
+
+    /**
+     * Flags that a node with the attribute index turned off drops the index
+     * of the sessions it writes session objects to. This is only needed
+     * while the attribute index is being turned on or off across the nodes.
+     */
+    private boolean dropAttributeIndex = false;
+
+    /**
+     * Maximum number of sessions for which the authentication state is kept
+     * in the node-local authentication cache (0 disables the cache).
+     */
+    private int authenticationCacheSize = 0;
+
+    /**
+     * Maximum size in kilobytes of the node-local near cache for serialised
+     * session objects (0 disables the near cache).
+     */
+    private long nearCacheSize = 0;
+
+    /**
+     * Maximum size in kilobytes of the node-local, memory-mapped disk cache
+     * for serialised session objects (0 disables the disk cache).
+     */
+    private int diskCacheSize = 0;
+
+    /**
+     * Directory holding the disk cache files (defaults to the "cassandra"
+     * directory under the Tomcat work directory).
+     */
+    private String diskCacheDirectory = null;
+
+    /**
+     * Size in kilobytes of the node-local write-ahead journal for session
+     * object writes (0 disables the journal).
+     */
+    private int journalSize = 0;
+
+    /**
+     * Directory holding the journal file (defaults to the "cassandra"
+     * directory under the Tomcat work directory).
+     */
+    private String journalDirectory = null;
+
+    /**
+     * Time in milliseconds that session object writes are collected for,
+     * before being sent to Cassandra as grouped batch mutations (0 disables
+     * the write coalescer).
+     */
+    private long coalesceWindow = 0;
+
+    /** Session object name patterns that are given a time-to-live. */
+    private Pattern[] attributeTtlPatterns = new Pattern[0];
+
+    /** Time-to-live in seconds for each of the session object name patterns. */
+    private int[] attributeTtls = new int[0];
+
+    /**
+     * Enables TTL expiry mode, where all session columns are written with a
+     * time-to-live equal to the session timeout, so that Cassandra expires
+     * inactive sessions itself.
+     */
+    private boolean ttlExpiry = false;
+
+    /**
+     * Enables the expiry index, where sessions are filed under time-bucket
+     * rows by their expiry deadline, and the purge scan only reads the
+     * buckets that have become due.
+     */
+    private boolean expiryIndex = false;
+
+    /** Width in seconds of the expiry index buckets. */
+    private long expiryBucket = 60;
+
+    /**
+     * Enables sticky-session mode, where the node that created a session
+     * serves it from memory and persists changes to Cassandra asynchronously.
+     */
+    private boolean sticky = false;
+
+    /**
+     * Routing suffix for sessions created on this node in sticky-session
+     * mode (defaults to the jvmRoute of the Tomcat engine).
+     */
+    private String jvmRoute = null;
+
+    /**
+     * Interval in seconds between persisting changed sessions to Cassandra in
+     * sticky-session mode (0 persists changes at the end of each request).
+     */
+    private long persistInterval = 0;
+
     /**
      * Creates a new Cassandra configuration container.
      */
@@ -339,4 +505,526 @@ public class CassandraConfig {
     public void setPurgeInterval(long interval) {
     	this.purgeInterval = interval;
     }
-}
\ No newline at end of file
+
+    /**
+     * Returns the maximum number of expired sessions deleted per second.
+     * @return the purge rate (0 for no limit).
+     */
+    public int getPurgeRate() {
+        return this.purgeRate;
+    }
+
+    /**
+     * Sets the maximum number of expired sessions deleted per second.
+     * @param rate the purge rate (0 for no limit).
+     */
+    public void setPurgeRate(int rate) {
+        this.purgeRate = rate;
+    }
+
+    /**
+     * Returns the maximum number of expired sessions deleted in one batch.
+     * @return the purge batch size.
+     */
+    public int getPurgeBatch() {
+        return this.purgeBatch;
+    }
+
+    /**
+     * Sets the maximum number of expired sessions deleted in one batch.
+     * @param batch the purge batch size.
+     */
+    public void setPurgeBatch(int batch) {
+        this.purgeBatch = batch;
+    }
+
+    /**
+     * Tells you if the purge of expired sessions is partitioned.
+     * @return true if the purge is shared between all Tomcat nodes.
+     */
+    public boolean isPartitionedPurge() {
+        return this.partitionedPurge;
+    }
+
+    /**
+     * Enables/disables partitioning of the purge of expired sessions.
+     * @param partitioned true to share the purge between all Tomcat nodes.
+     */
+    public void setPartitionedPurge(boolean partitioned) {
+        this.partitionedPurge = partitioned;
+    }
+
+    /**
+     * Tells you if listeners are notified of purged sessions.
+     * @return true if listeners are notified of purged sessions.
+     */
+    public boolean isExpiryListeners() {
+        return this.expiryListeners;
+    }
+
+    /**
+     * Enables/disables notification of listeners of purged sessions.
+     * @param listeners true to notify listeners of purged sessions.
+     */
+    public void setExpiryListeners(boolean listeners) {
+        this.expiryListeners = listeners;
+    }
+
+    /**
+     * Returns the maximum number of purged sessions queued for notification.
+     * @return the expiry queue size.
+     */
+    public int getExpiryQueueSize() {
+        return this.expiryQueueSize;
+    }
+
+    /**
+     * Sets the maximum number of purged sessions queued for notification.
+     * @param size the expiry queue size.
+     */
+    public void setExpiryQueueSize(int size) {
+        this.expiryQueueSize = size;
+    }
+
+    /**
+     * Returns the number of session IDs read per query when enumerating
+     * sessions.
+     * @return the session page size.
+     */
+    public int getSessionPageSize() {
+        return this.sessionPageSize;
+    }
+
+    /**
+     * Sets the number of session IDs read per query when enumerating
+     * sessions.
+     * @param size the session page size.
+     */
+    public void setSessionPageSize(int size) {
+        this.sessionPageSize = size;
+    }
+
+    /**
+     * Returns the number of token ranges scanned at the same time by full
+     * scans of the sessions.
+     * @return the scan parallelism.
+     */
+    public int getScanParallelism() {
+        return this.scanParallelism;
+    }
+
+    /**
+     * Sets the number of token ranges scanned at the same time by full
+     * scans of the sessions.
+     * @param parallelism the scan parallelism (1 to scan by a single thread).
+     */
+    public void setScanParallelism(int parallelism) {
+        this.scanParallelism = parallelism;
+    }
+
+    /**
+     * Tells you if an approximate count of the active sessions is kept.
+     * @return true if the active sessions are counted approximately.
+     */
+    public boolean isApproximateCount() {
+        return this.approximateCount;
+    }
+
+    /**
+     * Keeps an approximate count of the active sessions.
+     * @param approximate true to count the active sessions approximately.
+     */
+    public void setApproximateCount(boolean approximate) {
+        this.approximateCount = approximate;
+    }
+
+    /**
+     * Returns the interval between updates of the approximate count.
+     * @return the count interval in seconds.
+     */
+    public long getCountInterval() {
+        return this.countInterval;
+    }
+
+    /**
+     * Sets the interval between updates of the approximate count.
+     * @param interval the count interval in seconds.
+     */
+    public void setCountInterval(long interval) {
+        this.countInterval = interval;
+    }
+
+    /**
+     * Returns the number of sessions leased from the shared session quota
+     * at a time.
+     * @return the quota block size.
+     */
+    public int getQuotaBlock() {
+        return this.quotaBlock;
+    }
+
+    /**
+     * Sets the number of sessions leased from the shared session quota at a
+     * time.
+     * @param block the quota block size.
+     */
+    public void setQuotaBlock(int block) {
+        this.quotaBlock = block;
+    }
+
+    /**
+     * Returns the length of the time windows of the shared session quota.
+     * @return the quota interval in seconds.
+     */
+    public long getQuotaInterval() {
+        return this.quotaInterval;
+    }
+
+    /**
+     * Sets the length of the time windows of the shared session quota.
+     * @param interval the quota interval in seconds.
+     */
+    public void setQuotaInterval(long interval) {
+        this.quotaInterval = interval;
+    }
+
+    /**
+     * Returns the maximum number of sessions returned by findSessions().
+     * @return the limit (0 for no limit).
+     */
+    public int getFindSessionsLimit() {
+        return this.findSessionsLimit;
+    }
+
+    /**
+     * Sets the maximum number of sessions returned by findSessions().
+     * @param limit the limit (0 for no limit).
+     */
+    public void setFindSessionsLimit(int limit) {
+        this.findSessionsLimit = limit;
+    }
+
+    /**
+     * Tells you if lazy deserialisation of session objects is enabled.
+     * @return true if lazy deserialisation is enabled.
+     */
+    public boolean isLazyDeserialisation() {
+        return this.lazyDeserialisation;
+    }
+
+    /**
+     * Enables/disables lazy deserialisation of session objects.
+     * @param lazy true to enable lazy deserialisation.
+     */
+    public void setLazyDeserialisation(boolean lazy) {
+        this.lazyDeserialisation = lazy;
+    }
+
+    /**
+     * Returns the comma-separated list of interfaces that lazy session
+     * object proxies may implement.
+     * @return comma-separated list of interface class names.
+     */
+    public String getLazyInterfaces() {
+        return this.lazyInterfaces;
+    }
+
+    /**
+     * Sets the comma-separated list of interfaces that lazy session object
+     * proxies may implement.
+     * @param interfaces comma-separated list of interface class names.
+     */
+    public void setLazyInterfaces(String interfaces) {
+        this.lazyInterfaces = interfaces;
+    }
+
+    /**
+     * Tells you if the per-session attribute index is enabled.
+     * @return true if the attribute index is enabled.
+     */
+    public boolean isAttributeIndex() {
+        return this.attributeIndex;
+    }
+
+    /**
+     * Enables/disables the per-session attribute index.
+     * @param index true to enable the attribute index.
+     */
+    public void setAttributeIndex(boolean index) {
+        this.attributeIndex = index;
+    }
+
+    /**
+     * Tells you if the attribute index of sessions written by this node is
+     * dropped when the attribute index is turned off.
+     * @return true if the attribute index is dropped.
+     */
+    public boolean isDropAttributeIndex() {
+        return this.dropAttributeIndex;
+    }
+
+    /**
+     * Enables/disables dropping the attribute index of sessions written by
+     * this node when the attribute index is turned off.
+     * @param drop true to drop the attribute index.
+     */
+    public void setDropAttributeIndex(boolean drop) {
+        this.dropAttributeIndex = drop;
+    }
+
+    /**
+     * Returns the size of the node-local authentication cache.
+     * @return maximum number of cached sessions (0 if disabled).
+     */
+    public int getAuthenticationCacheSize() {
+        return this.authenticationCacheSize;
+    }
+
+    /**
+     * Sets the size of the node-local authentication cache.
+     * @param size maximum number of cached sessions (0 to disable).
+     */
+    public void setAuthenticationCacheSize(int size) {
+        this.authenticationCacheSize = size;
+    }
+
+    /**
+     * Returns the maximum size of the near cache.
+     * @return maximum size of the near cache in kilobytes (0 if disabled).
+     */
+    public long getNearCacheSize() {
+        return this.nearCacheSize;
+    }
+
+    /**
+     * Sets the maximum size of the near cache.
+     * @param size maximum size of the near cache in kilobytes (0 to disable).
+     */
+    public void setNearCacheSize(long size) {
+        this.nearCacheSize = size;
+    }
+
+    /**
+     * Returns the maximum size of the disk cache.
+     * @return maximum size of the disk cache in kilobytes (0 if disabled).
+     */
+    public int getDiskCacheSize() {
+        return this.diskCacheSize;
+    }
+
+    /**
+     * Sets the maximum size of the disk cache.
+     * @param size maximum size of the disk cache in kilobytes (0 to disable).
+     */
+    public void setDiskCacheSize(int size) {
+        this.diskCacheSize = size;
+    }
+
+    /**
+     * Returns the directory holding the disk cache files.
+     * @return the disk cache directory, or null if not configured.
+     */
+    public String getDiskCacheDirectory() {
+        return this.diskCacheDirectory;
+    }
+
+    /**
+     * Sets the directory holding the disk cache files.
+     * @param directory disk cache directory.
+     */
+    public void setDiskCacheDirectory(String directory) {
+        this.diskCacheDirectory = directory;
+    }
+
+    /**
+     * Returns the size of the write-ahead journal.
+     * @return size of the journal in kilobytes (0 if disabled).
+     */
+    public int getJournalSize() {
+        return this.journalSize;
+    }
+
+    /**
+     * Sets the size of the write-ahead journal.
+     * @param size size of the journal in kilobytes (0 to disable).
+     */
+    public void setJournalSize(int size) {
+        this.journalSize = size;
+    }
+
+    /**
+     * Returns the directory holding the journal file.
+     * @return the journal directory, or null if not configured.
+     */
+    public String getJournalDirectory() {
+        return this.journalDirectory;
+    }
+
+    /**
+     * Sets the directory holding the journal file.
+     * @param directory journal directory.
+     */
+    public void setJournalDirectory(String directory) {
+        this.journalDirectory = directory;
+    }
+
+    /**
+     * Returns the write coalescing window.
+     * @return the coalescing window in milliseconds (0 if disabled).
+     */
+    public long getCoalesceWindow() {
+        return this.coalesceWindow;
+    }
+
+    /**
+     * Sets the write coalescing window.
+     * @param window coalescing window in milliseconds (0 to disable).
+     */
+    public void setCoalesceWindow(long window) {
+        this.coalesceWindow = window;
+    }
+
+    /**
+     * Returns the time-to-live configured for a session object.
+     * @param name Session object name.
+     * @return the time-to-live in seconds (0 if the object does not expire).
+     */
+    public int getAttributeTtl(String name) {
+        for (int i=0; i<this.attributeTtlPatterns.length; i++) {
+            if (this.attributeTtlPatterns[i].matcher(name).matches()) return this.attributeTtls[i];
+        }
+        return 0;
+    }
+
+    /**
+     * Sets the time-to-live of session objects, as a comma-separated list of
+     * pattern=seconds pairs, where '*' in a pattern matches any characters.
+     * The first matching pattern applies.
+     * @param ttls the session object time-to-live rules.
+     */
+    public void setAttributeTtl(String ttls) {
+        final List<Pattern> patterns = new ArrayList<Pattern>();
+        final List<Integer> seconds = new ArrayList<Integer>();
+        final StringTokenizer tokens = new StringTokenizer(ttls, ",");
+        while (tokens.hasMoreTokens()) {
+            final String token = tokens.nextToken().trim();
+            if (token.length() == 0) continue;
+            final int separator = token.lastIndexOf('=');
+            try {
+                final int ttl = Integer.parseInt(token.substring(separator+1).trim());
+                if (separator <= 0 || ttl < 0) throw new NumberFormatException();
+                final StringBuffer regex = new StringBuffer();
+                final StringTokenizer parts = new StringTokenizer(token.substring(0, separator).trim(), "*", true);
+                while (parts.hasMoreTokens()) {
+                    final String part = parts.nextToken();
+                    regex.append(part.equals("*") ? ".*" : Pattern.quote(part));
+                }
+                patterns.add(Pattern.compile(regex.toString()));
+                seconds.add(Integer.valueOf(ttl));
+            }
+            catch (NumberFormatException e) {
+                cat.error("Ignoring invalid session object time-to-live "+token);
+            }
+        }
+        final int[] values = new int[seconds.size()];
+        for (int i=0; i<values.length; i++) values[i] = seconds.get(i).intValue();
+        this.attributeTtlPatterns = patterns.toArray(new Pattern[patterns.size()]);
+        this.attributeTtls = values;
+    }
+
+    /**
+     * Tells you if TTL expiry mode is enabled.
+     * @return true if session columns expire after the session timeout.
+     */
+    public boolean isTtlExpiry() {
+        return this.ttlExpiry;
+    }
+
+    /**
+     * Enables/disables TTL expiry mode.
+     * @param ttlExpiry true to let Cassandra expire inactive sessions.
+     */
+    public void setTtlExpiry(boolean ttlExpiry) {
+        this.ttlExpiry = ttlExpiry;
+    }
+
+    /**
+     * Tells you if the expiry index is enabled.
+     * @return true if expired sessions are found through the expiry index.
+     */
+    public boolean isExpiryIndex() {
+        return this.expiryIndex;
+    }
+
+    /**
+     * Enables/disables the expiry index.
+     * @param expiryIndex true to find expired sessions through the index.
+     */
+    public void setExpiryIndex(boolean expiryIndex) {
+        this.expiryIndex = expiryIndex;
+    }
+
+    /**
+     * Returns the width of the expiry index buckets.
+     * @return the bucket width in seconds.
+     */
+    public long getExpiryBucket() {
+        return this.expiryBucket;
+    }
+
+    /**
+     * Sets the width of the expiry index buckets.
+     * @param seconds the bucket width in seconds.
+     */
+    public void setExpiryBucket(long seconds) {
+        this.expiryBucket = seconds;
+    }
+
+    /**
+     * Tells you if sticky-session mode is enabled.
+     * @return true if sticky-session mode is enabled.
+     */
+    public boolean isSticky() {
+        return this.sticky;
+    }
+
+    /**
+     * Enables/disables sticky-session mode.
+     * @param sticky true to enable sticky-session mode.
+     */
+    public void setSticky(boolean sticky) {
+        this.sticky = sticky;
+    }
+
+    /**
+     * Returns the configured routing suffix for this node.
+     * @return the routing suffix, or null if not configured.
+     */
+    public String getJvmRoute() {
+        return this.jvmRoute;
+    }
+
+    /**
+     * Sets the routing suffix for this node.
+     * @param route routing suffix.
+     */
+    public void setJvmRoute(String route) {
+        this.jvmRoute = route;
+    }
+
+    /**
+     * Returns the interval between persisting changed sessions.
+     * @return interval in seconds (0 if persisted at the end of each request).
+     */
+    public long getPersistInterval() {
+        return this.persistInterval;
+    }
+
+    /**
+     * Sets the interval between persisting changed sessions.
+     * @param interval interval in seconds (0 to persist at end of request).
+     */
+    public void setPersistInterval(long interval) {
+        this.persistInterval = interval;
+    }
+}
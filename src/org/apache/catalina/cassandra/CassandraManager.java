@@ -3,6 +3,9 @@ package org.apache.catalina.cassandra;
 
 import java.util.*;
 
+import java.io.File;
+import java.io.IOException;
+
 import org.apache.log4j.Logger;
 
 import org.apache.catalina.Container;
@@ -34,6 +37,26 @@ public class CassandraManager {
     private CassandraClient client;
     /** Tomcat session manager. */
     private TomcatManager tomcat;
+    /** Node-local authentication state cache (null if disabled). */
+    private AuthenticationCache authentication = null;
+    /** Node-local near cache for session objects (null if disabled). */
+    private NearCache near = null;
+    /** Node-local disk cache for session objects (null if disabled). */
+    private DiskCache disk = null;
+    /** Node-local write-ahead journal (null if disabled). */
+    private Journal journal = null;
+    /** Node-wide write coalescer (null if disabled). */
+    private WriteCoalescer coalescer = null;
+    /** In-memory store for sessions owned by this node (null unless sticky). */
+    private LocalSessionStore local = null;
+    /** Purger of expired sessions (null if purging is disabled). */
+    private SessionPurger purger = null;
+    /** Notifier of purged sessions (null if disabled). */
+    private ExpiryNotifier notifier = null;
+    /** Approximate counter of active sessions (null if disabled). */
+    private SessionCounter counter = null;
+    /** Shared quota that enforces the maximum number of active sessions. */
+    private SessionQuota quota = null;
     
     /**
      * Creates a new cassandra manager.
@@ -41,6 +64,165 @@ public class CassandraManager {
     public CassandraManager(TomcatManager tomcat) {
         this.tomcat = tomcat;
         this.client = new CassandraClient(tomcat.getConfig());
+        final int size = tomcat.getConfig().getAuthenticationCacheSize();
+        if (size > 0) {
+            this.authentication = new AuthenticationCache(size);
+        }
+        final long capacity = tomcat.getConfig().getNearCacheSize();
+        if (capacity > 0) {
+            this.near = new NearCache(capacity * 1024L);
+        }
+        final String name = "sessions" + tomcat.getContainerName().replaceAll("[^A-Za-z0-9]", "_");
+        final int diskSize = tomcat.getConfig().getDiskCacheSize();
+        if (diskSize > 0) {
+            final File directory = getDirectory(tomcat.getConfig().getDiskCacheDirectory());
+            try {
+                this.disk = new DiskCache(directory, name, diskSize * 1024);
+            }
+            catch (IOException e) {
+                cat.error("Unable to open disk cache in "+directory+" - running without disk cache: "+e.getMessage(), e);
+            }
+        }
+        final int journalSize = tomcat.getConfig().getJournalSize();
+        if (journalSize > 0) {
+            final File directory = getDirectory(tomcat.getConfig().getJournalDirectory());
+            try {
+                this.journal = new Journal(this, directory, name, journalSize * 1024);
+            }
+            catch (IOException e) {
+                cat.error("Unable to open journal in "+directory+" - running without journal: "+e.getMessage(), e);
+            }
+        }
+        final long window = tomcat.getConfig().getCoalesceWindow();
+        if (window > 0) {
+            this.coalescer = new WriteCoalescer(this.client, window);
+        }
+        if (tomcat.getConfig().isSticky()) {
+            final String route = tomcat.getJvmRoute();
+            if (route == null || route.length() == 0) {
+                cat.error("Sticky-session mode requires a jvmRoute - running without sticky sessions");
+            }
+            else {
+                this.local = new LocalSessionStore(this, tomcat.getSerialiser(), route);
+            }
+        }
+        final long interval = tomcat.getConfig().getPurgeInterval();
+        if (interval > 0 && tomcat.getConfig().isExpiryListeners()) {
+            this.notifier = new ExpiryNotifier(this.client, tomcat, tomcat.getConfig().getExpiryQueueSize());
+        }
+        final String route = tomcat.getJvmRoute();
+        final String node = (route != null && route.length() > 0 ? route : generateUniqueID()) + "/" + tomcat.getContainerName();
+        if (interval > 0) {
+            this.purger = new SessionPurger(this, tomcat.getContainerName(), interval, tomcat.getConfig().getPurgeRate(), tomcat.getConfig().getPurgeBatch());
+            if (tomcat.getConfig().isPartitionedPurge()) {
+                this.purger.partition(node);
+            }
+        }
+        this.quota = new SessionQuota(this.client, tomcat, tomcat.getConfig().getQuotaBlock(), tomcat.getConfig().getQuotaInterval());
+        if (tomcat.getConfig().isApproximateCount()) {
+            this.counter = new SessionCounter(this.client, tomcat.getContainerName(), node, tomcat.getConfig().getCountInterval(), tomcat.getConfig().getTimeout());
+        }
+    }
+
+    /**
+     * Returns the directory for node-local files.
+     * @param directory Configured directory (or null).
+     * @return the configured directory, or the "cassandra" directory under
+     *    the Tomcat work directory.
+     */
+    private static File getDirectory(String directory) {
+        if (directory != null) return new File(directory);
+        final String base = System.getProperty("catalina.base", System.getProperty("java.io.tmpdir"));
+        return new File(new File(base, "work"), "cassandra");
+    }
+
+    /**
+     * Returns the Cassandra client API wrapper.
+     * @return the Cassandra client API wrapper.
+     */
+    CassandraClient getClient() {
+        return this.client;
+    }
+
+    /**
+     * Returns the node-local authentication state cache.
+     * @return the authentication state cache, or null if disabled.
+     */
+    AuthenticationCache getAuthenticationCache() {
+        return this.authentication;
+    }
+
+    /**
+     * Returns the node-local near cache for session objects.
+     * @return the near cache, or null if disabled.
+     */
+    NearCache getNearCache() {
+        return this.near;
+    }
+
+    /**
+     * Returns the node-local disk cache for session objects.
+     * @return the disk cache, or null if disabled.
+     */
+    DiskCache getDiskCache() {
+        return this.disk;
+    }
+
+    /**
+     * Returns the node-local write-ahead journal.
+     * @return the journal, or null if disabled.
+     */
+    Journal getJournal() {
+        return this.journal;
+    }
+
+    /**
+     * Returns the node-wide write coalescer.
+     * @return the write coalescer, or null if disabled.
+     */
+    WriteCoalescer getCoalescer() {
+        return this.coalescer;
+    }
+
+    /**
+     * Returns the in-memory store for sessions owned by this node.
+     * @return the local session store, or null if not in sticky-session mode.
+     */
+    LocalSessionStore getLocalStore() {
+        return this.local;
+    }
+
+    /**
+     * Returns the purger of expired sessions.
+     * @return the session purger, or null if purging is disabled.
+     */
+    SessionPurger getPurger() {
+        return this.purger;
+    }
+
+    /**
+     * Returns the notifier of purged sessions.
+     * @return the expiry notifier, or null if disabled.
+     */
+    ExpiryNotifier getNotifier() {
+        return this.notifier;
+    }
+
+    /**
+     * Returns the approximate counter of active sessions.
+     * @return the session counter, or null if disabled.
+     */
+    SessionCounter getCounter() {
+        return this.counter;
+    }
+
+    /**
+     * Returns the shared quota that enforces the maximum number of active
+     * sessions.
+     * @return the session quota.
+     */
+    SessionQuota getQuota() {
+        return this.quota;
     }
     
     /**
@@ -52,6 +234,17 @@ public class CassandraManager {
         final UUID uuid = UUID.randomUUID();
         return "OJ" + uuid.toString();
     }
+
+    /**
+     * Generates a new unique session ID. In sticky-session mode the session
+     * ID carries the routing suffix for this node.
+     * @return New unique session id.
+     */
+    String generateSessionID() {
+        final String sid = CassandraManager.generateUniqueID();
+        if (this.local == null) return sid;
+        return sid + "." + this.local.getRoute();
+    }
     
     /**
      * Adds a new session.
@@ -59,8 +252,8 @@ public class CassandraManager {
      * @return Session instance.
      */
     CassandraSession addSession(String sid) {
-        client.addSession(sid);
-        return new CassandraSession(client, sid);
+        this.created(sid, client.addSession(sid));
+        return new CassandraSession(this, sid);
     }
 
     /**
@@ -68,9 +261,21 @@ public class CassandraManager {
      * @return Session instance.
      */
    public CassandraSession addSession() {
-        final String sid = CassandraManager.generateUniqueID();
-        client.addSession(sid);
-        return new CassandraSession(client, sid);
+        final String sid = this.generateSessionID();
+        this.created(sid, client.addSession(sid));
+        return new CassandraSession(this, sid);
+    }
+
+    /**
+     * Sets up the in-memory copy of a session created by this node.
+     * @param sid Session ID.
+     * @param version Initial session version stamp.
+     */
+    private void created(String sid, String version) {
+        if (this.counter != null) this.counter.add(sid);
+        if (this.local != null && this.local.isOwner(sid)) {
+            this.local.get(sid).created(version);
+        }
     }
 
     /**
@@ -79,6 +284,31 @@ public class CassandraManager {
      */
     public void removeSession(String sid) {
         client.removeSession(sid);
+        this.forget(sid);
+    }
+
+    /**
+     * Removes any number of expired sessions in a single batch mutation.
+     * @param sids Session IDs.
+     * @param bucket Expiry index bucket the sessions were found in (-1 if
+     *    they were not found through the index).
+     */
+    void removeSessions(List<String> sids, long bucket) {
+        if (this.notifier != null) this.notifier.expired(sids);
+        client.removeSessions(sids, bucket);
+        for (int i=0; i<sids.size(); i++) this.forget(sids.get(i));
+    }
+
+    /**
+     * Drops a removed session from all node-local caches and stores.
+     * @param sid Session ID.
+     */
+    private void forget(String sid) {
+        if (this.authentication != null) this.authentication.remove(sid);
+        if (this.near != null) this.near.remove(sid);
+        if (this.disk != null) this.disk.remove(sid);
+        if (this.journal != null) this.journal.remove(sid);
+        if (this.local != null) this.local.remove(sid);
     }
 
     /**
@@ -87,7 +317,7 @@ public class CassandraManager {
      * @return Session instance.
      */
     public CassandraSession getSession(String sid) {
-        return new CassandraSession(client, sid);
+        return new CassandraSession(this, sid);
     }
     
     /**
@@ -99,6 +329,24 @@ public class CassandraManager {
         return client.getSessions();
     }
 
+    /**
+     * Iterates over all existing sessions, reading the session IDs from
+     * Cassandra a page at a time.
+     * @return iterator over session IDs.
+     */
+    Iterator<String> iterateSessions() {
+        return client.iterateSessions(tomcat.getConfig().getSessionPageSize());
+    }
+
+    /**
+     * Scans all existing sessions, handing the session IDs to a consumer a
+     * page at a time, on the calling thread.
+     * @param consumer Receives the session IDs.
+     */
+    void scanSessions(TokenRangeScanner.Consumer consumer) {
+        client.scanSessions(consumer);
+    }
+
     /**
      * Provides a list of expird sessions.
      * @return list of IDs of expired sessions.
@@ -107,6 +355,78 @@ public class CassandraManager {
         return client.getExpiredSessions();
     }
 
+    /**
+     * Provides a list of the expired sessions that are not in the expiry
+     * index, and that a purger is responsible for.
+     * @param node ID of the purger (null if the purge is not partitioned).
+     * @param purgers IDs of all live purgers, in order (null if the purge
+     *    is not partitioned).
+     * @return list of IDs of expired sessions.
+     */
+    List<String> getUnindexedExpiredSessions(String node, List<String> purgers) {
+        return client.getUnindexedExpiredSessions(node, purgers);
+    }
+
+    /**
+     * Provides the due expiry index buckets that a purger should handle.
+     * @param node ID of the purger (null if the purge is not partitioned).
+     * @param purgers IDs of all live purgers, in order (null if the purge
+     *    is not partitioned).
+     * @param ttl Time-to-live in seconds of the purger's claim on a bucket.
+     * @return the bucket numbers, in order.
+     */
+    List<Long> getDueBuckets(String node, List<String> purgers, int ttl) {
+        return client.getDueBuckets(node, purgers, ttl);
+    }
+
+    /**
+     * Claims (or renews the claim on) an expiry index bucket for a purger
+     * in a partitioned purge.
+     * @param bucket Bucket number.
+     * @param node ID of the purger.
+     * @param ttl Time-to-live of the claim in seconds.
+     * @return true if the purger may handle the bucket, false if not.
+     */
+    boolean claimBucket(long bucket, String node, int ttl) {
+        return client.claimBucket(bucket, node, ttl);
+    }
+
+    /**
+     * Provides a list of the expired sessions in an expiry index bucket.
+     * @param bucket Bucket number.
+     * @return list of IDs of expired sessions.
+     */
+    List<String> getExpiredSessions(long bucket) {
+        return client.getExpiredSessions(bucket);
+    }
+
+    /**
+     * Releases an expiry index bucket once its expired sessions have been
+     * removed.
+     * @param bucket Bucket number.
+     * @param node ID of the purger (null if the purge is not partitioned).
+     */
+    void releaseBucket(long bucket, String node) {
+        client.releaseBucket(bucket, node);
+    }
+
+    /**
+     * Moves the expiry index cursor past the buckets that are done.
+     */
+    void moveExpiryCursor() {
+        client.moveExpiryCursor();
+    }
+
+    /**
+     * Registers a heartbeat for a purger in a partitioned purge.
+     * @param node ID of the purger.
+     * @param ttl Time-to-live of the heartbeat in seconds.
+     * @return IDs of all live purgers, in order.
+     */
+    List<String> getPurgers(String node, int ttl) {
+        return client.getPurgers(node, ttl);
+    }
+
     /**
      * Returns the number of sessions.
      * @return the number of sessions.
@@ -119,6 +439,13 @@ public class CassandraManager {
      * Shuts down this cassandra manager.
      */
     public void unload() {
+        if (this.purger != null) this.purger.shutdown();
+        if (this.notifier != null) this.notifier.shutdown();
+        if (this.counter != null) this.counter.shutdown();
+        if (this.local != null) this.local.shutdown();
+        if (this.journal != null) this.journal.close();
+        if (this.coalescer != null) this.coalescer.shutdown();
+        if (this.disk != null) this.disk.close();
         this.client.shutdown();
     }
     
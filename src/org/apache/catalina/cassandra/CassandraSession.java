@@ -3,8 +3,13 @@ package org.apache.catalina.cassandra;
 
 import java.util.*;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.security.Principal;
 
+import me.prettyprint.hector.api.beans.HColumn;
+
 import org.apache.catalina.cassandra.utils.*;
 import org.apache.log4j.Logger;
 
@@ -30,21 +35,64 @@ public class CassandraSession {
     /** Log4J debug setting for class CassandraSession. */
     private final static boolean debug = cat.isDebugEnabled();
 
+    /** Cassandra manager for the web application. */
+    private CassandraManager manager;
+    
     /** Cassandra client API wrapper. */
     private CassandraClient client;
     
     /** Session ID. */
     private String sid;
+
+    /**
+     * Authentication state, validated against the authentication version
+     * stamp the first time it is used by this session instance.
+     */
+    private AuthenticationCache.Entry authentication = null;
+
+
+    /**
+     * Session version stamp, read from Cassandra the first time a session
+     * object is read through the near cache by this session instance.
+     */
+    private String version = null;
+
+    /** Flags that the session version stamp has been read. */
+    private boolean versionLoaded = false;
+
+    /**
+     * In-memory copy of the session, if the session is owned by this node in
+     * sticky-session mode (null otherwise).
+     */
+    private LocalSessionStore.LocalSession local = null;
+
+    /**
+     * Time-to-live in seconds of session objects, as set through the API by
+     * this session instance. These override the configured time-to-live.
+     */
+    private Map<String,Integer> ttls = null;
+
+    /**
+     * Times when session objects written or read by this session instance
+     * expire, keyed by name. Session objects without a time-to-live have no
+     * entry.
+     */
+    private Map<String,Long> deadlines = null;
     
     /**
      * Creates a new cassandra session container. The underlying session may
      * or may not exist.
-     * @param client Cassandra client API wrapper.
+     * @param manager Cassandra manager for the web application.
      * @param sid Session ID..
      */
-    CassandraSession(CassandraClient client, String sid) {
-        this.client = client;
+    CassandraSession(CassandraManager manager, String sid) {
+        this.manager = manager;
+        this.client = manager.getClient();
         this.sid = sid;
+        final LocalSessionStore store = manager.getLocalStore();
+        if (store != null && store.isOwner(sid)) {
+            this.local = store.get(sid);
+        }
     }
     
     /** ================================================================== **/
@@ -69,15 +117,20 @@ public class CassandraSession {
      * @param authType session authentication type.
      */
     void setAuthType(String authType) {
-        this.client.setSessionValue(sid, "AuthType", authType);
+        this.client.setAuthType(sid, authType);
+        this.invalidateAuthentication();
     }
 
     /**
      * Obtains the session authentication type.
+     * @param serialiser Serialiser for session objects.
      * @return session authentication type.
      */
-    String getAuthType() {
-        return this.client.getSessionValueAsString(sid, "AuthType");
+    String getAuthType(SessionObjectSerialiser serialiser) {
+        if (this.manager.getAuthenticationCache() == null) {
+            return this.client.getSessionValueAsString(sid, "AuthType");
+        }
+        return this.getAuthentication(serialiser).getAuthType();
     }
 
     /**
@@ -85,7 +138,8 @@ public class CassandraSession {
      * @param principal the pricipal (authenticated client identification).
      */
     void setPrincipal(Principal principal, SessionObjectSerialiser serialiser) {
-        this.client.addSessionObject(sid, "Principal", principal, serialiser);
+        this.client.setPrincipal(sid, principal, serialiser);
+        this.invalidateAuthentication();
     }
 
     /**
@@ -94,7 +148,45 @@ public class CassandraSession {
      * @return the pricipal (authenticated client identification).
      */
     Principal getPrincipal(SessionObjectSerialiser serialiser) {
-        return (Principal)this.client.getSessionObject(sid, "Principal", serialiser);
+        if (this.manager.getAuthenticationCache() == null) {
+            return (Principal)this.client.getSessionObject(sid, "Principal", serialiser);
+        }
+        return this.getAuthentication(serialiser).getPrincipal();
+    }
+
+    /**
+     * Obtains the authentication state for this session. The state is taken
+     * from the node-local authentication cache when the cached entry has the
+     * same authentication version stamp as Cassandra, so that only the
+     * (small) version stamp has to be read. Once validated, the state is
+     * kept for the lifetime of this session instance (normally a request).
+     * @param serialiser Serialiser for session objects.
+     * @return the authentication state for this session.
+     */
+    private AuthenticationCache.Entry getAuthentication(SessionObjectSerialiser serialiser) {
+        if (this.authentication != null) return this.authentication;
+
+        final AuthenticationCache cache = this.manager.getAuthenticationCache();
+        final String version = this.client.getSessionValueAsString(sid, "AuthVersion");
+        AuthenticationCache.Entry entry = cache.get(sid);
+        if (entry == null || !entry.isVersion(version)) {
+            if (debug) cat.debug("["+sid+"] Loading authentication state for version "+version);
+            final String authType = this.client.getSessionValueAsString(sid, "AuthType");
+            final Principal principal = (Principal)this.client.getSessionObject(sid, "Principal", serialiser);
+            entry = new AuthenticationCache.Entry(version, authType, principal);
+            cache.put(sid, entry);
+        }
+        this.authentication = entry;
+        return entry;
+    }
+
+    /**
+     * Drops any cached authentication state for this session.
+     */
+    private void invalidateAuthentication() {
+        this.authentication = null;
+        final AuthenticationCache cache = this.manager.getAuthenticationCache();
+        if (cache != null) cache.remove(sid);
     }
 
     /**
@@ -102,7 +194,7 @@ public class CassandraSession {
      * @param valid Session validity flag.
      */
     void setValid(boolean valid) {
-        this.client.setSessionValue(sid, "Valid", Boolean.toString(valid));
+        this.setString("Valid", Boolean.toString(valid));
     }
 
     /**
@@ -110,7 +202,7 @@ public class CassandraSession {
      * @return the session validity flag.
      */
     boolean isValid() {
-        final String valid = this.client.getSessionValueAsString(sid, "Valid");
+        final String valid = this.getString("Valid");
         if (valid == null) return false;
         return Boolean.parseBoolean(valid);
     }
@@ -119,7 +211,7 @@ public class CassandraSession {
      * Expires the session.
      */
     void expire() {
-        this.client.removeSession(sid);
+        this.manager.removeSession(sid);
     }
 
     /**
@@ -133,16 +225,105 @@ public class CassandraSession {
      * Marks the session as accessed.
      */
     void access() {
+        final SessionCounter counter = this.manager.getCounter();
+        if (counter != null) counter.add(sid);
+        if (this.local != null) {
+            // One read of the version stamp tells us if another node has
+            // written to the session since we last saw it (after failover).
+            if (this.local.validate(this.client.getSessionVersion(sid))) {
+                final long now = System.currentTimeMillis();
+                final long last = this.getLong("LastEndAccessed");
+                this.local.setValue("LastAccessed", Long.valueOf(now));
+                this.local.setValue("LastAccessInterval", Long.valueOf(now - last));
+                return;
+            }
+            if (debug) cat.debug("["+sid+"] Session removed by another node");
+            this.manager.getLocalStore().remove(sid);
+            this.local = null;
+        }
         this.client.access(sid);
     }
 
     /**
-     * Flags end of session access.
+     * Flags end of session access. In sticky-session mode the access
+     * timestamps are updated in memory, and the session is queued for
+     * persisting to Cassandra.
      */
     void endAccess() {
+        if (this.local != null) {
+            final Long now = Long.valueOf(System.currentTimeMillis());
+            this.local.setValue("New", "false");
+            this.local.setValue("LastAccessed", now);
+            this.local.setValue("LastEndAccessed", now);
+            this.manager.getLocalStore().endAccess(this.local);
+            return;
+        }
         this.client.endAccess(sid);
     }
 
+    /**
+     * Obtains a session value, from memory if the session is owned by this
+     * node in sticky-session mode.
+     * @param name Session value name.
+     * @return Session value, or null.
+     */
+    private String getString(String name) {
+        if (this.local == null) {
+            return this.client.getSessionValueAsString(sid, name);
+        }
+        if (this.local.hasValue(name)) {
+            return (String)this.local.getValue(name);
+        }
+        final String value = this.client.getSessionValueAsString(sid, name);
+        this.local.loadValue(name, value);
+        return value;
+    }
+
+    /**
+     * Obtains a numeric session value, from memory if the session is owned
+     * by this node in sticky-session mode.
+     * @param name Session value name.
+     * @return Session value.
+     */
+    private long getLong(String name) {
+        if (this.local == null) {
+            return this.client.getSessionValueAsLong(sid, name);
+        }
+        if (this.local.hasValue(name)) {
+            final Long value = (Long)this.local.getValue(name);
+            return (value != null ? value.longValue() : 0L);
+        }
+        final long value = this.client.getSessionValueAsLong(sid, name);
+        this.local.loadValue(name, Long.valueOf(value));
+        return value;
+    }
+
+    /**
+     * Stores a session value, in memory if the session is owned by this node
+     * in sticky-session mode.
+     * @param name Session value name.
+     * @param value Session value.
+     */
+    private void setString(String name, String value) {
+        if (this.local != null)
+            this.local.setValue(name, value);
+        else
+            this.client.setSessionValue(sid, name, value);
+    }
+
+    /**
+     * Stores a numeric session value, in memory if the session is owned by
+     * this node in sticky-session mode.
+     * @param name Session value name.
+     * @param value Session value.
+     */
+    private void setLong(String name, long value) {
+        if (this.local != null)
+            this.local.setValue(name, Long.valueOf(value));
+        else
+            this.client.setSessionValue(sid, name, value);
+    }
+
     
     /** ================================================================== **/
     /** HTTP HttpServlet accessor methods.                                 **/
@@ -155,22 +336,230 @@ public class CassandraSession {
      * @param serialiser Serialiser for session objects.
      */
     public void setAttribute(String name, Object value, SessionObjectSerialiser serialiser) {
+        this.setAttribute(name, value, serialiser, 0L);
+    }
+
+    /**
+     * Sets/updates a session object, writing it to Cassandra with a given
+     * timestamp. This is used when flushing asynchronously, so that a late
+     * flush never overwrites a session object written by a later request.
+     * @param name Session object name.
+     * @param value Session object value.
+     * @param serialiser Serialiser for session objects.
+     * @param timestamp Write timestamp in milliseconds (0 for current time).
+     */
+    public void setAttribute(String name, Object value, SessionObjectSerialiser serialiser, long timestamp) {
         if (value == null) {
-            this.removeAttribute(name);
+            this.removeAttribute(name, timestamp);
         }
         else {
             if (debug) cat.debug("["+sid+"] Storing session object "+name+" / "+value.getClass().getName());
-            this.client.addSessionObject(sid, name, value, serialiser);
+            final int ttl = this.getWriteTimeToLive(name);
+            if (this.local != null) {
+                // The configured time-to-live is applied when persisted.
+                this.local.setAttribute(name, value);
+                return;
+            }
+            if (this.manager.getJournal() == null && this.manager.getCoalescer() == null) {
+                this.updated(this.client.addSessionObject(sid, name, value, serialiser, timestamp, ttl));
+                return;
+            }
+            final ByteBuffer buffer = serialiser.toByteBuffer(value);
+            final byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            this.write(name, bytes, timestamp, ttl);
+        }
+    }
+
+    /**
+     * Sets/updates a session object that has already been serialised,
+     * writing it to Cassandra with a given timestamp. This is used when
+     * flushing asynchronously, as the objects are serialised by the request
+     * thread before the response is completed.
+     * @param name Session object name.
+     * @param bytes Serialised session object, or null to remove it.
+     * @param serialiser Serialiser for session objects.
+     * @param timestamp Write timestamp in milliseconds (0 for current time).
+     */
+    public void setAttributeBytes(String name, byte[] bytes, SessionObjectSerialiser serialiser, long timestamp) {
+        if (bytes == null) {
+            this.removeAttribute(name, timestamp);
+            return;
+        }
+        if (debug) cat.debug("["+sid+"] Storing serialised session object "+name);
+        final int ttl = this.getWriteTimeToLive(name);
+        if (this.local != null) {
+            // The configured time-to-live is applied when persisted.
+            this.local.setAttribute(name, serialiser.deserialise(ByteBuffer.wrap(bytes)));
+            return;
+        }
+        this.write(name, bytes, timestamp, ttl);
+    }
+
+    /**
+     * Writes a serialised session object through the journal or the write
+     * coalescer, if enabled, or directly to Cassandra.
+     * @param name Session object name.
+     * @param bytes Serialised session object.
+     * @param timestamp Write timestamp in milliseconds (0 for current time).
+     * @param ttl Time-to-live in seconds (0 if the object does not expire).
+     */
+    private void write(String name, byte[] bytes, long timestamp, int ttl) {
+        // Journal records carry no time-to-live.
+        if (ttl == 0 && this.journal(name, bytes, timestamp)) return;
+        this.supersede(name);
+        if (this.coalesce(name, bytes, timestamp, ttl)) return;
+        this.updated(this.client.addSessionObjectBytes(sid, name, bytes, timestamp, ttl));
+    }
+
+    /**
+     * Sets the time-to-live of a session object for the following writes of
+     * the object by this session instance, overriding the configured
+     * time-to-live.
+     * @param name Session object name.
+     * @param seconds Time-to-live in seconds (0 if the object does not expire).
+     */
+    public void setTimeToLive(String name, int seconds) {
+        if (this.ttls == null) this.ttls = new HashMap<String,Integer>();
+        this.ttls.put(name, Integer.valueOf(seconds));
+    }
+
+    /**
+     * Returns the time-to-live of a session object.
+     * @param name Session object name.
+     * @return the time-to-live in seconds (0 if the object does not expire).
+     */
+    public int getTimeToLive(String name) {
+        if (this.ttls != null) {
+            final Integer ttl = this.ttls.get(name);
+            if (ttl != null) return ttl.intValue();
+        }
+        return this.client.getConfig().getAttributeTtl(name);
+    }
+
+    /**
+     * Returns the time-to-live to write a session object with. An object
+     * written or read by this session instance keeps its deadline, so that
+     * rewriting it does not extend its life, unless its time-to-live has
+     * been set on this instance.
+     * @param name Session object name.
+     * @return the time-to-live in seconds (0 if the object does not expire).
+     */
+    private int getWriteTimeToLive(String name) {
+        final long now = System.currentTimeMillis();
+        if ((this.ttls == null || !this.ttls.containsKey(name)) && this.deadlines != null) {
+            final Long deadline = this.deadlines.get(name);
+            if (deadline != null && deadline.longValue() > now) {
+                return (int)Math.max(1L, (deadline.longValue() - now + 999L) / 1000L);
+            }
         }
+        final int ttl = this.getTimeToLive(name);
+        this.setDeadline(name, (ttl > 0 ? now + ttl * 1000L : 0L));
+        return ttl;
+    }
+
+    /**
+     * Tells you if a session object written or read by this session instance
+     * has since reached the end of its time-to-live, so that any copy of it
+     * held by a request cache should be treated as a miss.
+     * @param name Session object name.
+     * @return true if the session object has expired.
+     */
+    public boolean isExpired(String name) {
+        if (this.deadlines == null) return false;
+        final Long deadline = this.deadlines.get(name);
+        return (deadline != null && deadline.longValue() <= System.currentTimeMillis());
     }
 
     /**
-     * Reads a session object.
+     * Records the time when a session object expires.
+     * @param name Session object name.
+     * @param deadline Expiry time in milliseconds (0 if it does not expire).
+     */
+    private void setDeadline(String name, long deadline) {
+        if (deadline > 0) {
+            if (this.deadlines == null) this.deadlines = new HashMap<String,Long>();
+            this.deadlines.put(name, Long.valueOf(deadline));
+        }
+        else if (this.deadlines != null) {
+            this.deadlines.remove(name);
+        }
+    }
+
+    /**
+     * Reads a session object. In sticky-session mode the session object is
+     * served from memory if the session is owned by this node.
      * @param name Session object name.
      * @param serialiser Serialiser for session objects.
      */
     public Object getAttribute(String name, SessionObjectSerialiser serialiser) {
-        return this.client.getSessionObject(sid, name, serialiser);
+        if (this.local != null) {
+            Object value = this.local.getAttribute(name);
+            if (value == null) {
+                value = this.loadAttribute(name, serialiser);
+                this.local.loadAttribute(name, value);
+                return value;
+            }
+            if (value == LocalSessionStore.MISSING) return null;
+            return value;
+        }
+        return this.loadAttribute(name, serialiser);
+    }
+
+    /**
+     * Reads a session object from Cassandra, or from the near cache if the
+     * near cache is enabled and holds the session object for the current
+     * session version stamp.
+     * @param name Session object name.
+     * @param serialiser Serialiser for session objects.
+     */
+    private Object loadAttribute(String name, SessionObjectSerialiser serialiser) {
+        final Journal journal = this.manager.getJournal();
+        if (journal != null) {
+            final byte[] pending = journal.get(sid, name);
+            if (pending != null) {
+                if (pending == NearCache.MISSING) return null;
+                return serialiser.fromByteBuffer(ByteBuffer.wrap(pending));
+            }
+        }
+        final NearCache near = this.manager.getNearCache();
+        final DiskCache disk = this.manager.getDiskCache();
+
+        // Sessions without a version stamp cannot be cached.
+        final String version = (near != null || disk != null ? this.getVersion() : null);
+        if (version != null) {
+            byte[] cached = null;
+            if (near != null) {
+                cached = near.get(sid, version, name);
+                if (debug && cached != null) cat.debug("["+sid+"] Near cache hit for session object "+name);
+            }
+            if (cached == null && disk != null) {
+                cached = disk.get(sid, version, name);
+                if (cached != null) {
+                    if (debug) cat.debug("["+sid+"] Disk cache hit for session object "+name);
+                    if (near != null) near.put(sid, version, name, cached);
+                }
+            }
+            if (cached != null) {
+                if (cached == NearCache.MISSING) return null;
+                return serialiser.fromByteBuffer(ByteBuffer.wrap(cached));
+            }
+        }
+
+        final HColumn<String,byte[]> column = this.client.getSessionObjectColumn(sid, name);
+        final byte[] bytes = (column != null ? column.getValue() : null);
+        if (column != null && column.getTtl() > 0) {
+            // Expiring session objects are not held by the node-local caches,
+            // as their expiry does not change the session version stamp.
+            this.setDeadline(name, column.getClock() / 1000L + column.getTtl() * 1000L);
+        }
+        else if (version != null) {
+            final byte[] cached = (bytes != null ? bytes : NearCache.MISSING);
+            if (near != null) near.put(sid, version, name, cached);
+            if (disk != null) disk.put(sid, version, name, cached);
+        }
+        if (bytes == null) return null;
+        return serialiser.fromByteBuffer(ByteBuffer.wrap(bytes));
     }
 
     /**
@@ -178,8 +567,106 @@ public class CassandraSession {
      * @param name Session object name.
      */
     public void removeAttribute(String name) {
+        this.removeAttribute(name, 0L);
+    }
+
+    /**
+     * Removes a session object, deleting it from Cassandra with a given
+     * timestamp.
+     * @param name Session object name.
+     * @param timestamp Write timestamp in milliseconds (0 for current time).
+     */
+    public void removeAttribute(String name, long timestamp) {
         if (debug) cat.debug("["+sid+"] Removing session attribute "+name);
-        this.client.removeSessionObject(sid, name);
+        if (this.local != null) {
+            this.local.setAttribute(name, null);
+            return;
+        }
+        this.setDeadline(name, 0L);
+        if (this.journal(name, null, timestamp)) return;
+        this.supersede(name);
+        if (this.coalesce(name, null, timestamp, 0)) return;
+        this.updated(this.client.removeSessionObject(sid, name, timestamp));
+    }
+
+    /**
+     * Cancels journalled writes of a session object that is about to be
+     * written without the journal, so that they do not overwrite it later.
+     * @param name Session object name.
+     */
+    private void supersede(String name) {
+        final Journal journal = this.manager.getJournal();
+        if (journal != null) journal.cancel(sid, name);
+    }
+
+    /**
+     * Appends a session object write to the write-ahead journal, if enabled.
+     * @param name Session object name.
+     * @param bytes Serialised session object, or null to remove it.
+     * @param timestamp Write timestamp in milliseconds (0 for current time).
+     * @return true if the write was journalled, false if it must be written
+     *    directly to Cassandra.
+     */
+    private boolean journal(String name, byte[] bytes, long timestamp) {
+        final Journal journal = this.manager.getJournal();
+        if (journal == null || !journal.append(sid, name, bytes, timestamp)) return false;
+        // The journal is applied in the background, so the version stamp
+        // this session instance has seen is no longer current.
+        this.versionLoaded = false;
+        final NearCache near = this.manager.getNearCache();
+        if (near != null) near.remove(sid);
+        return true;
+    }
+
+    /**
+     * Writes a session object through the node-wide write coalescer, if
+     * enabled, and waits for the write to become durable.
+     * @param name Session object name.
+     * @param bytes Serialised session object, or null to remove it.
+     * @param timestamp Write timestamp in milliseconds (0 for current time).
+     * @param ttl Time-to-live in seconds (0 if the object does not expire).
+     * @return true if the write was made, false if it must be written
+     *    directly to Cassandra.
+     */
+    private boolean coalesce(String name, byte[] bytes, long timestamp, int ttl) {
+        final WriteCoalescer coalescer = this.manager.getCoalescer();
+        if (coalescer == null) return false;
+        final Future<String> future = coalescer.submit(sid, name, bytes, timestamp, ttl);
+        try {
+            this.updated(future.get());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted writing session object "+name, e);
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException("Unable to write session object "+name+": "+e.getCause().getMessage(), e.getCause());
+        }
+        return true;
+    }
+
+    /**
+     * Returns the session version stamp, reading it from Cassandra the first
+     * time it is needed by this session instance.
+     * @return the session version stamp, or null if the session has none.
+     */
+    private String getVersion() {
+        if (!this.versionLoaded) {
+            this.version = this.client.getSessionVersion(sid);
+            this.versionLoaded = true;
+        }
+        return this.version;
+    }
+
+    /**
+     * Records a new session version stamp written by this session instance.
+     * @param version New session version stamp.
+     */
+    private void updated(String version) {
+        this.version = version;
+        this.versionLoaded = true;
+        final NearCache near = this.manager.getNearCache();
+        if (near != null) near.update(sid, version);
     }
 
     /**
@@ -187,8 +674,33 @@ public class CassandraSession {
      * @return List of session object names.
      */
     public List<String> getAttributes() {
+        if (this.local != null) {
+            final List<String> names = this.local.getNames();
+            if (names != null) return names;
+            this.local.loadNames(this.client.getSessionObjects(sid));
+            return this.local.getNames();
+        }
         if (debug) cat.debug("Call to getAttributes() (heavy operation)", new Exception());
-        return this.client.getSessionObjects(sid);
+        final List<String> names = this.client.getSessionObjects(sid);
+        final Journal journal = this.manager.getJournal();
+        if (journal != null) journal.merge(sid, names);
+        return names;
+    }
+
+    /**
+     * Obtains the attribute index for this session, being the names of all
+     * session objects stored in Cassandra.
+     * @return Set of session object names, or null if the attribute index
+     *    is disabled or this session has no attribute index.
+     */
+    public Set<String> getAttributeIndex() {
+        // Sessions held in memory are cheap to look up without an index.
+        if (this.local != null) return null;
+        if (!this.client.getConfig().isAttributeIndex()) return null;
+        final Set<String> index = this.client.getSessionObjectIndex(sid);
+        final Journal journal = this.manager.getJournal();
+        if (index != null && journal != null) journal.merge(sid, index);
+        return index;
     }
 
     /**
@@ -196,7 +708,7 @@ public class CassandraSession {
      * @param creationTime Session creation timestamp.
      */
     void setCreationTime(long creationTime) {
-        this.client.setSessionValue(sid, "Created", creationTime);
+        this.setLong("Created", creationTime);
     }
 
     /**
@@ -204,7 +716,7 @@ public class CassandraSession {
      * @return the session creation timestamp.
      */
     long getCreationTime() {
-        return this.client.getSessionValueAsLong(sid, "Created");
+        return this.getLong("Created");
     }
 
     /**
@@ -212,7 +724,7 @@ public class CassandraSession {
      * @return the session last accessed timestamp.
      */
     long getLastAccessedTime() {
-        return this.client.getSessionValueAsLong(sid, "LastAccessed");
+        return this.getLong("LastAccessed");
     }
 
     /**
@@ -220,7 +732,9 @@ public class CassandraSession {
      * @param interval Session max inactive interval.
      */
     void setMaxInactiveInterval(int interval) {
-        this.client.setSessionValue(sid, "MaxInactiveInterval", (long)interval);
+        this.setLong("MaxInactiveInterval", (long)interval);
+        // Local sessions are filed when their changes are persisted.
+        if (this.local == null) this.client.updateExpiry(sid);
     }
 
     /**
@@ -228,7 +742,7 @@ public class CassandraSession {
      * @return the session max inactive interval.
      */
     int getMaxInactiveInterval() {
-        return (int)this.client.getSessionValueAsLong(sid, "MaxInactiveInterval");
+        return (int)this.getLong("MaxInactiveInterval");
     }
 
     /**
@@ -243,7 +757,7 @@ public class CassandraSession {
      * @param isnew Session "is new" flag.
      */
     void setNew(boolean isnew) {
-        this.client.setSessionValue(sid, "New", Boolean.toString(isnew));
+        this.setString("New", Boolean.toString(isnew));
     }
 
     /**
@@ -251,7 +765,7 @@ public class CassandraSession {
      * @return true if session is new.
      */
     boolean isNew() {
-        final String isnew = this.client.getSessionValueAsString(sid, "New");
+        final String isnew = this.getString("New");
         if (isnew == null) return true;
         return Boolean.parseBoolean(isnew);
     }
@@ -261,7 +775,7 @@ public class CassandraSession {
      * @return the last accessed time interval.
      */
     long getLastAccessedTimeInternal() {
-        return this.client.getSessionValueAsLong(sid, "LastAccessInterval");
+        return this.getLong("LastAccessInterval");
     }
 
     /** ================================================================== **/
@@ -39,6 +39,12 @@ public class CassandraStatistics {
 	 */
 	private static StatisticsAverages global = new StatisticsAverages();
 	
+    /**
+     * Global counters for the number of requests served under each cache
+     * policy chosen by adaptive caches, keyed by policy name.
+     */
+    private static Map<String,Long> policies = new TreeMap<String,Long>();
+	
     /** This binds a cache instance to the current thread. */
     private static ThreadLocal<CassandraStatistics> instance =
         new ThreadLocal<CassandraStatistics>();
@@ -59,6 +65,8 @@ public class CassandraStatistics {
     private int misses = 0;
     /** Statistics: Time taken to flush the cache (write-back caches). */
     private long flush = 0;
+    /** Statistics: Cache policy chosen for the request (adaptive caches). */
+    private String policy = null;
     
     /** Statistics: Objects written to Cassandra. */
     private int writeObjects = 0;
@@ -174,6 +182,19 @@ public class CassandraStatistics {
         this.flush = time;
     }
 
+    /**
+     * Sets the cache policy chosen for the current request by an adaptive
+     * cache, and counts the request against that policy.
+     * @param policy the cache policy name.
+     */
+    public void setCachePolicy(String policy) {
+        this.policy = policy;
+        synchronized (policies) {
+            final Long count = policies.get(policy);
+            policies.put(policy, Long.valueOf(count != null ? count.longValue() + 1 : 1L));
+        }
+    }
+
     /**
      * Sets the size of the last object read/written.
      * @param size the size of the last object read/written.
@@ -302,6 +323,10 @@ public class CassandraStatistics {
         buf.append(", FlushTime=");
         buf.append(this.flush);
         buf.append("ms");
+        if (this.policy != null) {
+            buf.append(", Policy=");
+            buf.append(this.policy);
+        }
         return buf.toString();
     }
 
@@ -509,6 +534,26 @@ public class CassandraStatistics {
     	if (manager != null) {
     	    final Element sessions = manager.getSessionSizes(xml);
     	    xml.getDocumentElement().appendChild(sessions);
+    	    final Element near = manager.getNearCacheStatistics(xml);
+    	    if (near != null) xml.getDocumentElement().appendChild(near);
+    	    final Element disk = manager.getDiskCacheStatistics(xml);
+    	    if (disk != null) xml.getDocumentElement().appendChild(disk);
+    	}
+    	if (xml != null) {
+    	    synchronized (policies) {
+    	        if (policies.size() > 0) {
+    	            final Element element = xml.createElement("CachePolicies");
+    	            final Iterator<Map.Entry<String,Long>> counts = policies.entrySet().iterator();
+    	            while (counts.hasNext()) {
+    	                final Map.Entry<String,Long> count = counts.next();
+    	                final Element policy = xml.createElement("CachePolicy");
+    	                policy.setAttribute("name", count.getKey());
+    	                policy.setAttribute("requests", String.valueOf(count.getValue()));
+    	                element.appendChild(policy);
+    	            }
+    	            xml.getDocumentElement().appendChild(element);
+    	        }
+    	    }
     	}
     	return xml;
     }
@@ -0,0 +1,432 @@
+// @(#)$Id: DiskCache.java,v 1.1 2014/03/10 10:04:31 morten Exp $
+package org.apache.catalina.cassandra;
+
+import java.util.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.DecimalFormat;
+import java.util.zip.CRC32;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <ul>
+ *   <li><b>Project:</b> TomcatCassandra</li>
+ *   <li><b>Class:</b> org.apache.catalina.cassandra.DiskCache</li>
+ *   <li><b>Author:</b> morten.jorgensen@openjawtech.com</li>
+ *   <li><b>Created:</b> 10 Mar 2014 10:04:31</li>
+ *   <li><b>Description:</b>
+ *     Node-local second-level cache of serialised session objects, held in
+ *     a memory-mapped file underneath the near cache. Session objects are
+ *     appended to the file as a ring, so the oldest records are overwritten
+ *     when the file is full; records that are read while they are close to
+ *     being overwritten are appended again, so that the records evicted are
+ *     approximately the least recently used. The index of the file is kept
+ *     in memory and saved to a separate file on shutdown, so that the cache
+ *     survives a restart. Like the near cache, a record is only returned if
+ *     it was cached for the current session version stamp, and each record
+ *     carries its key and a checksum so that a stale index entry can never
+ *     return another (or a partially overwritten) record.
+ *   </li>
+ *   <li><b>Functional spec. ref.:</b> </li>
+ *   <li><b>Design spec.ref.:</b> </li>
+ * </ul>
+ */
+class DiskCache {
+
+    /** Log4J logger instance for class DiskCache. */
+    private final static Logger cat = Logger.getLogger(DiskCache.class);
+    /** Log4J debug setting for class DiskCache. */
+    private final static boolean debug = cat.isDebugEnabled();
+
+    /** Marker at the start of each record in the data file. */
+    private final static int RECORD = 0x4f4a5343;
+    /** Marker at the start of the index file. */
+    private final static int INDEX = 0x4f4a5349;
+    /** Length of serialised session objects that do not exist. */
+    private final static int MISSING = -1;
+
+    /** Data file. */
+    private File data;
+    /** Index file. */
+    private File index;
+    /** Random access file for the data file. */
+    private RandomAccessFile file;
+    /** Memory-mapped data file. */
+    private MappedByteBuffer buffer;
+    /** Size of the data file in bytes. */
+    private int capacity;
+    /** Offset in the data file where the next record is written. */
+    private int position = 0;
+
+    /** Cached records, keyed by session ID and session object name. */
+    private Map<String,Map<String,Slot>> sessions = new HashMap<String,Map<String,Slot>>();
+    /** Cached records, keyed by their offset in the data file. */
+    private TreeMap<Integer,Slot> slots = new TreeMap<Integer,Slot>();
+
+    /** Statistics: Cache hits. */
+    private long hits = 0L;
+    /** Statistics: Cache misses. */
+    private long misses = 0L;
+
+    /**
+     * Creates (or re-opens) a disk cache.
+     * @param directory Directory that holds the cache files.
+     * @param name Name of the cache files (without extension).
+     * @param capacity Size of the data file in bytes.
+     * @throws IOException if the data file cannot be mapped.
+     */
+    DiskCache(File directory, String name, int capacity) throws IOException {
+        directory.mkdirs();
+        this.data = new File(directory, name+".dat");
+        this.index = new File(directory, name+".idx");
+        this.capacity = capacity;
+        this.file = new RandomAccessFile(this.data, "rw");
+        this.file.setLength(capacity);
+        this.buffer = this.file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        this.load();
+    }
+
+    /**
+     * Obtains a cached session object.
+     * @param sid Session ID.
+     * @param version Current session version stamp in Cassandra.
+     * @param name Session object name.
+     * @return Serialised session object, NearCache.MISSING if the session
+     *    object is known not to exist, or null if the session object is not
+     *    cached for this version of the session.
+     */
+    synchronized byte[] get(String sid, String version, String name) {
+        final Map<String,Slot> objects = this.sessions.get(sid);
+        final Slot slot = (objects != null ? objects.get(name) : null);
+        if (slot == null || !slot.version.equals(version)) {
+            this.misses++;
+            return null;
+        }
+        final byte[] bytes = this.read(slot, sid, name);
+        if (bytes == null) {
+            this.drop(slot);
+            this.misses++;
+            return null;
+        }
+        this.hits++;
+        // Records about to be overwritten are appended again, so that
+        // frequently used records are kept.
+        final int distance = (slot.offset - this.position + this.capacity) % this.capacity;
+        if (distance < this.capacity / 4) {
+            this.write(sid, version, name, bytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * Caches a session object that has been read from Cassandra.
+     * @param sid Session ID.
+     * @param version Session version stamp, read before the session object.
+     * @param name Session object name.
+     * @param bytes Serialised session object, or NearCache.MISSING.
+     */
+    synchronized void put(String sid, String version, String name, byte[] bytes) {
+        this.write(sid, version, name, bytes);
+    }
+
+    /**
+     * Removes all cached session objects for a session.
+     * @param sid Session ID.
+     */
+    synchronized void remove(String sid) {
+        final Map<String,Slot> objects = this.sessions.remove(sid);
+        if (objects == null) return;
+        final Iterator<Slot> slots = objects.values().iterator();
+        while (slots.hasNext()) {
+            this.slots.remove(slots.next().offset);
+        }
+    }
+
+    /**
+     * Appends a record to the data file, overwriting the oldest records.
+     * @param sid Session ID.
+     * @param version Session version stamp.
+     * @param name Session object name.
+     * @param bytes Serialised session object, or NearCache.MISSING.
+     */
+    private void write(String sid, String version, String name, byte[] bytes) {
+        final byte[] record;
+        try {
+            final ByteArrayOutputStream buf = new ByteArrayOutputStream(bytes.length + 64);
+            final DataOutputStream out = new DataOutputStream(buf);
+            out.writeInt(RECORD);
+            out.writeUTF(sid);
+            out.writeUTF(name);
+            out.writeUTF(version);
+            out.writeInt(bytes == NearCache.MISSING ? MISSING : bytes.length);
+            out.writeLong(checksum(bytes));
+            out.write(bytes);
+            out.flush();
+            record = buf.toByteArray();
+        }
+        catch (IOException e) {
+            // Can't happen with a byte array stream (or very long names).
+            return;
+        }
+        if (record.length > this.capacity / 4) return;
+
+        if (this.position + record.length > this.capacity) {
+            this.evict(this.position, this.capacity);
+            this.position = 0;
+        }
+        this.evict(this.position, this.position + record.length);
+
+        final ByteBuffer target = this.buffer.duplicate();
+        target.position(this.position);
+        target.put(record);
+
+        final Slot slot = new Slot(sid, name, version, this.position, record.length);
+        Map<String,Slot> objects = this.sessions.get(sid);
+        if (objects == null) {
+            objects = new HashMap<String,Slot>();
+            this.sessions.put(sid, objects);
+        }
+        final Slot old = objects.put(name, slot);
+        if (old != null) this.slots.remove(old.offset);
+        this.slots.put(slot.offset, slot);
+        this.position += record.length;
+    }
+
+    /**
+     * Reads and verifies a record from the data file.
+     * @param slot Index entry for the record.
+     * @param sid Expected session ID.
+     * @param name Expected session object name.
+     * @return Serialised session object, NearCache.MISSING, or null if the
+     *    record is not (or no longer) the expected record.
+     */
+    private byte[] read(Slot slot, String sid, String name) {
+        if (slot.offset < 0 || slot.offset + slot.length > this.capacity) return null;
+        final byte[] record = new byte[slot.length];
+        final ByteBuffer source = this.buffer.duplicate();
+        source.position(slot.offset);
+        source.get(record);
+        try {
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+            if (in.readInt() != RECORD) return null;
+            if (!sid.equals(in.readUTF())) return null;
+            if (!name.equals(in.readUTF())) return null;
+            if (!slot.version.equals(in.readUTF())) return null;
+            final int length = in.readInt();
+            final long checksum = in.readLong();
+            final byte[] bytes = (length == MISSING ? NearCache.MISSING : new byte[length]);
+            in.readFully(bytes);
+            if (checksum(bytes) != checksum) return null;
+            return bytes;
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Drops the index entries for all records that overlap a region of the
+     * data file that is about to be overwritten.
+     * @param start Start offset of the region.
+     * @param end End offset of the region (exclusive).
+     */
+    private void evict(int start, int end) {
+        final Map.Entry<Integer,Slot> before = this.slots.lowerEntry(start);
+        if (before != null && before.getKey() + before.getValue().length > start) {
+            this.drop(before.getValue());
+        }
+        final Iterator<Slot> slots = this.slots.subMap(start, end).values().iterator();
+        while (slots.hasNext()) {
+            final Slot slot = slots.next();
+            slots.remove();
+            this.unlink(slot);
+        }
+    }
+
+    /**
+     * Drops the index entry for a record.
+     * @param slot Index entry.
+     */
+    private void drop(Slot slot) {
+        this.slots.remove(slot.offset);
+        this.unlink(slot);
+    }
+
+    /**
+     * Removes a record from the session index (but not the offset index).
+     * @param slot Index entry.
+     */
+    private void unlink(Slot slot) {
+        final Map<String,Slot> objects = this.sessions.get(slot.sid);
+        if (objects == null || objects.get(slot.name) != slot) return;
+        objects.remove(slot.name);
+        if (objects.size() == 0) this.sessions.remove(slot.sid);
+    }
+
+    /**
+     * Calculates the checksum for a serialised session object.
+     * @param bytes Serialised session object.
+     * @return checksum.
+     */
+    private static long checksum(byte[] bytes) {
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return crc.getValue();
+    }
+
+    /**
+     * Loads the index saved on the last shutdown, if it matches the data
+     * file. The index file is deleted once loaded, so that it is never used
+     * with a data file written after it was saved.
+     */
+    private void load() {
+        if (!this.index.exists()) return;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.index)));
+            if (in.readInt() != INDEX || in.readInt() != this.capacity) {
+                cat.warn("Ignoring disk cache index "+this.index+" - it does not match the data file");
+                return;
+            }
+            this.position = in.readInt();
+            final int count = in.readInt();
+            for (int i=0; i<count; i++) {
+                final Slot slot = new Slot(in.readUTF(), in.readUTF(), in.readUTF(), in.readInt(), in.readInt());
+                Map<String,Slot> objects = this.sessions.get(slot.sid);
+                if (objects == null) {
+                    objects = new HashMap<String,Slot>();
+                    this.sessions.put(slot.sid, objects);
+                }
+                objects.put(slot.name, slot);
+                this.slots.put(slot.offset, slot);
+            }
+            cat.info("Loaded "+count+" session objects from disk cache "+this.data);
+        }
+        catch (IOException e) {
+            cat.warn("Unable to load disk cache index "+this.index+": "+e.getMessage());
+            this.sessions.clear();
+            this.slots.clear();
+            this.position = 0;
+        }
+        finally {
+            if (in != null) try { in.close(); } catch (IOException e) { }
+            this.index.delete();
+        }
+    }
+
+    /**
+     * Flushes the data file and saves the index, so that the cache can be
+     * re-opened on the next startup.
+     */
+    synchronized void close() {
+        DataOutputStream out = null;
+        try {
+            this.buffer.force();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.index)));
+            out.writeInt(INDEX);
+            out.writeInt(this.capacity);
+            out.writeInt(this.position);
+            out.writeInt(this.slots.size());
+            final Iterator<Slot> slots = this.slots.values().iterator();
+            while (slots.hasNext()) {
+                final Slot slot = slots.next();
+                out.writeUTF(slot.sid);
+                out.writeUTF(slot.name);
+                out.writeUTF(slot.version);
+                out.writeInt(slot.offset);
+                out.writeInt(slot.length);
+            }
+            if (debug) cat.debug("Saved "+this.slots.size()+" session objects to disk cache index "+this.index);
+        }
+        catch (IOException e) {
+            cat.error("Unable to save disk cache index "+this.index+": "+e.getMessage(), e);
+        }
+        finally {
+            if (out != null) try { out.close(); } catch (IOException e) { }
+            try { this.file.close(); } catch (IOException e) { }
+        }
+    }
+
+    /**
+     * Returns the number of cache hits.
+     * @return the number of cache hits.
+     */
+    synchronized long getHits() {
+        return this.hits;
+    }
+
+    /**
+     * Returns the number of cache misses.
+     * @return the number of cache misses.
+     */
+    synchronized long getMisses() {
+        return this.misses;
+    }
+
+    /**
+     * Returns the cache hit rate as a percentage.
+     * @return the cache hit rate as a percentage.
+     */
+    synchronized double getHitRate() {
+        final double total = (double)this.hits + (double)this.misses;
+        if (total == 0) return 0d;
+        return ((double)this.hits / total) * 100d;
+    }
+
+    /**
+     * Creates an XML element that holds the cache statistics.
+     * @param doc Document used to create XML elements.
+     * @return cache statistics element.
+     */
+    synchronized Element toElement(Document doc) {
+        final Element element = doc.createElement("DiskCache");
+        element.setAttribute("hits", Long.toString(this.hits));
+        element.setAttribute("misses", Long.toString(this.misses));
+        element.setAttribute("hitRate", new DecimalFormat("#.##").format(this.getHitRate()));
+        element.setAttribute("sessions", Integer.toString(this.sessions.size()));
+        element.setAttribute("objects", Integer.toString(this.slots.size()));
+        element.setAttribute("capacity", Integer.toString(this.capacity));
+        return element;
+    }
+
+    /**
+     * Index entry for a record in the data file.
+     */
+    private static class Slot {
+
+        /** Session ID. */
+        private String sid;
+        /** Session object name. */
+        private String name;
+        /** Session version stamp the session object was read for. */
+        private String version;
+        /** Offset of the record in the data file. */
+        private int offset;
+        /** Length of the record in bytes. */
+        private int length;
+
+        /**
+         * Creates a new index entry.
+         * @param sid Session ID.
+         * @param name Session object name.
+         * @param version Session version stamp.
+         * @param offset Offset of the record in the data file.
+         * @param length Length of the record in bytes.
+         */
+        Slot(String sid, String name, String version, int offset, int length) {
+            this.sid = sid;
+            this.name = name;
+            this.version = version;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+}
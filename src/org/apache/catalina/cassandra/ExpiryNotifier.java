@@ -0,0 +1,370 @@
+// @(#)$Id: ExpiryNotifier.java,v 1.1 2014/04/16 13:48:20 morten Exp $
+package org.apache.catalina.cassandra;
+
+import java.util.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
+import javax.servlet.http.HttpSessionEvent;
+import javax.servlet.http.HttpSessionListener;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.cassandra.utils.IteratorEnumeration;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <ul>
+ *   <li><b>Project:</b> TomcatCassandra</li>
+ *   <li><b>Class:</b> org.apache.catalina.cassandra.ExpiryNotifier</li>
+ *   <li><b>Author:</b> morten.jorgensen@openjawtech.com</li>
+ *   <li><b>Created:</b> 16 Apr 2014 13:48:20</li>
+ *   <li><b>Description:</b>
+ *     Notifies the web application of sessions removed by the purge of
+ *     expired sessions. Before a batch of expired sessions is deleted, the
+ *     session values and session objects of each session are read in a
+ *     single slice each and queued. A background thread takes the queued
+ *     sessions in batches and calls the web application's session
+ *     listeners, and the session objects that are binding listeners, with
+ *     a read-only copy of each session. The queue is bounded: when it is
+ *     full, the purge waits for the dispatcher to catch up.
+ *   </li>
+ *   <li><b>Functional spec. ref.:</b> </li>
+ *   <li><b>Design spec.ref.:</b> </li>
+ * </ul>
+ */
+class ExpiryNotifier {
+
+    /** Log4J logger instance for class ExpiryNotifier. */
+    private final static Logger cat = Logger.getLogger(ExpiryNotifier.class);
+    /** Log4J debug setting for class ExpiryNotifier. */
+    private final static boolean debug = cat.isDebugEnabled();
+
+    /** Maximum number of expired sessions dispatched in one batch. */
+    private final static int MAX_BATCH = 100;
+
+    /** Column in the session objects row that holds the principal. */
+    private final static String PRINCIPAL = "Principal";
+
+    /** Cassandra client API wrapper. */
+    private CassandraClient client;
+
+    /** Tomcat session manager. */
+    private TomcatManager tomcat;
+
+    /** Expired sessions waiting to be dispatched. */
+    private BlockingQueue<ExpiredSession> queue;
+
+    /** Background thread that dispatches the events. */
+    private Thread dispatcher;
+
+    /** Flags that the notifier is being shut down. */
+    private volatile boolean closing = false;
+
+    /** Statistics: Expired sessions dispatched. */
+    private long dispatched = 0L;
+    /** Statistics: Times the purge had to wait for space in the queue. */
+    private long waits = 0L;
+    /** Statistics: Expired sessions dropped on shutdown. */
+    private long dropped = 0L;
+
+    /**
+     * Creates a new expiry notifier, and starts its dispatcher thread.
+     * @param client Cassandra client API wrapper.
+     * @param tomcat Tomcat session manager.
+     * @param capacity Maximum number of expired sessions queued.
+     */
+    ExpiryNotifier(CassandraClient client, TomcatManager tomcat, int capacity) {
+        this.client = client;
+        this.tomcat = tomcat;
+        this.queue = new ArrayBlockingQueue<ExpiredSession>(Math.max(1, capacity));
+        this.dispatcher = new Thread(new Runnable() {
+            public void run() {
+                ExpiryNotifier.this.run();
+            }
+        }, "CassandraSessionExpiry["+tomcat.getContainerName()+"]");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    /**
+     * Reads and queues expired sessions that are about to be deleted. This
+     * blocks while the queue is full.
+     * @param sids Session IDs.
+     */
+    void expired(List<String> sids) {
+        for (int i=0; i<sids.size() && !this.closing; i++) {
+            final String sid = sids.get(i);
+            final ExpiredSession session = new ExpiredSession(sid, this.client.getSessionTimes(sid), this.client.getSessionObjectsBytes(sid));
+            try {
+                if (this.queue.offer(session)) continue;
+                synchronized (this) {
+                    this.waits++;
+                }
+                while (!this.closing && !this.queue.offer(session, 1, TimeUnit.SECONDS));
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Dispatches queued sessions in batches until shut down.
+     */
+    private void run() {
+        final List<ExpiredSession> batch = new ArrayList<ExpiredSession>(MAX_BATCH);
+        while (!this.closing || this.queue.size() > 0) {
+            try {
+                final ExpiredSession first = this.queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                this.queue.drainTo(batch, MAX_BATCH - 1);
+            }
+            catch (InterruptedException e) {
+                continue;
+            }
+            this.dispatch(batch);
+            synchronized (this) {
+                this.dispatched += batch.size();
+            }
+            if (debug) cat.debug("Dispatched expiry of "+batch.size()+" sessions");
+            batch.clear();
+        }
+    }
+
+    /**
+     * Notifies the web application of a batch of expired sessions. The
+     * listeners are called with the web application's class loader as the
+     * context class loader, as they would be on a request thread.
+     * @param batch Expired sessions.
+     */
+    private void dispatch(List<ExpiredSession> batch) {
+        final List<HttpSessionListener> listeners = new ArrayList<HttpSessionListener>();
+        final Object[] lifecycle = (this.tomcat.getContainer() instanceof Context ? ((Context)this.tomcat.getContainer()).getApplicationLifecycleListeners() : null);
+        if (lifecycle != null) {
+            for (int i=0; i<lifecycle.length; i++) {
+                if (lifecycle[i] instanceof HttpSessionListener) listeners.add((HttpSessionListener)lifecycle[i]);
+            }
+        }
+
+        final Thread thread = Thread.currentThread();
+        final ClassLoader loader = thread.getContextClassLoader();
+        final ClassLoader webapp = this.tomcat.getClassLoader();
+        if (webapp != null) thread.setContextClassLoader(webapp);
+        try {
+            for (int i=0; i<batch.size(); i++) {
+                final ExpiredSession session = batch.get(i);
+                session.load();
+                // Listeners are told in reverse order of declaration.
+                final HttpSessionEvent event = new HttpSessionEvent(session);
+                for (int j=listeners.size()-1; j>=0; j--) {
+                    try {
+                        listeners.get(j).sessionDestroyed(event);
+                    }
+                    catch (Throwable e) {
+                        cat.error("["+session.getId()+"] Session listener failed on expiry: "+e.getMessage(), e);
+                    }
+                }
+                final Iterator<Map.Entry<String,Object>> objects = session.objects.entrySet().iterator();
+                while (objects.hasNext()) {
+                    final Map.Entry<String,Object> object = objects.next();
+                    if (!(object.getValue() instanceof HttpSessionBindingListener)) continue;
+                    try {
+                        ((HttpSessionBindingListener)object.getValue()).valueUnbound(new HttpSessionBindingEvent(session, object.getKey(), object.getValue()));
+                    }
+                    catch (Throwable e) {
+                        cat.error("["+session.getId()+"] Session object "+object.getKey()+" failed to unbind on expiry: "+e.getMessage(), e);
+                    }
+                }
+            }
+        }
+        finally {
+            thread.setContextClassLoader(loader);
+        }
+    }
+
+    /**
+     * Dispatches the sessions still queued and stops the dispatcher thread.
+     * Sessions the purge has not queued by then are not notified.
+     */
+    void shutdown() {
+        this.closing = true;
+        try {
+            this.dispatcher.join(30000L);
+        }
+        catch (InterruptedException e) {
+            // Ignore.
+        }
+        final int remaining = this.queue.size();
+        if (remaining > 0) {
+            this.queue.clear();
+            synchronized (this) {
+                this.dropped += remaining;
+            }
+            cat.warn("Dropped expiry notification of "+remaining+" sessions on shutdown");
+        }
+    }
+
+    /**
+     * Returns the number of expired sessions waiting to be dispatched.
+     * @return the queue length.
+     */
+    int getQueued() {
+        return this.queue.size();
+    }
+
+    /**
+     * Returns the number of expired sessions dispatched.
+     * @return the number of expired sessions dispatched.
+     */
+    synchronized long getDispatched() {
+        return this.dispatched;
+    }
+
+    /**
+     * Returns the number of times the purge had to wait because the queue
+     * was full, which tells you that the listeners cannot keep up.
+     * @return the number of waits for space in the queue.
+     */
+    synchronized long getWaits() {
+        return this.waits;
+    }
+
+    /**
+     * Returns the number of expired sessions dropped on shutdown.
+     * @return the number of expired sessions dropped.
+     */
+    synchronized long getDropped() {
+        return this.dropped;
+    }
+
+    /**
+     * Read-only copy of an expired session, as passed to the listeners. The
+     * session objects are deserialised by the dispatcher thread.
+     */
+    @SuppressWarnings({"deprecation", "rawtypes"})
+    private class ExpiredSession implements HttpSession {
+
+        /** Session ID. */
+        private String sid;
+        /** Creation, last accessed time and max inactive interval. */
+        private long[] times;
+        /** Serialised session objects (null once deserialised). */
+        private Map<String,byte[]> bytes;
+        /** Session objects, keyed by name. */
+        private Map<String,Object> objects = new LinkedHashMap<String,Object>();
+
+        /**
+         * Creates a new expired session.
+         * @param sid Session ID.
+         * @param times Creation time, last accessed time and max inactive
+         *    interval.
+         * @param bytes Serialised session objects, keyed by name.
+         */
+        ExpiredSession(String sid, long[] times, Map<String,byte[]> bytes) {
+            this.sid = sid;
+            this.times = times;
+            this.bytes = bytes;
+        }
+
+        /**
+         * Deserialises the session objects.
+         */
+        void load() {
+            if (this.bytes == null) return;
+            final Iterator<Map.Entry<String,byte[]>> entries = this.bytes.entrySet().iterator();
+            while (entries.hasNext()) {
+                final Map.Entry<String,byte[]> entry = entries.next();
+                if (PRINCIPAL.equals(entry.getKey())) continue;
+                try {
+                    final Object object = ExpiryNotifier.this.tomcat.getSerialiser().deserialise(ByteBuffer.wrap(entry.getValue()));
+                    if (object != null) this.objects.put(entry.getKey(), object);
+                }
+                catch (Throwable e) {
+                    cat.warn("["+this.sid+"] Unable to read session object "+entry.getKey()+" of expired session: "+e.getMessage());
+                }
+            }
+            this.bytes = null;
+        }
+
+        public String getId() {
+            return this.sid;
+        }
+
+        public long getCreationTime() {
+            return this.times[0];
+        }
+
+        public long getLastAccessedTime() {
+            return this.times[1];
+        }
+
+        public int getMaxInactiveInterval() {
+            return (int)this.times[2];
+        }
+
+        public void setMaxInactiveInterval(int interval) {
+            // The session has expired.
+        }
+
+        public ServletContext getServletContext() {
+            final Object container = ExpiryNotifier.this.tomcat.getContainer();
+            if (!(container instanceof Context)) return null;
+            return ((Context)container).getServletContext();
+        }
+
+        public javax.servlet.http.HttpSessionContext getSessionContext() {
+            return null;
+        }
+
+        public Object getAttribute(String name) {
+            return this.objects.get(name);
+        }
+
+        public Object getValue(String name) {
+            return this.getAttribute(name);
+        }
+
+        public Enumeration getAttributeNames() {
+            return new IteratorEnumeration(this.objects.keySet().iterator());
+        }
+
+        public String[] getValueNames() {
+            return this.objects.keySet().toArray(new String[this.objects.size()]);
+        }
+
+        public void setAttribute(String name, Object value) {
+            throw new IllegalStateException("Session "+this.sid+" has expired");
+        }
+
+        public void putValue(String name, Object value) {
+            this.setAttribute(name, value);
+        }
+
+        public void removeAttribute(String name) {
+            throw new IllegalStateException("Session "+this.sid+" has expired");
+        }
+
+        public void removeValue(String name) {
+            this.removeAttribute(name);
+        }
+
+        public void invalidate() {
+            // The session has expired.
+        }
+
+        public boolean isNew() {
+            return false;
+        }
+    }
+
+}
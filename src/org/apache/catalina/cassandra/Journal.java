@@ -0,0 +1,545 @@
+// @(#)$Id: Journal.java,v 1.1 2014/03/17 09:31:52 morten Exp $
+package org.apache.catalina.cassandra;
+
+import java.util.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <ul>
+ *   <li><b>Project:</b> TomcatCassandra</li>
+ *   <li><b>Class:</b> org.apache.catalina.cassandra.Journal</li>
+ *   <li><b>Author:</b> morten.jorgensen@openjawtech.com</li>
+ *   <li><b>Created:</b> 17 Mar 2014 09:31:52</li>
+ *   <li><b>Description:</b>
+ *     Node-local write-ahead journal for session object writes. Writes are
+ *     appended to a memory-mapped file and forced to disk, which is much
+ *     faster than waiting for Cassandra to acknowledge them, and a single
+ *     background thread then applies them to Cassandra in the order they
+ *     were written. Writes that are not yet applied are held in memory, so
+ *     that reads of the session on this node see them. The journal is a
+ *     fixed-size ring; the file header records how far the background
+ *     thread has got, and writes after that point are replayed on startup.
+ *     If the journal is full, writes go directly to Cassandra. As the head
+ *     offset is not forced to disk on every write, records may be applied
+ *     more than once after a crash.
+ *   </li>
+ *   <li><b>Functional spec. ref.:</b> </li>
+ *   <li><b>Design spec.ref.:</b> </li>
+ * </ul>
+ */
+class Journal {
+
+    /** Log4J logger instance for class Journal. */
+    private final static Logger cat = Logger.getLogger(Journal.class);
+    /** Log4J debug setting for class Journal. */
+    private final static boolean debug = cat.isDebugEnabled();
+
+    /** Marker at the start of each record written without a timestamp. */
+    private final static int RECORD = 0x4f4a4a52;
+    /** Marker at the start of each record. */
+    private final static int TIMED_RECORD = 0x4f4a4a54;
+    /** Marker for the end of the ring (the next record is at the start). */
+    private final static int WRAP = 0x4f4a4a57;
+    /** Length of removed session objects. */
+    private final static int REMOVED = -1;
+    /** Size of the file header: head offset and sequence number. */
+    private final static int HEADER = 16;
+    /** Time to wait before retrying a failed write, in milliseconds. */
+    private final static long RETRY_DELAY = 1000L;
+
+    /** Cassandra manager for the web application. */
+    private CassandraManager manager;
+    /** Journal file. */
+    private File file;
+    /** Random access file for the journal. */
+    private RandomAccessFile raf;
+    /** Memory-mapped journal. */
+    private MappedByteBuffer buffer;
+    /** Size of the journal in bytes. */
+    private int capacity;
+
+    /** Offset of the oldest record not yet applied to Cassandra. */
+    private int head = HEADER;
+    /** Offset where the next record is written. */
+    private int tail = HEADER;
+    /** Number of bytes in use between head and tail. */
+    private int used = 0;
+    /** Sequence number of the next record to write. */
+    private long sequence = 1L;
+
+    /** Records waiting to be applied to Cassandra, in order. */
+    private LinkedBlockingQueue<Record> queue = new LinkedBlockingQueue<Record>();
+    /** Latest pending record for each session object, keyed by session ID. */
+    private Map<String,Map<String,Record>> pending = new HashMap<String,Map<String,Record>>();
+    /**
+     * Held while a record is checked and applied, so that a record cannot
+     * be applied after it has been cancelled.
+     */
+    private final Object applying = new Object();
+
+    /** Background thread that applies records to Cassandra. */
+    private Thread writer;
+    /** Flags that the journal is being shut down. */
+    private volatile boolean closing = false;
+
+    /**
+     * Opens (or creates) the journal, and replays any records that were not
+     * applied to Cassandra before the last shutdown.
+     * @param manager Cassandra manager for the web application.
+     * @param directory Directory that holds the journal file.
+     * @param name Name of the journal file (without extension).
+     * @param capacity Size of the journal in bytes.
+     * @throws IOException if the journal cannot be mapped.
+     */
+    Journal(CassandraManager manager, File directory, String name, int capacity) throws IOException {
+        this.manager = manager;
+        directory.mkdirs();
+        this.file = new File(directory, name+".journal");
+        this.capacity = capacity;
+        this.raf = new RandomAccessFile(this.file, "rw");
+        this.raf.setLength(capacity);
+        this.buffer = this.raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        this.replay();
+
+        this.writer = new Thread(new Runnable() {
+            public void run() {
+                Journal.this.drain();
+            }
+        }, "CassandraSessionJournal["+name+"]");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Appends a session object write to the journal.
+     * @param sid Session ID.
+     * @param name Session object name.
+     * @param bytes Serialised session object, or null to remove it.
+     * @param timestamp Write timestamp in milliseconds (0 for current time).
+     * @return false if the journal is full, in which case the write must go
+     *    directly to Cassandra.
+     */
+    synchronized boolean append(String sid, String name, byte[] bytes, long timestamp) {
+        if (this.closing) return false;
+        // The write is applied later, but must not win over later writes.
+        if (timestamp == 0L) timestamp = System.currentTimeMillis();
+        final byte[] record = encode(this.sequence, timestamp, sid, name, bytes);
+
+        // The ring must never fill up completely, or head == tail is ambiguous.
+        int offset = this.tail;
+        int wasted = 0;
+        if (offset + record.length > this.capacity) {
+            wasted = this.capacity - offset;
+            offset = HEADER;
+        }
+        if (this.used + wasted + record.length + 4 > this.capacity - HEADER) {
+            if (debug) cat.debug("["+sid+"] Journal full - writing session object "+name+" directly");
+            return false;
+        }
+        if (wasted > 0) {
+            if (wasted >= 4) this.buffer.putInt(this.tail, WRAP);
+            this.used += wasted;
+        }
+
+        final ByteBuffer target = this.buffer.duplicate();
+        target.position(offset);
+        target.put(record);
+        if (offset + record.length + 4 <= this.capacity) {
+            // Stops replay at the end of the journal.
+            this.buffer.putInt(offset + record.length, 0);
+        }
+        this.buffer.force();
+
+        final Record entry = new Record(this.sequence++, timestamp, sid, name, bytes, offset, record.length, wasted);
+        this.tail = offset + record.length;
+        this.used += record.length;
+        this.track(entry);
+        this.queue.add(entry);
+        synchronized (this.queue) {
+            this.queue.notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Obtains the pending (not yet applied) write of a session object.
+     * @param sid Session ID.
+     * @param name Session object name.
+     * @return Serialised session object, NearCache.MISSING if the session
+     *    object has been removed, or null if there is no pending write.
+     */
+    synchronized byte[] get(String sid, String name) {
+        final Map<String,Record> objects = this.pending.get(sid);
+        if (objects == null) return null;
+        final Record record = objects.get(name);
+        if (record == null) return null;
+        return (record.bytes != null ? record.bytes : NearCache.MISSING);
+    }
+
+    /**
+     * Merges pending writes into a collection of session object names.
+     * @param sid Session ID.
+     * @param names Session object names read from Cassandra (updated).
+     */
+    synchronized void merge(String sid, Collection<String> names) {
+        final Map<String,Record> objects = this.pending.get(sid);
+        if (objects == null) return;
+        final Iterator<Record> records = objects.values().iterator();
+        while (records.hasNext()) {
+            final Record record = records.next();
+            names.remove(record.name);
+            if (record.bytes != null) names.add(record.name);
+        }
+    }
+
+    /**
+     * Discards all pending writes for a session that has been removed. Waits
+     * for a write of the session that is being applied to complete.
+     * @param sid Session ID.
+     */
+    void remove(String sid) {
+        synchronized (this) {
+            if (!this.pending.containsKey(sid)) return;
+        }
+        synchronized (this.applying) {
+            synchronized (this) {
+                final Map<String,Record> objects = this.pending.remove(sid);
+                if (objects == null) return;
+                final Iterator<Record> records = this.queue.iterator();
+                while (records.hasNext()) {
+                    final Record record = records.next();
+                    if (record.sid.equals(sid)) record.cancelled = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Discards the pending writes of a session object that is about to be
+     * written directly to Cassandra (because the journal is full, or the
+     * write has a time-to-live), so that they are neither read nor applied
+     * after the newer write. Waits for a write of the session object that
+     * is being applied to complete.
+     * @param sid Session ID.
+     * @param name Session object name.
+     */
+    void cancel(String sid, String name) {
+        synchronized (this) {
+            final Map<String,Record> objects = this.pending.get(sid);
+            if (objects == null || !objects.containsKey(name)) return;
+        }
+        synchronized (this.applying) {
+            synchronized (this) {
+                final Map<String,Record> objects = this.pending.get(sid);
+                if (objects == null || objects.remove(name) == null) return;
+                if (objects.size() == 0) this.pending.remove(sid);
+                final Iterator<Record> records = this.queue.iterator();
+                while (records.hasNext()) {
+                    final Record record = records.next();
+                    if (record.sid.equals(sid) && record.name.equals(name)) record.cancelled = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of writes not yet applied to Cassandra.
+     * @return the number of pending writes.
+     */
+    int size() {
+        return this.queue.size();
+    }
+
+    /**
+     * Applies records to Cassandra in order until the journal is closed.
+     */
+    private void drain() {
+        while (!this.closing || this.queue.size() > 0) {
+            try {
+                final Record record = this.queue.peek();
+                if (record == null) {
+                    synchronized (this.queue) {
+                        if (this.queue.isEmpty()) this.queue.wait(RETRY_DELAY);
+                    }
+                    continue;
+                }
+                synchronized (this.applying) {
+                    if (!record.cancelled) this.apply(record);
+                }
+                this.queue.poll();
+                this.applied(record);
+            }
+            catch (InterruptedException e) {
+                // Check if we are closing.
+            }
+            catch (Throwable e) {
+                cat.error("Unable to apply journal record to Cassandra - retrying: "+e.getMessage(), e);
+                if (this.closing) return;
+                try { Thread.sleep(RETRY_DELAY); } catch (InterruptedException ie) { }
+            }
+        }
+    }
+
+    /**
+     * Writes a record to Cassandra.
+     * @param record Journal record.
+     */
+    private void apply(Record record) {
+        final CassandraClient client = this.manager.getClient();
+        final String version;
+        if (record.bytes != null)
+            version = client.addSessionObjectBytes(record.sid, record.name, record.bytes, record.timestamp);
+        else
+            version = client.removeSessionObject(record.sid, record.name, record.timestamp);
+        final NearCache near = this.manager.getNearCache();
+        if (near != null) near.update(record.sid, version);
+    }
+
+    /**
+     * Releases the space used by a record that has been applied, and moves
+     * the head of the journal past it.
+     * @param record Journal record.
+     */
+    private synchronized void applied(Record record) {
+        this.head = record.offset + record.length;
+        this.used -= (record.wasted + record.length);
+        this.buffer.putInt(0, this.head);
+        this.buffer.putLong(4, record.sequence + 1);
+        final Map<String,Record> objects = this.pending.get(record.sid);
+        if (objects != null && objects.get(record.name) == record) {
+            objects.remove(record.name);
+            if (objects.size() == 0) this.pending.remove(record.sid);
+        }
+    }
+
+    /**
+     * Registers a record as the latest pending write of a session object.
+     * @param record Journal record.
+     */
+    private void track(Record record) {
+        Map<String,Record> objects = this.pending.get(record.sid);
+        if (objects == null) {
+            objects = new HashMap<String,Record>();
+            this.pending.put(record.sid, objects);
+        }
+        objects.put(record.name, record);
+    }
+
+    /**
+     * Reads the records that were not applied before the last shutdown, and
+     * queues them for applying. Replay stops at the first record that is
+     * not the next in sequence, or that fails its checksum.
+     */
+    private void replay() {
+        int offset = this.buffer.getInt(0);
+        long sequence = this.buffer.getLong(4);
+        if (offset < HEADER || offset >= this.capacity || sequence <= 0) {
+            this.buffer.putInt(0, HEADER);
+            this.buffer.putLong(4, 1L);
+            return;
+        }
+        this.head = offset;
+        this.tail = offset;
+        this.sequence = sequence;
+
+        int count = 0;
+        while (true) {
+            int wasted = 0;
+            if (offset + 4 > this.capacity || this.buffer.getInt(offset) == WRAP) {
+                wasted = this.capacity - offset;
+                offset = HEADER;
+            }
+            final Record record = this.decode(offset, wasted);
+            if (record == null || record.sequence != this.sequence) break;
+            this.track(record);
+            this.queue.add(record);
+            this.used += wasted + record.length;
+            this.sequence++;
+            offset += record.length;
+            this.tail = offset;
+            count++;
+        }
+        if (count > 0) cat.info("Replaying "+count+" session object writes from journal "+this.file);
+    }
+
+    /**
+     * Encodes a journal record.
+     * @param sequence Sequence number.
+     * @param timestamp Write timestamp in milliseconds.
+     * @param sid Session ID.
+     * @param name Session object name.
+     * @param bytes Serialised session object, or null if removed.
+     * @return encoded record.
+     */
+    private static byte[] encode(long sequence, long timestamp, String sid, String name, byte[] bytes) {
+        try {
+            final ByteArrayOutputStream buf = new ByteArrayOutputStream((bytes != null ? bytes.length : 0) + 64);
+            final DataOutputStream out = new DataOutputStream(buf);
+            out.writeInt(TIMED_RECORD);
+            out.writeLong(sequence);
+            out.writeLong(timestamp);
+            out.writeUTF(sid);
+            out.writeUTF(name);
+            out.writeInt(bytes != null ? bytes.length : REMOVED);
+            if (bytes != null) out.write(bytes);
+            final CRC32 crc = new CRC32();
+            crc.update(buf.toByteArray());
+            out.writeLong(crc.getValue());
+            out.flush();
+            return buf.toByteArray();
+        }
+        catch (IOException e) {
+            // Can't happen with a byte array stream.
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    /**
+     * Decodes the journal record at an offset.
+     * @param offset Offset of the record.
+     * @param wasted Bytes skipped at the end of the ring before the record.
+     * @return journal record, or null if there is no valid record.
+     */
+    private Record decode(int offset, int wasted) {
+        try {
+            final ByteBuffer source = this.buffer.duplicate();
+            source.position(offset);
+            final DataInputStream in = new DataInputStream(new ByteBufferInputStream(source));
+            final int marker = in.readInt();
+            if (marker != RECORD && marker != TIMED_RECORD) return null;
+            final long sequence = in.readLong();
+            // Records from older journals are applied with the current time.
+            final long timestamp = (marker == TIMED_RECORD ? in.readLong() : 0L);
+            final String sid = in.readUTF();
+            final String name = in.readUTF();
+            final int length = in.readInt();
+            if (length < REMOVED || length > this.capacity) return null;
+            final byte[] bytes = (length != REMOVED ? new byte[length] : null);
+            if (bytes != null) in.readFully(bytes);
+            final int size = source.position() - offset;
+            final long checksum = in.readLong();
+
+            final byte[] record = new byte[size];
+            final ByteBuffer copy = this.buffer.duplicate();
+            copy.position(offset);
+            copy.get(record);
+            final CRC32 crc = new CRC32();
+            crc.update(record);
+            if (crc.getValue() != checksum) return null;
+            return new Record(sequence, timestamp, sid, name, bytes, offset, size + 8, wasted);
+        }
+        catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Stops accepting writes, waits for the background thread to apply the
+     * pending writes, and closes the journal. Writes that could not be
+     * applied are replayed on the next startup.
+     */
+    void close() {
+        this.closing = true;
+        synchronized (this.queue) {
+            this.queue.notifyAll();
+        }
+        try {
+            this.writer.join(30000L);
+        }
+        catch (InterruptedException e) {
+            // Ignore - any remaining records are replayed on startup.
+        }
+        synchronized (this) {
+            this.buffer.force();
+            try { this.raf.close(); } catch (IOException e) { }
+        }
+    }
+
+    /**
+     * A single session object write in the journal.
+     */
+    private static class Record {
+
+        /** Sequence number. */
+        private long sequence;
+        /** Write timestamp in milliseconds (0 for current time). */
+        private long timestamp;
+        /** Session ID. */
+        private String sid;
+        /** Session object name. */
+        private String name;
+        /** Serialised session object (null if removed). */
+        private byte[] bytes;
+        /** Offset of the record in the journal. */
+        private int offset;
+        /** Length of the record in bytes. */
+        private int length;
+        /** Bytes skipped at the end of the ring before this record. */
+        private int wasted;
+        /**
+         * Flags that the session was removed, or the session object written
+         * directly, before the record was applied.
+         */
+        private volatile boolean cancelled = false;
+
+        /**
+         * Creates a new journal record.
+         * @param sequence Sequence number.
+         * @param timestamp Write timestamp in milliseconds (0 for current time).
+         * @param sid Session ID.
+         * @param name Session object name.
+         * @param bytes Serialised session object (null if removed).
+         * @param offset Offset of the record in the journal.
+         * @param length Length of the record in bytes.
+         * @param wasted Bytes skipped at the end of the ring before the record.
+         */
+        Record(long sequence, long timestamp, String sid, String name, byte[] bytes, int offset, int length, int wasted) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.sid = sid;
+            this.name = name;
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+            this.wasted = wasted;
+        }
+    }
+
+    /**
+     * Input stream reading from a byte buffer.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+
+        /** Byte buffer to read from. */
+        private ByteBuffer buffer;
+
+        /**
+         * Creates a new input stream.
+         * @param buffer Byte buffer to read from.
+         */
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public int read() {
+            if (!this.buffer.hasRemaining()) return -1;
+            return this.buffer.get() & 0xff;
+        }
+
+        public int read(byte[] bytes, int offset, int length) {
+            if (!this.buffer.hasRemaining()) return -1;
+            length = Math.min(length, this.buffer.remaining());
+            this.buffer.get(bytes, offset, length);
+            return length;
+        }
+    }
+
+}
@@ -0,0 +1,588 @@
+// @(#)$Id: LocalSessionStore.java,v 1.1 2014/03/03 14:12:08 morten Exp $
+package org.apache.catalina.cassandra;
+
+import java.util.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.catalina.cassandra.utils.SessionObjectSerialiser;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <ul>
+ *   <li><b>Project:</b> TomcatCassandra</li>
+ *   <li><b>Class:</b> org.apache.catalina.cassandra.LocalSessionStore</li>
+ *   <li><b>Author:</b> morten.jorgensen@openjawtech.com</li>
+ *   <li><b>Created:</b> 3 Mar 2014 14:12:08</li>
+ *   <li><b>Description:</b>
+ *     In-memory store for the sessions owned by this Tomcat node when the
+ *     session manager runs in sticky-session mode. Session IDs carry a
+ *     routing suffix (".jvmRoute") that identifies the owning node, and the
+ *     owning node serves session objects and session values from memory.
+ *     Changes are persisted to Cassandra asynchronously, either at the end
+ *     of each request or periodically, so that any other node can load the
+ *     session from Cassandra on failover.
+ *   </li>
+ *   <li><b>Functional spec. ref.:</b> </li>
+ *   <li><b>Design spec.ref.:</b> </li>
+ * </ul>
+ */
+class LocalSessionStore {
+
+    /** Log4J logger instance for class LocalSessionStore. */
+    private final static Logger cat = Logger.getLogger(LocalSessionStore.class);
+    /** Log4J debug setting for class LocalSessionStore. */
+    private final static boolean debug = cat.isDebugEnabled();
+
+    /** Marker for session objects that are known not to exist. */
+    final static Object MISSING = new Object();
+
+    /** How often we sweep for idle sessions, given in seconds. */
+    private final static long SWEEP_INTERVAL = 60L;
+
+    /** Cassandra manager for the web application. */
+    private CassandraManager manager;
+
+    /** Serialiser for session objects. */
+    private SessionObjectSerialiser serialiser;
+
+    /** Routing suffix identifying sessions owned by this node. */
+    private String route;
+
+    /**
+     * Interval in seconds between periodic persists of changed sessions, or
+     * 0 if changed sessions are persisted at the end of each request.
+     */
+    private long persistInterval;
+
+    /** Local sessions, keyed by session ID. */
+    private Map<String,LocalSession> sessions = new ConcurrentHashMap<String,LocalSession>();
+
+    /** Executor that persists changed sessions to Cassandra. */
+    private ScheduledExecutorService executor;
+
+    /**
+     * Creates a new local session store.
+     * @param manager Cassandra manager for the web application.
+     * @param serialiser Serialiser for session objects.
+     * @param route Routing suffix (jvmRoute) for this node.
+     */
+    LocalSessionStore(CassandraManager manager, SessionObjectSerialiser serialiser, String route) {
+        this.manager = manager;
+        this.serialiser = serialiser;
+        this.route = route;
+        this.persistInterval = manager.getClient().getConfig().getPersistInterval();
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "CassandraSessionPersister["+LocalSessionStore.this.route+"]");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        final long period = (this.persistInterval > 0 ? this.persistInterval : SWEEP_INTERVAL);
+        this.executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                LocalSessionStore.this.sweep();
+            }
+        }, period, period, TimeUnit.SECONDS);
+
+        cat.info("Cassandra session manager running in sticky-session mode for route \""+route+"\"");
+    }
+
+    /**
+     * Returns the routing suffix for this node.
+     * @return the routing suffix for this node.
+     */
+    String getRoute() {
+        return this.route;
+    }
+
+    /**
+     * Tells you if a session is owned by this node.
+     * @param sid Session ID.
+     * @return true if the session ID carries this node's routing suffix.
+     */
+    boolean isOwner(String sid) {
+        if (sid == null) return false;
+        return sid.endsWith("."+this.route);
+    }
+
+    /**
+     * Obtains the local session for a session ID, creating an empty local
+     * session if none exists.
+     * @param sid Session ID.
+     * @return local session.
+     */
+    LocalSession get(String sid) {
+        LocalSession session = this.sessions.get(sid);
+        if (session == null) {
+            synchronized (this) {
+                session = this.sessions.get(sid);
+                if (session == null) {
+                    session = new LocalSession(sid);
+                    this.sessions.put(sid, session);
+                }
+            }
+        }
+        return session;
+    }
+
+    /**
+     * Removes a local session. Any changes not yet persisted are discarded.
+     * @param sid Session ID.
+     */
+    void remove(String sid) {
+        final LocalSession session = this.sessions.remove(sid);
+        if (session != null) session.remove();
+    }
+
+    /**
+     * Returns the number of sessions held in memory.
+     * @return the number of sessions held in memory.
+     */
+    int size() {
+        return this.sessions.size();
+    }
+
+    /**
+     * Flags the end of a request for a local session. The session objects
+     * changed by the request are serialised by the request thread, so that
+     * the persister never reads objects that a later request may be
+     * changing. If changes are to be persisted at the end of each request,
+     * the session is queued for persisting.
+     * @param session Local session.
+     */
+    void endAccess(final LocalSession session) {
+        session.snapshot(this.serialiser);
+        if (this.persistInterval > 0) return;
+        if (!session.schedule()) return;
+        this.executor.execute(new Runnable() {
+            public void run() {
+                LocalSessionStore.this.persist(session);
+            }
+        });
+    }
+
+    /**
+     * Persists all changes to a local session to Cassandra.
+     * @param session Local session.
+     */
+    private void persist(LocalSession session) {
+        final LocalSession.Changes changes = session.drain();
+        if (changes == null) return;
+
+        final CassandraClient client = this.manager.getClient();
+        final Journal journal = this.manager.getJournal();
+        final String sid = session.getId();
+        try {
+            String version = null;
+            final Iterator<Map.Entry<String,byte[]>> attributes = changes.attributes.entrySet().iterator();
+            while (attributes.hasNext()) {
+                final Map.Entry<String,byte[]> attribute = attributes.next();
+                // Writes journalled before this node owned the session must
+                // not be applied after this one.
+                if (journal != null) journal.cancel(sid, attribute.getKey());
+                if (attribute.getValue() != null)
+                    version = client.addSessionObjectBytes(sid, attribute.getKey(), attribute.getValue(), 0L, client.getConfig().getAttributeTtl(attribute.getKey()));
+                else
+                    version = client.removeSessionObject(sid, attribute.getKey());
+            }
+            if (changes.values.size() > 0) {
+                client.setSessionValues(sid, changes.values);
+                client.updateExpiry(sid);
+            }
+            client.refreshIfDue(sid);
+            if (version != null) {
+                session.persisted(version);
+                final NearCache near = this.manager.getNearCache();
+                if (near != null) near.update(sid, version);
+            }
+            if (debug) cat.debug("["+sid+"] Persisted "+changes.attributes.size()+" session objects and "+changes.values.size()+" session values");
+        }
+        catch (Throwable e) {
+            cat.error("["+sid+"] Unable to persist session: "+e.getMessage(), e);
+            session.restore(changes);
+        }
+    }
+
+    /**
+     * Persists changed sessions (when persisting periodically), and drops
+     * sessions from memory that have been idle for longer than the session
+     * timeout.
+     */
+    private void sweep() {
+        try {
+            final long timeout = this.manager.getClient().getConfig().getTimeout() * 1000L;
+            final long now = System.currentTimeMillis();
+            final Iterator<LocalSession> sessions = this.sessions.values().iterator();
+            while (sessions.hasNext()) {
+                final LocalSession session = sessions.next();
+                final boolean idle = (now - session.getLastUsed()) > timeout;
+                if (this.persistInterval > 0 || idle) {
+                    // Idle sessions have no request that could snapshot them.
+                    if (idle) session.snapshot(this.serialiser);
+                    this.persist(session);
+                }
+                if (idle && !session.isDirty()) {
+                    if (debug) cat.debug("["+session.getId()+"] Dropping idle session from memory");
+                    sessions.remove();
+                }
+            }
+        }
+        catch (Throwable e) {
+            cat.error("Error sweeping local sessions: "+e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Stops the persister and persists all outstanding changes.
+     */
+    void shutdown() {
+        this.executor.shutdown();
+        try {
+            this.executor.awaitTermination(30, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            // Ignore - we persist the remaining changes below.
+        }
+        final Iterator<LocalSession> sessions = this.sessions.values().iterator();
+        while (sessions.hasNext()) {
+            final LocalSession session = sessions.next();
+            session.snapshot(this.serialiser);
+            this.persist(session);
+        }
+    }
+
+    /**
+     * In-memory copy of a single session owned by this node.
+     */
+    static class LocalSession {
+
+        /** Session ID. */
+        private String sid;
+        /** Session version stamp the clean (persisted) state reflects. */
+        private String version = null;
+        /** Flags that the version stamp has been validated against Cassandra. */
+        private boolean validated = false;
+        /**
+         * Flags that all session objects are held in memory, so that session
+         * objects we don't hold are known not to exist.
+         */
+        private boolean complete = false;
+        /** Session objects, keyed by name (MISSING if known not to exist). */
+        private Map<String,Object> attributes = new HashMap<String,Object>();
+        /** Names of session objects changed since they were last persisted. */
+        private Set<String> dirty = new HashSet<String>();
+        /**
+         * Serialised copies of changed session objects, taken at the end of
+         * the request that changed them (null for removed objects). Changed
+         * session objects without a copy are not persisted yet.
+         */
+        private Map<String,byte[]> snapshots = new HashMap<String,byte[]>();
+        /** Names of all session objects (null if not loaded). */
+        private Set<String> names = null;
+        /** Session values (such as access timestamps), keyed by name. */
+        private Map<String,Object> values = new HashMap<String,Object>();
+        /** Names of session values changed since they were last persisted. */
+        private Set<String> dirtyValues = new HashSet<String>();
+        /** Timestamp for when the session was last used on this node. */
+        private long lastUsed = System.currentTimeMillis();
+        /** Flags that the session has been queued for persisting. */
+        private boolean scheduled = false;
+        /** Flags that the session has been removed. */
+        private boolean removed = false;
+
+        /**
+         * Creates a new local session.
+         * @param sid Session ID.
+         */
+        LocalSession(String sid) {
+            this.sid = sid;
+        }
+
+        /**
+         * Returns the session ID.
+         * @return the session ID.
+         */
+        String getId() {
+            return this.sid;
+        }
+
+        /**
+         * Initialises a session that has just been created by this node.
+         * @param version Session version stamp.
+         */
+        synchronized void created(String version) {
+            this.version = version;
+            this.validated = true;
+            this.complete = true;
+            this.names = new HashSet<String>();
+        }
+
+        /**
+         * Validates the in-memory state against the session version stamp in
+         * Cassandra. If another node has written to the session, all state
+         * that has not been changed locally is dropped and reloaded on demand.
+         * @param current Current session version stamp in Cassandra.
+         * @return false if the session has been removed from Cassandra.
+         */
+        synchronized boolean validate(String current) {
+            this.lastUsed = System.currentTimeMillis();
+            if (this.validated && this.version != null && current == null) {
+                return false;
+            }
+            if (this.validated && (this.version == null ? current == null : this.version.equals(current))) {
+                return true;
+            }
+            if (this.validated) {
+                if (debug) cat.debug("["+sid+"] Session written by another node - dropping in-memory state");
+                this.attributes.keySet().retainAll(this.dirty);
+                this.values.keySet().retainAll(this.dirtyValues);
+                this.names = null;
+                this.complete = false;
+            }
+            this.version = current;
+            this.validated = true;
+            return true;
+        }
+
+        /**
+         * Obtains a session object held in memory.
+         * @param name Session object name.
+         * @return Session object, MISSING if the session object is known
+         *    not to exist, or null if it is not held in memory.
+         */
+        synchronized Object getAttribute(String name) {
+            this.lastUsed = System.currentTimeMillis();
+            final Object value = this.attributes.get(name);
+            if (value == null && this.complete) return MISSING;
+            return value;
+        }
+
+        /**
+         * Stores a session object that has been read from Cassandra.
+         * @param name Session object name.
+         * @param value Session object (or null).
+         */
+        synchronized void loadAttribute(String name, Object value) {
+            if (this.attributes.containsKey(name)) return;
+            this.attributes.put(name, (value != null ? value : MISSING));
+        }
+
+        /**
+         * Sets/updates/removes a session object.
+         * @param name Session object name.
+         * @param value Session object, or null to remove it.
+         */
+        synchronized void setAttribute(String name, Object value) {
+            this.lastUsed = System.currentTimeMillis();
+            this.attributes.put(name, (value != null ? value : MISSING));
+            this.dirty.add(name);
+            this.snapshots.remove(name);
+            if (this.names != null) {
+                if (value != null)
+                    this.names.add(name);
+                else
+                    this.names.remove(name);
+            }
+        }
+
+        /**
+         * Returns the names of all session objects.
+         * @return the names of all session objects, or null if not loaded.
+         */
+        synchronized List<String> getNames() {
+            if (this.names == null) return null;
+            return new ArrayList<String>(this.names);
+        }
+
+        /**
+         * Stores the names of all session objects as read from Cassandra,
+         * merged with the session objects changed in memory.
+         * @param loaded Session object names read from Cassandra.
+         */
+        synchronized void loadNames(Collection<String> loaded) {
+            this.names = new HashSet<String>(loaded);
+            final Iterator<String> names = this.dirty.iterator();
+            while (names.hasNext()) {
+                final String name = names.next();
+                if (this.attributes.get(name) != MISSING)
+                    this.names.add(name);
+                else
+                    this.names.remove(name);
+            }
+        }
+
+        /**
+         * Tells you if a session value is held in memory.
+         * @param name Session value name.
+         * @return true if the session value is held in memory.
+         */
+        synchronized boolean hasValue(String name) {
+            return this.values.containsKey(name);
+        }
+
+        /**
+         * Obtains a session value held in memory.
+         * @param name Session value name.
+         * @return Session value (a String or a Long), or null.
+         */
+        synchronized Object getValue(String name) {
+            return this.values.get(name);
+        }
+
+        /**
+         * Stores a session value that has been read from Cassandra.
+         * @param name Session value name.
+         * @param value Session value (a String or a Long).
+         */
+        synchronized void loadValue(String name, Object value) {
+            if (this.values.containsKey(name)) return;
+            this.values.put(name, value);
+        }
+
+        /**
+         * Sets/updates a session value.
+         * @param name Session value name.
+         * @param value Session value (a String or a Long).
+         */
+        synchronized void setValue(String name, Object value) {
+            this.values.put(name, value);
+            this.dirtyValues.add(name);
+        }
+
+        /**
+         * Returns the timestamp for when the session was last used.
+         * @return the timestamp for when the session was last used.
+         */
+        synchronized long getLastUsed() {
+            return this.lastUsed;
+        }
+
+        /**
+         * Tells you if the session has changes that are not yet persisted.
+         * @return true if the session has changes that are not persisted.
+         */
+        synchronized boolean isDirty() {
+            return (this.dirty.size() > 0 || this.dirtyValues.size() > 0);
+        }
+
+        /**
+         * Flags that the session is to be queued for persisting.
+         * @return false if the session is already queued.
+         */
+        synchronized boolean schedule() {
+            if (this.scheduled) return false;
+            this.scheduled = true;
+            return true;
+        }
+
+        /**
+         * Flags that the session has been removed.
+         */
+        synchronized void remove() {
+            this.removed = true;
+            this.dirty.clear();
+            this.snapshots.clear();
+            this.dirtyValues.clear();
+        }
+
+        /**
+         * Serialises the changed session objects that have no serialised
+         * copy yet. Session objects that cannot be serialised are logged,
+         * and attempted again at the next snapshot.
+         * @param serialiser Serialiser for session objects.
+         */
+        synchronized void snapshot(SessionObjectSerialiser serialiser) {
+            if (this.removed) return;
+            final Iterator<String> names = this.dirty.iterator();
+            while (names.hasNext()) {
+                final String name = names.next();
+                if (this.snapshots.containsKey(name)) continue;
+                final Object value = this.attributes.get(name);
+                if (value == MISSING) {
+                    this.snapshots.put(name, null);
+                    continue;
+                }
+                try {
+                    final ByteBuffer buffer = serialiser.toByteBuffer(value);
+                    final byte[] bytes = new byte[buffer.remaining()];
+                    buffer.get(bytes);
+                    this.snapshots.put(name, bytes);
+                }
+                catch (Throwable e) {
+                    cat.error("["+sid+"] Unable to serialise session object "+name+": "+e.getMessage(), e);
+                }
+            }
+        }
+
+        /**
+         * Takes the changes that are to be persisted, and clears the change
+         * tracking for these. Only session objects that have been serialised
+         * by snapshot() are taken.
+         * @return changes to persist, or null if there are none.
+         */
+        synchronized Changes drain() {
+            this.scheduled = false;
+            if (this.removed || !this.isDirty()) return null;
+            final Changes changes = new Changes();
+            final Iterator<Map.Entry<String,byte[]>> snapshots = this.snapshots.entrySet().iterator();
+            while (snapshots.hasNext()) {
+                final Map.Entry<String,byte[]> snapshot = snapshots.next();
+                changes.attributes.put(snapshot.getKey(), snapshot.getValue());
+                this.dirty.remove(snapshot.getKey());
+            }
+            final Iterator<String> values = this.dirtyValues.iterator();
+            while (values.hasNext()) {
+                final String name = values.next();
+                changes.values.put(name, this.values.get(name));
+            }
+            this.snapshots.clear();
+            this.dirtyValues.clear();
+            if (changes.attributes.size() == 0 && changes.values.size() == 0) return null;
+            return changes;
+        }
+
+        /**
+         * Puts back changes that could not be persisted, so that they are
+         * attempted again.
+         * @param changes Changes that could not be persisted.
+         */
+        synchronized void restore(Changes changes) {
+            if (this.removed) return;
+            final Iterator<Map.Entry<String,byte[]>> attributes = changes.attributes.entrySet().iterator();
+            while (attributes.hasNext()) {
+                final Map.Entry<String,byte[]> attribute = attributes.next();
+                // Session objects changed since are persisted when snapshot.
+                if (!this.dirty.add(attribute.getKey())) continue;
+                this.snapshots.put(attribute.getKey(), attribute.getValue());
+            }
+            this.dirtyValues.addAll(changes.values.keySet());
+        }
+
+        /**
+         * Records the session version stamp written when persisting.
+         * @param version New session version stamp.
+         */
+        synchronized void persisted(String version) {
+            this.version = version;
+        }
+
+        /**
+         * Changes to a local session that are to be persisted.
+         */
+        static class Changes {
+            /** Serialised changed session objects (null for removed objects). */
+            Map<String,byte[]> attributes = new LinkedHashMap<String,byte[]>();
+            /** Changed session values. */
+            Map<String,Object> values = new LinkedHashMap<String,Object>();
+        }
+    }
+
+}
@@ -0,0 +1,238 @@
+// @(#)$Id: NearCache.java,v 1.1 2014/02/24 09:47:12 morten Exp $
+package org.apache.catalina.cassandra;
+
+import java.util.*;
+
+import java.text.DecimalFormat;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <ul>
+ *   <li><b>Project:</b> TomcatCassandra</li>
+ *   <li><b>Class:</b> org.apache.catalina.cassandra.NearCache</li>
+ *   <li><b>Author:</b> morten.jorgensen@openjawtech.com</li>
+ *   <li><b>Created:</b> 24 Feb 2014 09:47:12</li>
+ *   <li><b>Description:</b>
+ *     Node-local cache of serialised session objects, sitting underneath
+ *     the request-scope caches. Session objects are cached per session
+ *     together with the session version stamp they were read for, and a
+ *     cached object is only returned while the version stamp in Cassandra
+ *     is unchanged. The version stamp changes on every session object
+ *     write, so reading the stamp once per request replaces the reads of
+ *     all session objects that have not changed since they were cached.
+ *     The cache is bounded by size, and the least recently used sessions
+ *     are evicted first.
+ *   </li>
+ *   <li><b>Functional spec. ref.:</b> </li>
+ *   <li><b>Design spec.ref.:</b> </li>
+ * </ul>
+ */
+class NearCache {
+
+    /** Log4J logger instance for class NearCache. */
+    private final static Logger cat = Logger.getLogger(NearCache.class);
+    /** Log4J debug setting for class NearCache. */
+    private final static boolean debug = cat.isDebugEnabled();
+
+    /** Cached value for session objects that do not exist in Cassandra. */
+    final static byte[] MISSING = new byte[0];
+
+    /** Estimated overhead in bytes for each cached session object. */
+    private final static long OVERHEAD = 32L;
+
+    /** Maximum size of the cache in bytes. */
+    private long capacity;
+
+    /** Current (estimated) size of the cache in bytes. */
+    private long size = 0L;
+
+    /** Cached sessions, keyed by session ID, in least recently used order. */
+    private LinkedHashMap<String,Entry> sessions = new LinkedHashMap<String,Entry>(16, 0.75f, true);
+
+    /** Statistics: Cache hits. */
+    private long hits = 0L;
+    /** Statistics: Cache misses. */
+    private long misses = 0L;
+    /** Statistics: Sessions evicted to keep the cache within its size. */
+    private long evictions = 0L;
+
+    /**
+     * Creates a new near cache.
+     * @param capacity Maximum size of the cache in bytes.
+     */
+    NearCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Obtains a cached session object.
+     * @param sid Session ID.
+     * @param version Current session version stamp in Cassandra.
+     * @param name Session object name.
+     * @return Serialised session object, MISSING if the session object is
+     *    known not to exist, or null if the session object is not cached
+     *    for this version of the session.
+     */
+    synchronized byte[] get(String sid, String version, String name) {
+        final Entry entry = this.sessions.get(sid);
+        if (entry == null || !entry.version.equals(version)) {
+            this.misses++;
+            return null;
+        }
+        final byte[] bytes = entry.values.get(name);
+        if (bytes == null)
+            this.misses++;
+        else
+            this.hits++;
+        return bytes;
+    }
+
+    /**
+     * Caches a session object that has been read from Cassandra.
+     * @param sid Session ID.
+     * @param version Session version stamp, read before the session object.
+     * @param name Session object name.
+     * @param bytes Serialised session object, or MISSING.
+     */
+    synchronized void put(String sid, String version, String name, byte[] bytes) {
+        final long length = OVERHEAD + name.length() * 2 + bytes.length;
+        if (length > this.capacity) return;
+
+        Entry entry = this.sessions.get(sid);
+        if (entry == null || !entry.version.equals(version)) {
+            if (entry != null) this.size -= entry.size;
+            entry = new Entry(version);
+            this.sessions.put(sid, entry);
+        }
+        final byte[] old = entry.values.put(name, bytes);
+        if (old != null) {
+            final long oldLength = OVERHEAD + name.length() * 2 + old.length;
+            entry.size -= oldLength;
+            this.size -= oldLength;
+        }
+        entry.size += length;
+        this.size += length;
+        this.evict();
+    }
+
+    /**
+     * Records that this node has written a new version of a session. All
+     * cached session objects for the session are dropped, as we cannot know
+     * whether other nodes have also written to the session.
+     * @param sid Session ID.
+     * @param version New session version stamp.
+     */
+    synchronized void update(String sid, String version) {
+        final Entry entry = this.sessions.remove(sid);
+        if (entry != null) this.size -= entry.size;
+        this.sessions.put(sid, new Entry(version));
+    }
+
+    /**
+     * Removes all cached session objects for a session.
+     * @param sid Session ID.
+     */
+    synchronized void remove(String sid) {
+        final Entry entry = this.sessions.remove(sid);
+        if (entry != null) this.size -= entry.size;
+    }
+
+    /**
+     * Evicts the least recently used sessions until the cache is within its
+     * maximum size.
+     */
+    private void evict() {
+        final Iterator<Entry> entries = this.sessions.values().iterator();
+        while (this.size > this.capacity && entries.hasNext()) {
+            final Entry entry = entries.next();
+            entries.remove();
+            this.size -= entry.size;
+            this.evictions++;
+        }
+    }
+
+    /**
+     * Returns the number of cache hits.
+     * @return the number of cache hits.
+     */
+    synchronized long getHits() {
+        return this.hits;
+    }
+
+    /**
+     * Returns the number of cache misses.
+     * @return the number of cache misses.
+     */
+    synchronized long getMisses() {
+        return this.misses;
+    }
+
+    /**
+     * Returns the number of sessions evicted from the cache.
+     * @return the number of sessions evicted from the cache.
+     */
+    synchronized long getEvictions() {
+        return this.evictions;
+    }
+
+    /**
+     * Returns the current (estimated) size of the cache in bytes.
+     * @return the current size of the cache in bytes.
+     */
+    synchronized long getSize() {
+        return this.size;
+    }
+
+    /**
+     * Returns the cache hit rate as a percentage.
+     * @return the cache hit rate as a percentage.
+     */
+    synchronized double getHitRate() {
+        final double total = (double)this.hits + (double)this.misses;
+        if (total == 0) return 0d;
+        return ((double)this.hits / total) * 100d;
+    }
+
+    /**
+     * Creates an XML element that holds the cache statistics.
+     * @param doc Document used to create XML elements.
+     * @return cache statistics element.
+     */
+    synchronized Element toElement(Document doc) {
+        final Element element = doc.createElement("NearCache");
+        element.setAttribute("hits", Long.toString(this.hits));
+        element.setAttribute("misses", Long.toString(this.misses));
+        element.setAttribute("hitRate", new DecimalFormat("#.##").format(this.getHitRate()));
+        element.setAttribute("evictions", Long.toString(this.evictions));
+        element.setAttribute("sessions", Integer.toString(this.sessions.size()));
+        element.setAttribute("size", Long.toString(this.size));
+        element.setAttribute("capacity", Long.toString(this.capacity));
+        return element;
+    }
+
+    /**
+     * Cached session objects for a single version of a session.
+     */
+    private static class Entry {
+
+        /** Session version stamp the session objects were read for. */
+        private String version;
+        /** Serialised session objects, keyed by name. */
+        private Map<String,byte[]> values = new HashMap<String,byte[]>();
+        /** Estimated size of this entry in bytes. */
+        private long size = 0L;
+
+        /**
+         * Creates a new cache entry.
+         * @param version Session version stamp.
+         */
+        Entry(String version) {
+            this.version = version;
+        }
+    }
+
+}
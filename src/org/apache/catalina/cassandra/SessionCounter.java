@@ -0,0 +1,271 @@
+// @(#)$Id: SessionCounter.java,v 1.1 2014/04/22 15:12:08 morten Exp $
+package org.apache.catalina.cassandra;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <ul>
+ *   <li><b>Project:</b> TomcatCassandra</li>
+ *   <li><b>Class:</b> org.apache.catalina.cassandra.SessionCounter</li>
+ *   <li><b>Author:</b> morten.jorgensen@openjawtech.com</li>
+ *   <li><b>Created:</b> 22 Apr 2014 15:12:08</li>
+ *   <li><b>Description:</b>
+ *     Keeps an approximate count of the active sessions, being the distinct
+ *     sessions created or accessed within the session timeout. Each node
+ *     adds the IDs of the sessions it sees to a HyperLogLog sketch of the
+ *     current time window. A background thread periodically writes the
+ *     node's sketches to Cassandra, reads the sketches of all nodes for the
+ *     windows within the session timeout, and merges them into an estimate
+ *     of the count. Reading the count costs nothing, but it is up to one
+ *     interval old, has an error of a few percent, and still includes
+ *     sessions invalidated within the timeout.
+ *   </li>
+ *   <li><b>Functional spec. ref.:</b> </li>
+ *   <li><b>Design spec.ref.:</b> </li>
+ * </ul>
+ */
+class SessionCounter {
+
+    /** Log4J logger instance for class SessionCounter. */
+    private final static Logger cat = Logger.getLogger(SessionCounter.class);
+    /** Log4J debug setting for class SessionCounter. */
+    private final static boolean debug = cat.isDebugEnabled();
+
+    /** Number of hash bits that select a sketch register. */
+    private final static int PRECISION = 12;
+    /** Number of sketch registers (about 1.6% standard error). */
+    private final static int REGISTERS = 1 << PRECISION;
+
+    /** Cassandra client API wrapper. */
+    private CassandraClient client;
+
+    /** Unique ID of this node, the column its sketches are stored under. */
+    private String node;
+
+    /** Length of a time window in milliseconds. */
+    private long window;
+
+    /** Session timeout in milliseconds. */
+    private long timeout;
+
+    /** Sketches of the windows not yet written in full, keyed by window. */
+    private Map<Long,byte[]> sketches = new HashMap<Long,byte[]>();
+
+    /** Window of the sketch sessions are currently added to. */
+    private long current = -1L;
+    /** Sketch sessions are currently added to. */
+    private byte[] registers = null;
+
+    /** Executor that runs the updates. */
+    private ScheduledExecutorService executor;
+
+    /** Estimated number of active sessions. */
+    private volatile int count = 0;
+    /** Time of the last update of the estimate. */
+    private volatile long updated = 0L;
+
+    /**
+     * Creates a new session counter, and schedules the updates.
+     * @param client Cassandra client API wrapper.
+     * @param name Name of the web application (used to name the thread).
+     * @param node Unique ID of this node.
+     * @param interval Interval in seconds between updates, which is also the
+     *    length of a time window.
+     * @param timeout Session timeout in seconds.
+     */
+    SessionCounter(CassandraClient client, final String name, String node, long interval, long timeout) {
+        this.client = client;
+        this.node = node;
+        this.window = Math.max(1L, interval) * 1000L;
+        this.timeout = timeout * 1000L;
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "CassandraSessionCounter["+name+"]");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                SessionCounter.this.update();
+            }
+        }, 0L, this.window, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds a session that has been created or accessed to the sketch of the
+     * current window.
+     * @param sid Session ID.
+     */
+    void add(String sid) {
+        final long hash = hash(sid);
+        final int index = (int)(hash >>> (64 - PRECISION));
+        final byte rank = (byte)(Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1);
+        final long now = System.currentTimeMillis() / this.window;
+        synchronized (this) {
+            if (now != this.current) {
+                this.current = now;
+                this.registers = this.sketches.get(Long.valueOf(now));
+                if (this.registers == null) {
+                    this.registers = new byte[REGISTERS];
+                    this.sketches.put(Long.valueOf(now), this.registers);
+                }
+            }
+            if (this.registers[index] < rank) this.registers[index] = rank;
+        }
+    }
+
+    /**
+     * Writes the sketches of this node, and updates the estimate from the
+     * sketches of all nodes.
+     */
+    private void update() {
+        try {
+            this.write();
+            this.count = this.read();
+            this.updated = System.currentTimeMillis();
+            if (debug) cat.debug("Estimated "+this.count+" active sessions");
+        }
+        catch (Throwable e) {
+            cat.error("Unable to update the active session count: "+e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Writes copies of this node's sketches to Cassandra. The sketches of
+     * past windows are dropped once they have been written, as they will not
+     * change again, but are kept for the next write if the write fails. The
+     * sketches expire once they are older than the session timeout.
+     */
+    private void write() {
+        final long now = System.currentTimeMillis() / this.window;
+        final Map<Long,byte[]> copies = new HashMap<Long,byte[]>();
+        final Map<Long,byte[]> past = new HashMap<Long,byte[]>();
+        synchronized (this) {
+            final Iterator<Map.Entry<Long,byte[]>> entries = this.sketches.entrySet().iterator();
+            while (entries.hasNext()) {
+                final Map.Entry<Long,byte[]> entry = entries.next();
+                copies.put(entry.getKey(), entry.getValue().clone());
+                if (entry.getKey().longValue() < now) past.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (copies.size() == 0) return;
+        final int ttl = (int)((this.timeout + 2L * this.window) / 1000L);
+        this.client.setSessionCounts(this.node, copies, ttl);
+
+        // A late add() may have updated a past sketch after it was copied,
+        // in which case it is kept and written again.
+        synchronized (this) {
+            final Iterator<Map.Entry<Long,byte[]>> entries = past.entrySet().iterator();
+            while (entries.hasNext()) {
+                final Map.Entry<Long,byte[]> entry = entries.next();
+                final byte[] registers = this.sketches.get(entry.getKey());
+                if (registers != entry.getValue()) continue;
+                if (!Arrays.equals(registers, copies.get(entry.getKey()))) continue;
+                this.sketches.remove(entry.getKey());
+                if (entry.getKey().longValue() == this.current) this.current = -1L;
+            }
+        }
+    }
+
+    /**
+     * Reads and merges the sketches of all nodes for the windows within the
+     * session timeout.
+     * @return the estimated number of active sessions.
+     */
+    private int read() {
+        final long now = System.currentTimeMillis();
+        final List<Long> windows = new ArrayList<Long>();
+        for (long i=(now - this.timeout) / this.window; i<=now / this.window; i++) windows.add(Long.valueOf(i));
+        final List<byte[]> sketches = this.client.getSessionCounts(windows);
+
+        final byte[] merged = new byte[REGISTERS];
+        for (int i=0; i<sketches.size(); i++) {
+            final byte[] sketch = sketches.get(i);
+            if (sketch == null || sketch.length != REGISTERS) continue;
+            for (int j=0; j<REGISTERS; j++) {
+                if (merged[j] < sketch[j]) merged[j] = sketch[j];
+            }
+        }
+        return estimate(merged);
+    }
+
+    /**
+     * Estimates the number of distinct sessions in a sketch.
+     * @param registers Sketch registers.
+     * @return the estimated number of distinct sessions.
+     */
+    private static int estimate(byte[] registers) {
+        double sum = 0d;
+        int zeros = 0;
+        for (int i=0; i<registers.length; i++) {
+            sum += 1d / (1L << registers[i]);
+            if (registers[i] == 0) zeros++;
+        }
+        final double m = registers.length;
+        double estimate = (0.7213d / (1d + 1.079d / m)) * m * m / sum;
+        // Use linear counting while many registers are still empty.
+        if (estimate <= 2.5d * m && zeros > 0) estimate = m * Math.log(m / zeros);
+        return (int)Math.round(estimate);
+    }
+
+    /**
+     * Hashes a session ID to 64 bits (FNV-1a, with a final mix so that all
+     * bits depend on all characters).
+     * @param sid Session ID.
+     * @return the hash.
+     */
+    private static long hash(String sid) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i=0; i<sid.length(); i++) {
+            hash ^= sid.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= (hash >>> 33);
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= (hash >>> 33);
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= (hash >>> 33);
+        return hash;
+    }
+
+    /**
+     * Stops the updates, and writes this node's sketches a final time.
+     */
+    void shutdown() {
+        this.executor.shutdownNow();
+        try {
+            this.executor.awaitTermination(30, TimeUnit.SECONDS);
+            this.write();
+        }
+        catch (Throwable e) {
+            cat.warn("Unable to write the active session count on shutdown: "+e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the estimated number of active sessions.
+     * @return the estimated number of active sessions.
+     */
+    int getCount() {
+        return this.count;
+    }
+
+    /**
+     * Returns how old the estimate is.
+     * @return the time in milliseconds since the estimate was updated.
+     */
+    long getAge() {
+        final long updated = this.updated;
+        if (updated == 0L) return 0L;
+        return System.currentTimeMillis() - updated;
+    }
+
+}
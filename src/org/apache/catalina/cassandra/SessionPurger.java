@@ -0,0 +1,299 @@
+// @(#)$Id: SessionPurger.java,v 1.1 2014/04/14 10:05:37 morten Exp $
+package org.apache.catalina.cassandra;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <ul>
+ *   <li><b>Project:</b> TomcatCassandra</li>
+ *   <li><b>Class:</b> org.apache.catalina.cassandra.SessionPurger</li>
+ *   <li><b>Author:</b> morten.jorgensen@openjawtech.com</li>
+ *   <li><b>Created:</b> 14 Apr 2014 10:05:37</li>
+ *   <li><b>Description:</b>
+ *     Purges expired sessions from Cassandra on a thread of its own, so
+ *     that a large purge never holds up Tomcat's container background
+ *     thread. Expired sessions are deleted in batch mutations of many
+ *     sessions each, and the deletions are spread out to stay within a
+ *     budget of deletions per second, so that a backlog of expired sessions
+ *     does not flood the cluster with tombstones.
+ *   </li>
+ *   <li><b>Functional spec. ref.:</b> </li>
+ *   <li><b>Design spec.ref.:</b> </li>
+ * </ul>
+ */
+class SessionPurger {
+
+    /** Log4J logger instance for class SessionPurger. */
+    private final static Logger cat = Logger.getLogger(SessionPurger.class);
+    /** Log4J debug setting for class SessionPurger. */
+    private final static boolean debug = cat.isDebugEnabled();
+
+    /** Cassandra manager for the web application. */
+    private CassandraManager manager;
+
+    /** Maximum number of session deletions per second (0 for no limit). */
+    private int rate;
+
+    /** Maximum number of sessions deleted in a single batch mutation. */
+    private int batch;
+
+    /** Interval in seconds between purges. */
+    private long interval;
+
+    /** ID of this purger in a partitioned purge (null if not partitioned). */
+    private volatile String node = null;
+
+    /** Number of live purgers seen by the last partitioned purge. */
+    private volatile int purgers = 1;
+
+    /** Executor that runs the purges. */
+    private ScheduledExecutorService executor;
+
+    /** Flags that the purger is being shut down. */
+    private volatile boolean closing = false;
+
+    /** Expired sessions found but not yet deleted. */
+    private volatile int pending = 0;
+    /** Time when the oldest expired session not yet deleted was found. */
+    private volatile long pendingSince = 0L;
+
+    /** Time when the current purge started (purge thread only). */
+    private long started = 0L;
+    /** Sessions the current purge has tried to delete (purge thread only). */
+    private int attempted = 0;
+    /** Sessions the current purge has deleted (purge thread only). */
+    private int deleted = 0;
+    /** Time of the last claim on the bucket being purged (purge thread only). */
+    private long claimed = 0L;
+
+    /** Statistics: Sessions deleted. */
+    private long purged = 0L;
+    /** Statistics: Batch mutations sent to Cassandra. */
+    private long batches = 0L;
+    /** Statistics: Sessions deleted per second by the last purge. */
+    private double throughput = 0d;
+
+    /**
+     * Creates a new session purger, and schedules the purges.
+     * @param manager Cassandra manager for the web application.
+     * @param name Name of the web application (used to name the thread).
+     * @param interval Interval in seconds between purges.
+     * @param rate Maximum number of deletions per second (0 for no limit).
+     * @param batch Maximum number of sessions deleted per batch mutation.
+     */
+    SessionPurger(CassandraManager manager, final String name, long interval, int rate, int batch) {
+        this.manager = manager;
+        this.interval = interval;
+        this.rate = rate;
+        this.batch = Math.max(1, (rate > 0 ? Math.min(batch, rate) : batch));
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "CassandraSessionPurger["+name+"]");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                SessionPurger.this.purge();
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Shares the purge with the purgers on the other Tomcat nodes using the
+     * same keyspace, so that each expired session is found and deleted by a
+     * single node.
+     * @param node Unique ID of this purger.
+     */
+    void partition(String node) {
+        this.node = node;
+        cat.info("Cassandra session manager sharing the purge of expired sessions as \""+node+"\"");
+    }
+
+    /**
+     * Finds all expired sessions and deletes them. With the expiry index,
+     * the due buckets are purged one at a time, and a bucket is only
+     * released once all its expired sessions have been deleted, so that a
+     * bucket that is not released is read again by a later purge.
+     */
+    private void purge() {
+        if (debug) cat.debug("Searching for expired sessions...");
+        final String node = this.node;
+        final int ttl = (int)Math.max(60L, this.interval * 3L);
+        this.started = System.currentTimeMillis();
+        this.attempted = 0;
+        this.deleted = 0;
+        try {
+            List<String> purgers = null;
+            if (node != null) {
+                // A purger that misses three purges in a row is taken to be
+                // dead, and its share is dealt out to the others.
+                purgers = this.manager.getPurgers(node, ttl);
+                this.purgers = purgers.size();
+            }
+            if (!this.manager.getClient().getConfig().isExpiryIndex()) {
+                // The scan cannot be split, so only the first purger scans.
+                if (purgers == null || purgers.get(0).equals(node)) this.purge(this.manager.getExpiredSessions(), -1L, node, ttl);
+            }
+            else if (this.purge(this.manager.getUnindexedExpiredSessions(node, purgers), -1L, node, ttl)) {
+                final List<Long> buckets = this.manager.getDueBuckets(node, purgers, ttl);
+                for (int i=0; i<buckets.size() && !this.closing; i++) {
+                    final long bucket = buckets.get(i).longValue();
+                    if (node != null) {
+                        if (!this.manager.claimBucket(bucket, node, ttl)) continue;
+                        this.claimed = System.currentTimeMillis();
+                    }
+                    if (!this.purge(this.manager.getExpiredSessions(bucket), bucket, node, ttl)) break;
+                    this.manager.releaseBucket(bucket, node);
+                }
+                this.manager.moveExpiryCursor();
+            }
+        }
+        catch (InterruptedException e) {
+            // Shutting down. The bucket being purged is not released, so
+            // the rest are found again by the next purge, as they are by
+            // the scan.
+        }
+        catch (Throwable e) {
+            cat.error("Unable to purge expired sessions: "+e.getMessage(), e);
+        }
+        finally {
+            this.pending = 0;
+            this.pendingSince = 0L;
+        }
+        if (this.attempted == 0) return;
+
+        final long duration = Math.max(1L, System.currentTimeMillis() - this.started);
+        synchronized (this) {
+            this.throughput = (this.deleted * 1000d) / duration;
+        }
+        if (debug) cat.debug("Purged "+this.deleted+" expired sessions in "+duration+"ms");
+    }
+
+    /**
+     * Deletes expired sessions in batches, within the deletion budget of the
+     * purge.
+     * @param sessions IDs of the expired sessions.
+     * @param bucket Expiry index bucket the sessions were found in (-1 if
+     *    they were not found through the index).
+     * @param node ID of this purger (null if the purge is not partitioned).
+     * @param ttl Time-to-live in seconds of the purger's claim on a bucket.
+     * @return true if all sessions were deleted, false if not.
+     * @throws InterruptedException if interrupted while waiting to stay
+     *    within the deletion budget.
+     */
+    private boolean purge(List<String> sessions, long bucket, String node, int ttl) throws InterruptedException {
+        if (sessions.size() == 0) return true;
+        if (debug) cat.debug("Purging "+sessions.size()+" expired sessions");
+        this.pendingSince = System.currentTimeMillis();
+        this.pending = sessions.size();
+
+        int done = 0;
+        while (done < sessions.size()) {
+            if (this.closing) return false;
+            // Renew the claim on the bucket before it can expire.
+            if (bucket >= 0L && node != null && this.claimed + ttl * 1000L / 3L < System.currentTimeMillis()) {
+                if (!this.manager.claimBucket(bucket, node, ttl)) return false;
+                this.claimed = System.currentTimeMillis();
+            }
+            final List<String> next = sessions.subList(done, Math.min(done + this.batch, sessions.size()));
+            try {
+                this.manager.removeSessions(next, bucket);
+                this.deleted += next.size();
+                synchronized (this) {
+                    this.purged += next.size();
+                    this.batches++;
+                }
+            }
+            catch (Throwable e) {
+                // Leave the rest (and the bucket) to the next purge.
+                cat.error("Error purging batch of "+next.size()+" expired sessions, leaving "+(sessions.size() - done)+" to the next purge: "+e.getMessage(), e);
+                return false;
+            }
+            done += next.size();
+            this.attempted += next.size();
+            this.pending = sessions.size() - done;
+
+            // Stay within the deletion budget.
+            if (this.rate > 0) {
+                final long wait = this.started + (this.attempted * 1000L) / this.rate - System.currentTimeMillis();
+                if (wait > 0) Thread.sleep(wait);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops the purges, abandoning any purge in progress.
+     */
+    void shutdown() {
+        this.closing = true;
+        this.executor.shutdownNow();
+        try {
+            this.executor.awaitTermination(30, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            // Ignore.
+        }
+    }
+
+    /**
+     * Returns the number of sessions deleted.
+     * @return the number of sessions deleted.
+     */
+    synchronized long getPurged() {
+        return this.purged;
+    }
+
+    /**
+     * Returns the number of batch mutations sent to Cassandra.
+     * @return the number of batch mutations.
+     */
+    synchronized long getBatches() {
+        return this.batches;
+    }
+
+    /**
+     * Returns the number of expired sessions found but not yet deleted.
+     * @return the number of expired sessions waiting to be deleted.
+     */
+    int getBacklog() {
+        return this.pending;
+    }
+
+    /**
+     * Returns how far the purge is lagging behind, being the time since the
+     * oldest expired session that is not yet deleted was found.
+     * @return the purge lag in milliseconds (0 if nothing is pending).
+     */
+    long getLag() {
+        final long since = this.pendingSince;
+        if (since == 0L) return 0L;
+        return System.currentTimeMillis() - since;
+    }
+
+    /**
+     * Returns the number of live purgers that share the purge.
+     * @return the number of live purgers (1 if the purge is not partitioned).
+     */
+    int getPurgers() {
+        return this.purgers;
+    }
+
+    /**
+     * Returns the number of sessions deleted per second by the last purge.
+     * @return the purge throughput.
+     */
+    synchronized double getThroughput() {
+        return this.throughput;
+    }
+
+}
@@ -0,0 +1,210 @@
+// @(#)$Id: SessionQuota.java,v 1.1 2014/04/24 11:37:52 morten Exp $
+package org.apache.catalina.cassandra;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <ul>
+ *   <li><b>Project:</b> TomcatCassandra</li>
+ *   <li><b>Class:</b> org.apache.catalina.cassandra.SessionQuota</li>
+ *   <li><b>Author:</b> morten.jorgensen@openjawtech.com</li>
+ *   <li><b>Created:</b> 24 Apr 2014 11:37:52</li>
+ *   <li><b>Description:</b>
+ *     Enforces the maximum number of active sessions across all Tomcat
+ *     nodes without counting the sessions on every session creation. Time
+ *     is divided into windows. In each window, the quota for new sessions is
+ *     the maximum number of active sessions less the number of active
+ *     sessions when the window started. Each node leases blocks of this
+ *     quota from a shared counter in Cassandra, admits new sessions from
+ *     its lease without going to Cassandra, and leases another block when
+ *     the lease runs out. Once the quota of the window has been leased, new
+ *     sessions are rejected until the next window. Quota left unused at the
+ *     end of a window is simply dropped. The active sessions are counted by
+ *     a single thread without holding the lock. Until the count is in, new
+ *     sessions are charged to the shared counter of the previous window,
+ *     against what that window has already leased, so session creation
+ *     never waits for the count (except on the first window, or after a
+ *     window without any sessions created). The counters
+ *     are keyed by window and never deleted, as a counter cannot safely be
+ *     incremented again once it has been deleted.
+ *   </li>
+ *   <li><b>Functional spec. ref.:</b> </li>
+ *   <li><b>Design spec.ref.:</b> </li>
+ * </ul>
+ */
+class SessionQuota {
+
+    /** Log4J logger instance for class SessionQuota. */
+    private final static Logger cat = Logger.getLogger(SessionQuota.class);
+    /** Log4J debug setting for class SessionQuota. */
+    private final static boolean debug = cat.isDebugEnabled();
+
+    /** Cassandra client API wrapper. */
+    private CassandraClient client;
+
+    /** Tomcat session manager. */
+    private TomcatManager tomcat;
+
+    /** Number of sessions leased at a time. */
+    private int block;
+
+    /** Length of a time window in milliseconds. */
+    private long window;
+
+    /** Current time window. */
+    private long current = -1L;
+
+    /** Quota for new sessions in a window (-1 until first counted). */
+    private long allowance = -1L;
+
+    /** Time window the quota was counted for. */
+    private long counted = -1L;
+
+    /** Flags that a thread is counting the active sessions. */
+    private boolean counting = false;
+
+    /** Time window in which a failure was last logged as an error. */
+    private long failed = -1L;
+
+    /** Time window whose shared counter the current lease is charged to. */
+    private long charged = -1L;
+
+    /** Sessions this node may still create from its lease. */
+    private long remaining = 0L;
+
+    /** Flags that the quota of the charged window has all been leased. */
+    private boolean exhausted = false;
+
+    /**
+     * Creates a new session quota.
+     * @param client Cassandra client API wrapper.
+     * @param tomcat Tomcat session manager.
+     * @param block Number of sessions leased at a time.
+     * @param interval Length of a time window in seconds.
+     */
+    SessionQuota(CassandraClient client, TomcatManager tomcat, int block, long interval) {
+        this.client = client;
+        this.tomcat = tomcat;
+        this.block = Math.max(1, block);
+        this.window = Math.max(1L, interval) * 1000L;
+    }
+
+    /**
+     * Tells you if a new session may be created, and counts it against the
+     * lease if so.
+     * @return true if the session may be created, false if the maximum
+     *    number of active sessions has been reached.
+     */
+    boolean admit() {
+        final int max = this.tomcat.getMaxActive();
+        if (max <= 0) return true;
+
+        final long now = System.currentTimeMillis() / this.window;
+        boolean count = false;
+        synchronized (this) {
+            this.current = now;
+            if (this.counted != now && !this.counting) {
+                this.counting = true;
+                count = true;
+            }
+        }
+        if (count) this.count(now, max);
+
+        synchronized (this) {
+            try {
+                while ((this.allowance < 0L || this.counted < now - 1L) && this.counting) this.wait();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (this.allowance < 0L) return true;
+            // The allowance applies to the window it was counted for.
+            if (this.charged != this.counted) {
+                this.charged = this.counted;
+                this.remaining = 0L;
+                this.exhausted = false;
+            }
+            if (this.remaining == 0L && !this.exhausted) this.lease(max);
+            if (this.remaining == 0L) return false;
+            this.remaining--;
+            return true;
+        }
+    }
+
+    /**
+     * Counts the active sessions, outside the lock, and sets the quota for
+     * new sessions in a window. If the sessions cannot be counted, the quota
+     * of the previous window is kept, and the next admission counts again.
+     * @param window Time window.
+     * @param max Maximum number of active sessions.
+     */
+    private void count(long window, int max) {
+        long allowance = -1L;
+        try {
+            allowance = Math.max(0L, (long)max - this.tomcat.getActiveSessions());
+            if (debug) cat.debug("Quota for new sessions in window "+window+" is "+allowance);
+        }
+        catch (Throwable e) {
+            this.fail("Unable to count the active sessions for the session quota", e);
+        }
+        synchronized (this) {
+            this.counting = false;
+            if (allowance >= 0L) {
+                this.allowance = allowance;
+                this.counted = window;
+            }
+            this.notifyAll();
+        }
+    }
+
+    /**
+     * Leases a block of session quota from the shared counter. If the
+     * counter shows that the quota of the window has been overdrawn, the
+     * part of the block that is over the quota is returned. If the shared
+     * counter cannot be reached, a block is admitted anyway, as session
+     * creation fails without Cassandra in any case.
+     * @param max Maximum number of active sessions.
+     */
+    private void lease(int max) {
+        try {
+            final long leased = this.client.leaseSessionQuota(this.charged, this.block);
+            final long over = Math.min(this.block, Math.max(0L, leased - this.allowance));
+            if (over > 0L) {
+                this.client.returnSessionQuota(this.charged, over);
+                this.exhausted = true;
+                cat.warn("Maximum of "+max+" active sessions reached, rejecting new sessions for up to "+(this.window / 1000L)+" seconds");
+            }
+            this.remaining = this.block - over;
+        }
+        catch (Throwable e) {
+            this.fail("Unable to lease session quota, admitting "+this.block+" sessions", e);
+            this.remaining = this.block;
+        }
+    }
+
+    /**
+     * Logs a failure to reach Cassandra. Only the first failure in a time
+     * window is logged as an error, as failures come with every block.
+     * @param message Description of the failure.
+     * @param e Failure.
+     */
+    private synchronized void fail(String message, Throwable e) {
+        if (this.failed != this.current) {
+            this.failed = this.current;
+            cat.error(message+": "+e.getMessage(), e);
+        }
+        else if (debug) {
+            cat.debug(message+": "+e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the number of sessions this node may still create from its
+     * lease in the current window.
+     * @return the remaining lease.
+     */
+    synchronized long getRemaining() {
+        return this.remaining;
+    }
+
+}
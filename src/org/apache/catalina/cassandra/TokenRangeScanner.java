@@ -0,0 +1,341 @@
+// @(#)$Id: TokenRangeScanner.java,v 1.1 2014/04/18 09:41:12 morten Exp $
+package org.apache.catalina.cassandra;
+
+import java.util.*;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import me.prettyprint.cassandra.model.ExecutingKeyspace;
+import me.prettyprint.cassandra.model.KeyspaceOperationCallback;
+import me.prettyprint.cassandra.serializers.StringSerializer;
+import me.prettyprint.cassandra.service.KeyspaceService;
+import me.prettyprint.hector.api.Cluster;
+import me.prettyprint.hector.api.exceptions.HectorException;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ColumnParent;
+import org.apache.cassandra.thrift.IndexExpression;
+import org.apache.cassandra.thrift.KeyRange;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.apache.cassandra.thrift.TokenRange;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <ul>
+ *   <li><b>Project:</b> TomcatCassandra</li>
+ *   <li><b>Class:</b> org.apache.catalina.cassandra.TokenRangeScanner</li>
+ *   <li><b>Author:</b> morten.jorgensen@openjawtech.com</li>
+ *   <li><b>Created:</b> 18 Apr 2014 09:41:12</li>
+ *   <li><b>Description:</b>
+ *     Scans all rows of a column family in parallel. The token ranges of
+ *     the ring, as described by the cluster, are split into sub-ranges, and
+ *     a number of threads each page through one sub-range at a time. The
+ *     row keys found are handed to a consumer, a page at a time, on the
+ *     thread that started the scan. The pages pass through a bounded queue,
+ *     so the scan threads wait when the consumer falls behind. As each
+ *     token range is served by its own replicas, the scan gets faster as
+ *     nodes are added to the cluster. Partitioners whose tokens are not
+ *     numbers are scanned as a single range.
+ *   </li>
+ *   <li><b>Functional spec. ref.:</b> </li>
+ *   <li><b>Design spec.ref.:</b> </li>
+ * </ul>
+ */
+class TokenRangeScanner {
+
+    /** Log4J logger instance for class TokenRangeScanner. */
+    private final static Logger cat = Logger.getLogger(TokenRangeScanner.class);
+    /** Log4J debug setting for class TokenRangeScanner. */
+    private final static boolean debug = cat.isDebugEnabled();
+
+    /** Marks the end of the pages of a scan thread in the page queue. */
+    private final static List<String> END = new ArrayList<String>(0);
+
+    /**
+     * Receives the row keys found by a scan, a page at a time.
+     */
+    interface Consumer {
+
+        /**
+         * Handles a page of row keys.
+         * @param keys Row keys.
+         * @return true to continue the scan, false to stop it.
+         */
+        boolean accept(List<String> keys);
+    }
+
+    /** Cassandra cluster. */
+    private Cluster cluster;
+
+    /** Cassandra keyspace. */
+    private ExecutingKeyspace keyspace;
+
+    /** Number of sub-ranges scanned at the same time. */
+    private int parallelism;
+
+    /** Number of rows read per query. */
+    private int pageSize;
+
+    /** Executor that runs the scan threads. */
+    private ExecutorService executor;
+
+    /**
+     * Creates a new token range scanner.
+     * @param cluster Cassandra cluster.
+     * @param keyspace Cassandra keyspace.
+     * @param parallelism Number of sub-ranges scanned at the same time.
+     * @param pageSize Number of rows read per query.
+     */
+    TokenRangeScanner(Cluster cluster, ExecutingKeyspace keyspace, int parallelism, int pageSize) {
+        this.cluster = cluster;
+        this.keyspace = keyspace;
+        this.parallelism = Math.max(1, parallelism);
+        this.pageSize = Math.max(1, pageSize);
+        this.executor = Executors.newFixedThreadPool(this.parallelism, new ThreadFactory() {
+            private int count = 0;
+            public synchronized Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "CassandraSessionScanner-"+(++this.count));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Scans all rows of a column family. Rows that do not have the given
+     * column (such as what is left of removed rows) are skipped.
+     * @param family Column family name.
+     * @param column Column that all rows of interest have.
+     * @param filter Index expressions that rows must match (or null).
+     * @param consumer Receives the row keys found.
+     * @return the number of row keys found.
+     */
+    long scan(final String family, final String column, final List<IndexExpression> filter, Consumer consumer) {
+        final List<String[]> ranges = this.getRanges();
+        final Queue<String[]> work = new LinkedList<String[]>(ranges);
+        final BlockingQueue<List<String>> pages = new ArrayBlockingQueue<List<String>>(this.parallelism * 2);
+        final Scan scan = new Scan();
+        final int threads = Math.min(this.parallelism, ranges.size());
+        if (debug) cat.debug("Scanning "+family+" in "+ranges.size()+" token ranges with "+threads+" threads");
+
+        for (int i=0; i<threads; i++) {
+            this.executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        while (!scan.stopped) {
+                            final String[] range;
+                            synchronized (work) {
+                                range = work.poll();
+                            }
+                            if (range == null) break;
+                            TokenRangeScanner.this.scan(family, column, filter, range, pages, scan);
+                        }
+                    }
+                    catch (Throwable e) {
+                        scan.fail(e);
+                    }
+                    finally {
+                        try {
+                            while (!scan.closed && !pages.offer(END, 1, TimeUnit.SECONDS));
+                        }
+                        catch (InterruptedException e) {
+                            scan.fail(e);
+                        }
+                    }
+                }
+            });
+        }
+
+        // Hand the pages to the consumer until all scan threads have ended.
+        // Once the scan is stopped, the remaining pages are only drained.
+        long found = 0L;
+        int ended = 0;
+        try {
+            while (ended < threads) {
+                final List<String> page = pages.take();
+                if (page == END) {
+                    ended++;
+                    continue;
+                }
+                if (scan.stopped) continue;
+                found += page.size();
+                if (!consumer.accept(page)) scan.stopped = true;
+            }
+        }
+        catch (InterruptedException e) {
+            scan.fail(e);
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            // Release scan threads still waiting for space in the queue.
+            scan.stopped = true;
+            scan.closed = true;
+            pages.clear();
+        }
+
+        if (scan.failure != null) {
+            if (scan.failure instanceof RuntimeException) throw (RuntimeException)scan.failure;
+            throw new HectorException("Scan of "+family+" failed: "+scan.failure.getMessage(), scan.failure);
+        }
+        return found;
+    }
+
+    /**
+     * Pages through a single sub-range. The first page starts after the
+     * start token of the sub-range, and each following page starts with the
+     * last row of the previous page.
+     * @param family Column family name.
+     * @param column Column that all rows of interest have.
+     * @param filter Index expressions that rows must match (or null).
+     * @param range Start and end token of the sub-range (null for the whole
+     *    ring).
+     * @param pages Queue that receives the pages of row keys.
+     * @param scan State of the scan.
+     * @throws InterruptedException if interrupted while waiting for space in
+     *    the queue.
+     */
+    private void scan(String family, String column, List<IndexExpression> filter, String[] range, BlockingQueue<List<String>> pages, Scan scan) throws InterruptedException {
+        final StringSerializer str = StringSerializer.get();
+        final ColumnParent parent = new ColumnParent(family);
+        final SlicePredicate predicate = new SlicePredicate();
+        predicate.setColumn_names(Collections.singletonList(str.toByteBuffer(column)));
+
+        ByteBuffer last = null;
+        while (!scan.stopped) {
+            final int count = (last != null ? this.pageSize + 1 : this.pageSize);
+            final KeyRange keys = new KeyRange(count);
+            if (last != null)
+                keys.setStart_key(last);
+            else if (range != null)
+                keys.setStart_token(range[0]);
+            else
+                keys.setStart_key(new byte[0]);
+            if (range != null)
+                keys.setEnd_token(range[1]);
+            else
+                keys.setEnd_key(new byte[0]);
+            if (filter != null) keys.setRow_filter(filter);
+
+            final Map<ByteBuffer,List<Column>> rows = this.keyspace.doExecute(new KeyspaceOperationCallback<Map<ByteBuffer,List<Column>>>() {
+                public Map<ByteBuffer,List<Column>> doInKeyspace(KeyspaceService service) throws HectorException {
+                    return service.getRangeSlices(parent, predicate, keys);
+                }
+            }).get();
+
+            final List<String> page = new ArrayList<String>(rows.size());
+            ByteBuffer next = null;
+            final Iterator<Map.Entry<ByteBuffer,List<Column>>> entries = rows.entrySet().iterator();
+            while (entries.hasNext()) {
+                final Map.Entry<ByteBuffer,List<Column>> entry = entries.next();
+                next = entry.getKey();
+                if (next.equals(last)) continue;
+                if (entry.getValue() == null || entry.getValue().size() == 0) continue;
+                page.add(str.fromByteBuffer(next.duplicate()));
+            }
+            if (page.size() > 0) {
+                while (!pages.offer(page, 1, TimeUnit.SECONDS)) {
+                    if (scan.closed) return;
+                }
+            }
+            if (rows.size() < count) return;
+            last = next;
+        }
+    }
+
+    /**
+     * Splits the ring into sub-ranges, so that there are at least as many
+     * sub-ranges as scan threads. A range that wraps around the ring is
+     * split where the tokens wrap.
+     * @return start and end token of each sub-range, or a single null entry
+     *    if the partitioner's tokens are not numbers.
+     */
+    private List<String[]> getRanges() {
+        final List<String[]> ranges = new ArrayList<String[]>();
+        final String partitioner = this.cluster.describePartitioner();
+        final BigInteger min;
+        final BigInteger max;
+        if (partitioner.endsWith(".RandomPartitioner")) {
+            min = BigInteger.ONE.negate();
+            max = BigInteger.ONE.shiftLeft(127);
+        }
+        else if (partitioner.endsWith(".Murmur3Partitioner")) {
+            min = BigInteger.valueOf(Long.MIN_VALUE);
+            max = BigInteger.valueOf(Long.MAX_VALUE);
+        }
+        else {
+            if (debug) cat.debug("Scanning with "+partitioner+" as a single range");
+            ranges.add(null);
+            return ranges;
+        }
+
+        final List<TokenRange> ring = this.cluster.describeRing(this.keyspace.getKeyspaceName());
+        final int splits = (this.parallelism + ring.size() - 1) / ring.size();
+        for (int i=0; i<ring.size(); i++) {
+            final BigInteger start = new BigInteger(ring.get(i).getStart_token());
+            final BigInteger end = new BigInteger(ring.get(i).getEnd_token());
+            if (start.compareTo(end) < 0) {
+                split(start, end, splits, ranges);
+            }
+            else {
+                if (start.compareTo(max) < 0) split(start, max, splits, ranges);
+                if (min.compareTo(end) < 0) split(min, end, splits, ranges);
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * Splits a token range into sub-ranges of (about) the same size.
+     * @param start Start token (exclusive).
+     * @param end End token (inclusive).
+     * @param splits Number of sub-ranges.
+     * @param ranges List that receives the sub-ranges.
+     */
+    private static void split(BigInteger start, BigInteger end, int splits, List<String[]> ranges) {
+        final BigInteger width = end.subtract(start);
+        BigInteger from = start;
+        for (int i=1; i<=splits; i++) {
+            final BigInteger to = (i == splits ? end : start.add(width.multiply(BigInteger.valueOf(i)).divide(BigInteger.valueOf(splits))));
+            if (to.compareTo(from) > 0) ranges.add(new String[] { from.toString(), to.toString() });
+            from = to;
+        }
+    }
+
+    /**
+     * Stops the scan threads.
+     */
+    void shutdown() {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * State of a single scan, shared by its threads.
+     */
+    private static class Scan {
+
+        /** Flags that the scan has ended, been stopped or failed. */
+        private volatile boolean stopped = false;
+        /** Flags that the consumer no longer takes pages from the queue. */
+        private volatile boolean closed = false;
+        /** First failure of a scan thread. */
+        private volatile Throwable failure = null;
+
+        /**
+         * Records the failure of a scan thread, and stops the scan.
+         * @param failure Failure.
+         */
+        synchronized void fail(Throwable failure) {
+            if (this.failure == null) this.failure = failure;
+            this.stopped = true;
+        }
+    }
+
+}
@@ -9,10 +9,12 @@ import java.io.IOException;
 import org.w3c.dom.*;
 
 import org.apache.catalina.Container;
+import org.apache.catalina.Engine;
 import org.apache.catalina.Manager;
 import org.apache.catalina.Session;
 import org.apache.log4j.Logger;
 
+import org.apache.catalina.cassandra.cache.Cache;
 import org.apache.catalina.cassandra.utils.SessionObjectSerialiser;
 
 /**
@@ -52,9 +54,6 @@ public class TomcatManager implements Manager {
     
     private int sessionMaxAliveTime;
     
-    /** Timestamp for when we last tried to purge expired sessions. */
-    private long lastPurged = 0L;
-    
     /** Web application container. */
     private Container container;
     
@@ -148,6 +147,21 @@ public class TomcatManager implements Manager {
     public void remove(Session session) {
         if (debug) cat.debug("Removing session "+session.getId());
         getCassandraManager().removeSession(session.getId());
+        final Cache cache = Cache.getInstance();
+        if (cache != null) cache.removeSession(session.getId());
+    }
+
+    /**
+     * Registers a Tomcat session with the cache for the current request (if
+     * any), so that all lookups of the session within the request return the
+     * same session instance.
+     * @param session Tomcat session.
+     * @return the session.
+     */
+    private TomcatSession bind(TomcatSession session) {
+        final Cache cache = Cache.getInstance();
+        if (cache != null) cache.putSession(session);
+        return session;
     }
 
     /**
@@ -155,10 +169,10 @@ public class TomcatManager implements Manager {
      */
     public Session createEmptySession() {
     	final CassandraManager manager = this.getCassandraManager();
-        final String id = CassandraManager.generateUniqueID();
+        final String id = manager.generateSessionID();
         if (debug) cat.debug("Creating new empty session "+id);
         final CassandraSession cassandra = manager.addSession(id);
-        return new TomcatSession(this, cassandra);
+        return this.bind(new TomcatSession(this, cassandra));
     }
 
     /**
@@ -166,10 +180,11 @@ public class TomcatManager implements Manager {
      */
     public Session createSession() {
     	final CassandraManager manager = this.getCassandraManager();
-        final String id = CassandraManager.generateUniqueID();
+        this.admit();
+        final String id = manager.generateSessionID();
         if (debug) cat.info("Creating new session "+id);
         final CassandraSession cassandra = manager.addSession(id);
-        return new TomcatSession(this, cassandra);
+        return this.bind(new TomcatSession(this, cassandra));
     }
 
     /**
@@ -178,10 +193,11 @@ public class TomcatManager implements Manager {
      */
     public Session createSession(String id) {
     	final CassandraManager manager = this.getCassandraManager();
-        if (id == null) id = CassandraManager.generateUniqueID();
+        this.admit();
+        if (id == null) id = manager.generateSessionID();
         if (debug) cat.debug("Creating new session "+id);
         final CassandraSession cassandra = manager.addSession(id);
-        return new TomcatSession(this, cassandra);
+        return this.bind(new TomcatSession(this, cassandra));
     }
     
     /**
@@ -190,37 +206,97 @@ public class TomcatManager implements Manager {
      * @return Tomcat session.
      */
     public Session findSession(String id) throws IOException {
+        // Tomcat looks up the session several times per request, so we
+        // reuse the instance created for the first lookup in this request.
+        final Cache cache = Cache.getInstance();
+        if (cache != null) {
+            final TomcatSession session = cache.getSession(id);
+            if (session != null) return session;
+        }
         final CassandraSession cassandra = this.getCassandraManager().getSession(id);
-        return new TomcatSession(this, cassandra);
+        return this.bind(new TomcatSession(this, cassandra));
     }
 
     /**
      * Provides a list of all existing sessions. Hopefully Tomcat won't call
-     * this method often, as the overhead against Cassandra is massive.
+     * this method often, as the overhead against Cassandra is massive. At
+     * most findSessionsLimit sessions are returned.
      * @return List of open sessions.
      */
     public Session[] findSessions() {
         if (debug) cat.debug("Obtaining ALL session IDs from Cassandra.");
 
+        final int limit = this.config.getFindSessionsLimit();
         final List<Session> sessions = new ArrayList<Session>();
-
-        final List<String> ids = getCassandraManager().getSessions();
-        for (int i=0; i<ids.size(); i++) {
-            final String id = ids.get(i);
-            final CassandraSession cassandra = this.getCassandraManager().getSession(id);
-            sessions.add(new TomcatSession(this, cassandra));
-        }
+        this.getCassandraManager().scanSessions(new TokenRangeScanner.Consumer() {
+            public boolean accept(List<String> ids) {
+                for (int i=0; i<ids.size(); i++) {
+                    if (limit > 0 && sessions.size() >= limit) {
+                        cat.warn("More than "+limit+" sessions, findSessions() only returns the first "+limit);
+                        return false;
+                    }
+                    final CassandraSession cassandra = TomcatManager.this.getCassandraManager().getSession(ids.get(i));
+                    sessions.add(new TomcatSession(TomcatManager.this, cassandra));
+                }
+                return true;
+            }
+        });
         return sessions.toArray(new Session[sessions.size()]);
     }
 
     /**
-     * Returns the number of active sessions.
+     * Iterates over all existing sessions. The session IDs are read from
+     * Cassandra a page at a time, and each session is a lightweight view
+     * that reads nothing until it is used, so memory use does not grow with
+     * the number of sessions.
+     * @return iterator over open sessions.
+     */
+    public Iterator<Session> iterateSessions() {
+        final Iterator<String> ids = this.getCassandraManager().iterateSessions();
+        return new Iterator<Session>() {
+            public boolean hasNext() {
+                return ids.hasNext();
+            }
+            public Session next() {
+                final CassandraSession cassandra = TomcatManager.this.getCassandraManager().getSession(ids.next());
+                return new TomcatSession(TomcatManager.this, cassandra);
+            }
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Returns the number of active sessions. If an approximate count is
+     * kept, this is the estimate from the last update of the count.
      * @return the number of active sessions.
      */
     public int getActiveSessions() {
+        final SessionCounter counter = this.getCassandraManager().getCounter();
+        if (counter != null) return counter.getCount();
         return getCassandraManager().getSessionCount();
     }
 
+    /**
+     * Returns the exact number of active sessions, as read from Cassandra,
+     * even if an approximate count is kept.
+     * @return the number of active sessions.
+     */
+    public int getExactActiveSessions() {
+        return getCassandraManager().getSessionCount();
+    }
+
+    /**
+     * Returns how old the approximate count of active sessions is.
+     * @return the time in milliseconds since the count was updated (0 if
+     *    the count is not approximate).
+     */
+    public long getActiveSessionsAge() {
+        final SessionCounter counter = this.getCassandraManager().getCounter();
+        return (counter != null ? counter.getAge() : 0L);
+    }
+
     /* =============== TOMCAT MANAGER IMPLEMENTATION ===================== */
     
     /*
@@ -276,7 +352,7 @@ public class TomcatManager implements Manager {
      * (non-Javadoc)
      * @see org.apache.catalina.Manager#setRejectedSessions(int)
      */
-    public void setRejectedSessions(int count) {
+    public synchronized void setRejectedSessions(int count) {
         this.rejectedSessions = count;
     }
 
@@ -284,10 +360,23 @@ public class TomcatManager implements Manager {
      * (non-Javadoc)
      * @see org.apache.catalina.Manager#getRejectedSessions()
      */
-    public int getRejectedSessions() {
+    public synchronized int getRejectedSessions() {
         return this.rejectedSessions;
     }
 
+    /**
+     * Checks that a new session may be created without going over the
+     * maximum number of active sessions (maxActive) across all nodes.
+     * @throws IllegalStateException if the maximum has been reached.
+     */
+    private void admit() {
+        if (this.getCassandraManager().getQuota().admit()) return;
+        synchronized (this) {
+            this.rejectedSessions++;
+        }
+        throw new IllegalStateException("createSession: Too many active sessions (maximum is "+this.maxActive+")");
+    }
+
     /*
      * (non-Javadoc)
      * @see org.apache.catalina.Manager#setMaxActive(int)
@@ -431,40 +520,16 @@ public class TomcatManager implements Manager {
      * @see org.apache.catalina.Manager#backgroundProcess()
      */
     public void backgroundProcess() {
-    	final long now = System.currentTimeMillis();
-    	if ((lastPurged + (this.config.getPurgeInterval() * 1000L)) < now) {
-    		lastPurged = System.currentTimeMillis();
-    		this.closeExpiredSessions();
-        }
-    }
-    
-    /**
-     * Purges all expired sessions from Cassandra.
-     */
-    private void closeExpiredSessions() {
-    	if (debug) cat.debug("Searching for expired sessions...");
-    	try {
-    		final List<String> sessions = getCassandraManager().getExpiredSessions();
-    		if (debug) cat.debug("Closing expired sessions "+sessions);
-    		for (String sid : sessions) {
-    			try {
-    				getCassandraManager().removeSession(sid);
-    			}
-    			catch (Throwable e) {
-    				cat.error("Error purging expired session "+sid+": "+e.getMessage(), e);
-    			}
-    		}
-		}
-		catch (Throwable e) {
-			cat.error("Unable to find expired sessions: "+e.getMessage(), e);
-		}
+        // Expired sessions are purged by the session purger's own thread;
+        // we only make sure the Cassandra manager (and purger) is started.
+        this.getCassandraManager();
     }
     
     
     public void changeSessionId(Session session) {
     	/*
         final CassandraManager manager = this.getCassandraManager();
-        final String id = CassandraManager.generateUniqueID();
+        final String id = manager.generateSessionID();
         session.setId(id);
         */
     }
@@ -547,31 +612,601 @@ public class TomcatManager implements Manager {
 
     /**
      * Sets the database purge interval in seconds.
-     * @param interval Purge interval in seconds.
+     * @param interval Purge interval in seconds (0 disables purging).
      */
     public void setPurgeInterval(long interval) {
         this.config.setPurgeInterval(interval);
     }
+
+    /**
+     * Sets the maximum number of expired sessions deleted per second.
+     * @param rate Purge rate (0 for no limit, default is 1000).
+     */
+    public void setPurgeRate(int rate) {
+        this.config.setPurgeRate(rate);
+    }
+
+    /**
+     * Sets the maximum number of expired sessions deleted in one batch
+     * mutation.
+     * @param batch Purge batch size (default is 200).
+     */
+    public void setPurgeBatch(int batch) {
+        this.config.setPurgeBatch(batch);
+    }
+
+    /**
+     * Enables/disables partitioning of the purge of expired sessions. The
+     * purge is then shared between all Tomcat nodes using the same keyspace,
+     * so that each expired session is found and deleted by a single node.
+     * @param partitioned true to share the purge between all Tomcat nodes.
+     */
+    public void setPartitionedPurge(boolean partitioned) {
+        this.config.setPartitionedPurge(partitioned);
+    }
+
+    /**
+     * Enables/disables notification of purged sessions. The web
+     * application's HttpSessionListeners, and session objects that are
+     * HttpSessionBindingListeners, are then told of sessions removed by the
+     * purge, asynchronously and in batches.
+     * @param listeners true to notify listeners of purged sessions.
+     */
+    public void setExpiryListeners(boolean listeners) {
+        this.config.setExpiryListeners(listeners);
+    }
+
+    /**
+     * Sets the maximum number of purged sessions queued for notification.
+     * The purge waits while the queue is full.
+     * @param size Expiry queue size (default is 10000).
+     */
+    public void setExpiryQueueSize(int size) {
+        this.config.setExpiryQueueSize(size);
+    }
+
+    /**
+     * Sets the number of session IDs read per query when enumerating
+     * sessions for findSessions() and the session size statistics.
+     * @param size Session page size (default is 1000).
+     */
+    public void setSessionPageSize(int size) {
+        this.config.setSessionPageSize(size);
+    }
+
+    /**
+     * Sets the maximum number of sessions returned by findSessions().
+     * @param limit Maximum number of sessions (default is 10000, 0 for no
+     *    limit).
+     */
+    public void setFindSessionsLimit(int limit) {
+        this.config.setFindSessionsLimit(limit);
+    }
+
+    /**
+     * Sets the number of token ranges scanned at the same time by full
+     * scans of the sessions (findSessions(), the session size statistics
+     * and the purge without the expiry index).
+     * @param parallelism Scan parallelism (default is 4, 1 to scan by a
+     *    single thread).
+     */
+    public void setScanParallelism(int parallelism) {
+        this.config.setScanParallelism(parallelism);
+    }
+
+    /**
+     * Keeps an approximate count of the active sessions, which is returned
+     * by getActiveSessions() instead of the count read from Cassandra.
+     * @param approximate true to count the active sessions approximately
+     *    (default is false).
+     */
+    public void setApproximateCount(boolean approximate) {
+        this.config.setApproximateCount(approximate);
+    }
+
+    /**
+     * Sets the interval between updates of the approximate count. This must
+     * be the same on all Tomcat nodes.
+     * @param interval Count interval in seconds (default is 60).
+     */
+    public void setCountInterval(long interval) {
+        this.config.setCountInterval(interval);
+    }
+
+    /**
+     * Sets the number of sessions a node leases from the shared session
+     * quota at a time, when maxActive is set.
+     * @param block Quota block size (default is 100).
+     */
+    public void setQuotaBlock(int block) {
+        this.config.setQuotaBlock(block);
+    }
+
+    /**
+     * Sets the length of the time windows of the shared session quota. The
+     * number of active sessions is read once per window on each node, and
+     * the quota of a window is shared by all nodes. This must be the same
+     * on all Tomcat nodes.
+     * @param interval Quota interval in seconds (default is 60).
+     */
+    public void setQuotaInterval(long interval) {
+        this.config.setQuotaInterval(interval);
+    }
+
+    /**
+     * Returns the number of sessions this node may still create from its
+     * lease of the shared session quota.
+     * @return the remaining lease (0 if maxActive is not set).
+     */
+    public long getQuotaRemaining() {
+        return this.getCassandraManager().getQuota().getRemaining();
+    }
+
+    /**
+     * Returns the number of purged sessions waiting for notification.
+     * @return the expiry queue length (0 if disabled).
+     */
+    public int getExpiryQueued() {
+        final ExpiryNotifier notifier = this.getCassandraManager().getNotifier();
+        return (notifier != null ? notifier.getQueued() : 0);
+    }
+
+    /**
+     * Returns the number of purged sessions that listeners have been
+     * notified of.
+     * @return the number of notified sessions (0 if disabled).
+     */
+    public long getExpiryDispatched() {
+        final ExpiryNotifier notifier = this.getCassandraManager().getNotifier();
+        return (notifier != null ? notifier.getDispatched() : 0L);
+    }
+
+    /**
+     * Returns the number of times the purge had to wait for the listeners
+     * because the expiry queue was full.
+     * @return the number of waits (0 if disabled).
+     */
+    public long getExpiryBackpressure() {
+        final ExpiryNotifier notifier = this.getCassandraManager().getNotifier();
+        return (notifier != null ? notifier.getWaits() : 0L);
+    }
+
+    /**
+     * Returns the number of live Tomcat nodes that share the purge.
+     * @return the number of purgers (1 if the purge is not partitioned, 0
+     *    if purging is disabled).
+     */
+    public int getPurgeNodes() {
+        final SessionPurger purger = this.getCassandraManager().getPurger();
+        return (purger != null ? purger.getPurgers() : 0);
+    }
+
+    /**
+     * Returns the number of expired sessions purged by this node.
+     * @return the number of sessions purged (0 if purging is disabled).
+     */
+    public long getPurgedSessions() {
+        final SessionPurger purger = this.getCassandraManager().getPurger();
+        return (purger != null ? purger.getPurged() : 0L);
+    }
+
+    /**
+     * Returns the number of batch mutations sent by the session purger.
+     * @return the number of purge batches (0 if purging is disabled).
+     */
+    public long getPurgeBatches() {
+        final SessionPurger purger = this.getCassandraManager().getPurger();
+        return (purger != null ? purger.getBatches() : 0L);
+    }
+
+    /**
+     * Returns the number of expired sessions found but not yet purged.
+     * @return the purge backlog (0 if purging is disabled).
+     */
+    public int getPurgeBacklog() {
+        final SessionPurger purger = this.getCassandraManager().getPurger();
+        return (purger != null ? purger.getBacklog() : 0);
+    }
+
+    /**
+     * Returns the time since the oldest expired session not yet purged was
+     * found.
+     * @return the purge lag in milliseconds (0 if nothing is pending).
+     */
+    public long getPurgeLag() {
+        final SessionPurger purger = this.getCassandraManager().getPurger();
+        return (purger != null ? purger.getLag() : 0L);
+    }
+
+    /**
+     * Returns the number of sessions purged per second by the last purge.
+     * @return the purge throughput (0 if purging is disabled).
+     */
+    public double getPurgeThroughput() {
+        final SessionPurger purger = this.getCassandraManager().getPurger();
+        return (purger != null ? purger.getThroughput() : 0d);
+    }
+
+    /**
+     * Enables/disables lazy deserialisation of session objects.
+     * @param lazy true to enable lazy deserialisation.
+     */
+    public void setLazyDeserialisation(boolean lazy) {
+        this.config.setLazyDeserialisation(lazy);
+    }
+
+    /**
+     * Sets the comma-separated list of interfaces that lazy session object
+     * proxies may implement (such as "java.util.Map,java.util.List").
+     * @param interfaces comma-separated list of interface class names.
+     */
+    public void setLazyInterfaces(String interfaces) {
+        this.config.setLazyInterfaces(interfaces);
+    }
     
+    /**
+     * Enables/disables the per-session attribute index. This must be set
+     * consistently on all Tomcat nodes sharing the same Cassandra keyspace.
+     * @param index true to enable the attribute index.
+     */
+    public void setAttributeIndex(boolean index) {
+        this.config.setAttributeIndex(index);
+    }
+
+    /**
+     * Enables/disables dropping the attribute index of the sessions this
+     * node writes to while it has the attribute index turned off. Set this
+     * while the attribute index is being turned on or off across the nodes.
+     * @param drop true to drop the attribute index.
+     */
+    public void setDropAttributeIndex(boolean drop) {
+        this.config.setDropAttributeIndex(drop);
+    }
+
+    /**
+     * Sets the number of sessions for which the authentication state is
+     * cached on this node (0 disables the cache).
+     * @param size maximum number of cached sessions.
+     */
+    public void setAuthenticationCacheSize(int size) {
+        this.config.setAuthenticationCacheSize(size);
+    }
+
+    /**
+     * Sets the maximum size of the node-local near cache for serialised
+     * session objects (0 disables the near cache).
+     * @param size maximum size of the near cache in kilobytes.
+     */
+    public void setNearCacheSize(long size) {
+        this.config.setNearCacheSize(size);
+    }
+
+    /**
+     * Sets the maximum size of the node-local, memory-mapped disk cache for
+     * serialised session objects (0 disables the disk cache).
+     * @param size maximum size of the disk cache in kilobytes.
+     */
+    public void setDiskCacheSize(int size) {
+        this.config.setDiskCacheSize(size);
+    }
+
+    /**
+     * Sets the directory that holds the disk cache files.
+     * @param directory disk cache directory.
+     */
+    public void setDiskCacheDirectory(String directory) {
+        this.config.setDiskCacheDirectory(directory);
+    }
+
+    /**
+     * Sets the size of the node-local write-ahead journal for session object
+     * writes (0 disables the journal).
+     * @param size size of the journal in kilobytes.
+     */
+    public void setJournalSize(int size) {
+        this.config.setJournalSize(size);
+    }
+
+    /**
+     * Sets the directory that holds the journal file.
+     * @param directory journal directory.
+     */
+    public void setJournalDirectory(String directory) {
+        this.config.setJournalDirectory(directory);
+    }
+
+    /**
+     * Returns the number of journalled writes not yet applied to Cassandra.
+     * @return the number of pending writes (0 if the journal is disabled).
+     */
+    public int getJournalPending() {
+        final Journal journal = this.getCassandraManager().getJournal();
+        return (journal != null ? journal.size() : 0);
+    }
+
+    /**
+     * Enables/disables TTL expiry mode, where all session columns are written
+     * with a time-to-live equal to the session timeout and refreshed as the
+     * session is used, so that Cassandra expires inactive sessions itself.
+     * The purge scan can then be disabled by setting purgeInterval to 0.
+     * @param ttlExpiry true to let Cassandra expire inactive sessions.
+     */
+    public void setTtlExpiry(boolean ttlExpiry) {
+        this.config.setTtlExpiry(ttlExpiry);
+    }
+
+    /**
+     * Enables/disables the expiry index. Sessions are then filed under
+     * time-bucket rows by their own expiry deadline, and the purge scan only
+     * reads the buckets that have become due.
+     * @param expiryIndex true to find expired sessions through the index.
+     */
+    public void setExpiryIndex(boolean expiryIndex) {
+        this.config.setExpiryIndex(expiryIndex);
+    }
+
+    /**
+     * Sets the width of the expiry index buckets.
+     * @param seconds the bucket width in seconds (default is 60).
+     */
+    public void setExpiryBucket(long seconds) {
+        this.config.setExpiryBucket(seconds);
+    }
+
+    /**
+     * Sets the time-to-live of session objects, as a comma-separated list of
+     * pattern=seconds pairs (e.g. "otp=300,search.*=600"). Matching session
+     * objects are written with a Cassandra column TTL, and expire without
+     * being removed explicitly.
+     * @param ttls the session object time-to-live rules.
+     */
+    public void setAttributeTtl(String ttls) {
+        this.config.setAttributeTtl(ttls);
+    }
+
+    /**
+     * Sets the time that session object writes are collected for before
+     * being sent to Cassandra as grouped batch mutations (0 disables the
+     * write coalescer).
+     * @param window coalescing window in milliseconds.
+     */
+    public void setCoalesceWindow(long window) {
+        this.config.setCoalesceWindow(window);
+    }
+
+    /**
+     * Returns the number of session object writes submitted to the write
+     * coalescer.
+     * @return the number of writes submitted (0 if disabled).
+     */
+    public long getCoalescedSubmitted() {
+        final WriteCoalescer coalescer = this.getCassandraManager().getCoalescer();
+        return (coalescer != null ? coalescer.getSubmitted() : 0L);
+    }
+
+    /**
+     * Returns the number of session object writes sent to Cassandra by the
+     * write coalescer (after dropping superseded writes).
+     * @return the number of writes sent (0 if disabled).
+     */
+    public long getCoalescedWritten() {
+        final WriteCoalescer coalescer = this.getCassandraManager().getCoalescer();
+        return (coalescer != null ? coalescer.getWritten() : 0L);
+    }
+
+    /**
+     * Returns the number of batch mutations sent by the write coalescer.
+     * @return the number of batch mutations (0 if disabled).
+     */
+    public long getCoalescedBatches() {
+        final WriteCoalescer coalescer = this.getCassandraManager().getCoalescer();
+        return (coalescer != null ? coalescer.getBatches() : 0L);
+    }
+
+    /**
+     * Enables/disables sticky-session mode, where sessions are served from
+     * memory by the node that created them.
+     * @param sticky true to enable sticky-session mode.
+     */
+    public void setSticky(boolean sticky) {
+        this.config.setSticky(sticky);
+    }
+
+    /**
+     * Sets the routing suffix for sessions created on this node in
+     * sticky-session mode. Defaults to the jvmRoute of the Tomcat engine.
+     * @param route routing suffix.
+     */
+    public void setJvmRoute(String route) {
+        this.config.setJvmRoute(route);
+    }
+
+    /**
+     * Sets the interval between persisting changed sessions to Cassandra in
+     * sticky-session mode (0 persists changes at the end of each request).
+     * @param interval interval in seconds.
+     */
+    public void setPersistInterval(long interval) {
+        this.config.setPersistInterval(interval);
+    }
+
+    /**
+     * Returns the routing suffix for sessions created on this node. This is
+     * the configured jvmRoute, or the jvmRoute of the Tomcat engine.
+     * @return the routing suffix, or null if none is set.
+     */
+    String getJvmRoute() {
+        if (this.config.getJvmRoute() != null) return this.config.getJvmRoute();
+        Container container = this.container;
+        while (container != null && !(container instanceof Engine)) {
+            container = container.getParent();
+        }
+        if (container == null) return null;
+        return ((Engine)container).getJvmRoute();
+    }
+
+    /**
+     * Returns the name of the container (web application) this manager
+     * manages sessions for.
+     * @return the container name, or an empty string if there is none.
+     */
+    String getContainerName() {
+        if (this.container == null || this.container.getName() == null) return "";
+        return this.container.getName();
+    }
+
+    /**
+     * Returns the number of sessions held in memory in sticky-session mode.
+     * @return the number of sessions held in memory (0 if not sticky).
+     */
+    public int getLocalSessions() {
+        final LocalSessionStore store = this.getCassandraManager().getLocalStore();
+        return (store != null ? store.size() : 0);
+    }
+
+    /**
+     * Returns the number of near cache hits.
+     * @return the number of near cache hits (0 if disabled).
+     */
+    public long getNearCacheHits() {
+        final NearCache near = this.getCassandraManager().getNearCache();
+        return (near != null ? near.getHits() : 0L);
+    }
+
+    /**
+     * Returns the number of near cache misses.
+     * @return the number of near cache misses (0 if disabled).
+     */
+    public long getNearCacheMisses() {
+        final NearCache near = this.getCassandraManager().getNearCache();
+        return (near != null ? near.getMisses() : 0L);
+    }
+
+    /**
+     * Returns the near cache hit rate as a percentage.
+     * @return the near cache hit rate (0 if disabled).
+     */
+    public double getNearCacheHitRate() {
+        final NearCache near = this.getCassandraManager().getNearCache();
+        return (near != null ? near.getHitRate() : 0d);
+    }
+
+    /**
+     * Returns the number of sessions evicted from the near cache.
+     * @return the number of near cache evictions (0 if disabled).
+     */
+    public long getNearCacheEvictions() {
+        final NearCache near = this.getCassandraManager().getNearCache();
+        return (near != null ? near.getEvictions() : 0L);
+    }
+
+    /**
+     * Returns the current size of the near cache in bytes.
+     * @return the current size of the near cache (0 if disabled).
+     */
+    public long getNearCacheCurrentSize() {
+        final NearCache near = this.getCassandraManager().getNearCache();
+        return (near != null ? near.getSize() : 0L);
+    }
+
+    /**
+     * Generates an XML element that contains the near cache statistics.
+     * @param doc Document used to create XML elements.
+     * @return near cache statistics element, or null if disabled.
+     */
+    public Element getNearCacheStatistics(Document doc) {
+        final NearCache near = this.getCassandraManager().getNearCache();
+        if (near == null) return null;
+        return near.toElement(doc);
+    }
+
+    /**
+     * Returns the number of disk cache hits.
+     * @return the number of disk cache hits (0 if disabled).
+     */
+    public long getDiskCacheHits() {
+        final DiskCache disk = this.getCassandraManager().getDiskCache();
+        return (disk != null ? disk.getHits() : 0L);
+    }
+
+    /**
+     * Returns the number of disk cache misses.
+     * @return the number of disk cache misses (0 if disabled).
+     */
+    public long getDiskCacheMisses() {
+        final DiskCache disk = this.getCassandraManager().getDiskCache();
+        return (disk != null ? disk.getMisses() : 0L);
+    }
+
+    /**
+     * Returns the disk cache hit rate as a percentage.
+     * @return the disk cache hit rate (0 if disabled).
+     */
+    public double getDiskCacheHitRate() {
+        final DiskCache disk = this.getCassandraManager().getDiskCache();
+        return (disk != null ? disk.getHitRate() : 0d);
+    }
+
+    /**
+     * Generates an XML element that contains the disk cache statistics.
+     * @param doc Document used to create XML elements.
+     * @return disk cache statistics element, or null if disabled.
+     */
+    public Element getDiskCacheStatistics(Document doc) {
+        final DiskCache disk = this.getCassandraManager().getDiskCache();
+        if (disk == null) return null;
+        return disk.toElement(doc);
+    }
+
     /**
      * Generates an XML element that contains the list of active sessions,
      * their session IDs and size. The session size is the number of bytes as
      * stored in Cassandra, and does <u>NOT</u> reflect the session size in
-     * memory.
+     * memory. The sessions are read a page at a time; all of them are
+     * counted, but only the largest (as many as the page size) are listed.
      * @param doc Document used to create XML elements.
      * @return session ID/size element.
      */
     public Element getSessionSizes(Document doc) {
         final Element _sessions = doc.createElement("Sessions");
-        
-        final List<String> ids = getCassandraManager().getSessions();
-        for (int i=0; i<ids.size(); i++) {
-            final String id = ids.get(i);
-            final CassandraSession session = this.getCassandraManager().getSession(id);
-            final long size = session.getSize();
+
+        // Only the largest sessions (one page of them) are listed, the rest
+        // are only counted.
+        final int keep = Math.max(1, this.config.getSessionPageSize());
+        final PriorityQueue<Map.Entry<String,Long>> largest = new PriorityQueue<Map.Entry<String,Long>>(keep, new Comparator<Map.Entry<String,Long>>() {
+            public int compare(Map.Entry<String,Long> a, Map.Entry<String,Long> b) {
+                return a.getValue().compareTo(b.getValue());
+            }
+        });
+        final long[] totals = new long[2];
+        this.getCassandraManager().scanSessions(new TokenRangeScanner.Consumer() {
+            public boolean accept(List<String> ids) {
+                for (int i=0; i<ids.size(); i++) {
+                    final String id = ids.get(i);
+                    final CassandraSession session = TomcatManager.this.getCassandraManager().getSession(id);
+                    final long size = session.getSize();
+                    totals[0]++;
+                    totals[1] += size;
+                    if (largest.size() < keep) {
+                        largest.add(new AbstractMap.SimpleEntry<String,Long>(id, size));
+                    }
+                    else if (largest.peek().getValue() < size) {
+                        largest.poll();
+                        largest.add(new AbstractMap.SimpleEntry<String,Long>(id, size));
+                    }
+                }
+                return true;
+            }
+        });
+        _sessions.setAttribute("Count", Long.toString(totals[0]));
+        _sessions.setAttribute("Size", Long.toString(totals[1]));
+
+        final List<Map.Entry<String,Long>> sessions = new ArrayList<Map.Entry<String,Long>>(largest);
+        Collections.sort(sessions, Collections.reverseOrder(largest.comparator()));
+        for (int i=0; i<sessions.size(); i++) {
             final Element _session = doc.createElement("Session");
-            _session.setAttribute("ID", id);
-            _session.setAttribute("Size", Long.toString(size));
+            _session.setAttribute("ID", sessions.get(i).getKey());
+            _session.setAttribute("Size", Long.toString(sessions.get(i).getValue()));
             _sessions.appendChild(_session);
         }
         
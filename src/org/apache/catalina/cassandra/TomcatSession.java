@@ -52,9 +52,11 @@ public class TomcatSession implements Session, HttpSession {
     /**
      * Session notes are set for each request for authenticated sessions.
      * We don't want to store these unnecessarily in Cassandra, so we store
-     * them in this (transient) map, making them available to servlets.
+     * them in this (transient) map, making them available to servlets. The
+     * map is only created once a note is set, as most sessions found through
+     * findSessions() never have any.
      */
-    private Map<String,Object> notes = new HashMap<String,Object>();
+    private Map<String,Object> notes = null;
     
     /**
      * Creates a new Tomcat session container.
@@ -132,7 +134,7 @@ public class TomcatSession implements Session, HttpSession {
      * @see org.apache.catalina.Session#getAuthType()
      */
     public String getAuthType() {
-        return cassandra.getAuthType();
+        return cassandra.getAuthType(this.getSerialiser());
     }
 
     /*
@@ -166,6 +168,7 @@ public class TomcatSession implements Session, HttpSession {
      * @see org.apache.catalina.Session#setNote(java.lang.String, java.lang.Object)
      */
     public void setNote(String name, Object value) {
+    	if (this.notes == null) this.notes = new HashMap<String,Object>();
     	this.notes.put(name, value);
     }
 
@@ -174,7 +177,7 @@ public class TomcatSession implements Session, HttpSession {
      * @see org.apache.catalina.Session#removeNote(java.lang.String)
      */
     public void removeNote(String name) {
-    	this.notes.remove(name);
+    	if (this.notes != null) this.notes.remove(name);
     }
 
     /*
@@ -182,7 +185,7 @@ public class TomcatSession implements Session, HttpSession {
      * @see org.apache.catalina.Session#getNote(java.lang.String)
      */
     public Object getNote(String name) {
-    	return this.notes.get(name);
+    	return (this.notes != null ? this.notes.get(name) : null);
     }
 
     /*
@@ -190,6 +193,7 @@ public class TomcatSession implements Session, HttpSession {
      * @see org.apache.catalina.Session#getNoteNames()
      */
     public Iterator<String> getNoteNames() {
+    	if (this.notes == null) return Collections.<String>emptyList().iterator();
     	return this.notes.keySet().iterator();
     }
 
@@ -293,6 +297,19 @@ public class TomcatSession implements Session, HttpSession {
             cassandra.setAttribute(name, value, serialiser);
         }
     }
+
+    /**
+     * Sets/updates a session object with a time-to-live, after which the
+     * session object is dropped by Cassandra without being removed.
+     * @param name Session object name.
+     * @param value Session object value.
+     * @param ttl Time-to-live in seconds (0 if the object does not expire).
+     */
+    public void setAttribute(String name, Object value, int ttl) {
+        cassandra.setTimeToLive(name, ttl);
+        this.setAttribute(name, value);
+    }
+
     public Object getAttribute(String name) {
 
         Object value = null;
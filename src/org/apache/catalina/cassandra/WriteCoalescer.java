@@ -0,0 +1,342 @@
+// @(#)$Id: WriteCoalescer.java,v 1.1 2014/03/31 10:17:44 morten Exp $
+package org.apache.catalina.cassandra;
+
+import java.util.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <ul>
+ *   <li><b>Project:</b> TomcatCassandra</li>
+ *   <li><b>Class:</b> org.apache.catalina.cassandra.WriteCoalescer</li>
+ *   <li><b>Author:</b> morten.jorgensen@openjawtech.com</li>
+ *   <li><b>Created:</b> 31 Mar 2014 10:17:44</li>
+ *   <li><b>Description:</b>
+ *     Node-wide write stage for session object writes. Writes submitted by
+ *     all request (and flush) threads are collected for a short window,
+ *     only the last write of each session object is kept, and the result is
+ *     sent to Cassandra as a few large batch mutations instead of many small
+ *     ones. Each caller receives a future that completes, with the session's
+ *     new version stamp, once the batch holding its write has been
+ *     acknowledged by Cassandra.
+ *   </li>
+ *   <li><b>Functional spec. ref.:</b> </li>
+ *   <li><b>Design spec.ref.:</b> </li>
+ * </ul>
+ */
+class WriteCoalescer {
+
+    /** Log4J logger instance for class WriteCoalescer. */
+    private final static Logger cat = Logger.getLogger(WriteCoalescer.class);
+    /** Log4J debug setting for class WriteCoalescer. */
+    private final static boolean debug = cat.isDebugEnabled();
+
+    /** Maximum number of session object writes in a single batch mutation. */
+    private final static int MAX_BATCH = 500;
+
+    /** Cassandra client API wrapper. */
+    private CassandraClient client;
+
+    /** Time in milliseconds to collect writes before sending them. */
+    private long window;
+
+    /** Writes collected for the next batch, keyed by session ID and name. */
+    private Map<String,Write> pending = new LinkedHashMap<String,Write>();
+
+    /** Background thread that sends the batches. */
+    private Thread writer;
+
+    /** Flags that the coalescer is being shut down. */
+    private volatile boolean closing = false;
+
+    /** Statistics: Writes submitted. */
+    private long submitted = 0L;
+    /** Statistics: Writes sent to Cassandra (after coalescing). */
+    private long written = 0L;
+    /** Statistics: Batch mutations sent to Cassandra. */
+    private long batches = 0L;
+
+    /**
+     * Creates a new write coalescer.
+     * @param client Cassandra client API wrapper.
+     * @param window Time in milliseconds to collect writes before sending.
+     */
+    WriteCoalescer(CassandraClient client, long window) {
+        this.client = client;
+        this.window = window;
+        this.writer = new Thread(new Runnable() {
+            public void run() {
+                WriteCoalescer.this.run();
+            }
+        }, "CassandraSessionWriteCoalescer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Submits a session object write.
+     * @param sid Session ID.
+     * @param name Session object name.
+     * @param bytes Serialised session object, or null to remove it.
+     * @param timestamp Write timestamp in milliseconds (0 for current time).
+     * @param ttl Time-to-live in seconds (0 if the object does not expire).
+     * @return future that completes with the session's new version stamp
+     *    once the write is durable.
+     */
+    Future<String> submit(String sid, String name, byte[] bytes, long timestamp, int ttl) {
+        final Ticket ticket = new Ticket();
+        // Resolved here, so that writes for the current time are ordered
+        // against writes with the timestamp of an earlier request.
+        if (timestamp == 0L) timestamp = System.currentTimeMillis();
+        synchronized (this) {
+            if (this.closing) {
+                ticket.fail(new IllegalStateException("Write coalescer has been shut down"));
+                return ticket;
+            }
+            final String key = sid + '\u0000' + name;
+            final Write write = new Write(sid, name, bytes, timestamp, ttl);
+            final Write old = this.pending.get(key);
+            if (old != null && old.timestamp > timestamp) {
+                // A later request has already written this session object.
+                old.tickets.add(ticket);
+            }
+            else {
+                if (old != null) write.tickets.addAll(old.tickets);
+                write.tickets.add(ticket);
+                this.pending.remove(key);
+                this.pending.put(key, write);
+            }
+            this.submitted++;
+            this.notifyAll();
+        }
+        return ticket;
+    }
+
+    /**
+     * Collects writes for the configured window and sends them, until the
+     * coalescer is shut down.
+     */
+    private void run() {
+        while (true) {
+            Map<String,Write> batch = null;
+            try {
+                synchronized (this) {
+                    while (this.pending.size() == 0 && !this.closing) this.wait();
+                    if (this.pending.size() == 0) return;
+                    final long until = System.currentTimeMillis() + this.window;
+                    long remaining = this.window;
+                    while (remaining > 0 && this.pending.size() < MAX_BATCH && !this.closing) {
+                        this.wait(remaining);
+                        remaining = until - System.currentTimeMillis();
+                    }
+                    batch = this.pending;
+                    this.pending = new LinkedHashMap<String,Write>();
+                }
+            }
+            catch (InterruptedException e) {
+                continue;
+            }
+            this.send(new ArrayList<Write>(batch.values()));
+        }
+    }
+
+    /**
+     * Sends writes to Cassandra in batch mutations, and completes the
+     * futures of the callers.
+     * @param writes Coalesced writes.
+     */
+    private void send(List<Write> writes) {
+        for (int i=0; i<writes.size(); i+=MAX_BATCH) {
+            final List<Write> batch = writes.subList(i, Math.min(i + MAX_BATCH, writes.size()));
+            try {
+                final Map<String,String> versions = this.client.addSessionObjects(batch);
+                synchronized (this) {
+                    this.written += batch.size();
+                    this.batches++;
+                }
+                if (debug) cat.debug("Wrote "+batch.size()+" session objects for "+versions.size()+" sessions in one batch");
+                for (int j=0; j<batch.size(); j++) {
+                    final Write write = batch.get(j);
+                    final String version = versions.get(write.sid);
+                    for (int k=0; k<write.tickets.size(); k++) write.tickets.get(k).complete(version);
+                }
+            }
+            catch (Throwable e) {
+                cat.error("Unable to write batch of "+batch.size()+" session objects: "+e.getMessage(), e);
+                for (int j=0; j<batch.size(); j++) {
+                    final Write write = batch.get(j);
+                    for (int k=0; k<write.tickets.size(); k++) write.tickets.get(k).fail(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends all pending writes and stops the background thread.
+     */
+    void shutdown() {
+        synchronized (this) {
+            this.closing = true;
+            this.notifyAll();
+        }
+        try {
+            this.writer.join(30000L);
+        }
+        catch (InterruptedException e) {
+            // Ignore.
+        }
+    }
+
+    /**
+     * Returns the number of writes submitted.
+     * @return the number of writes submitted.
+     */
+    synchronized long getSubmitted() {
+        return this.submitted;
+    }
+
+    /**
+     * Returns the number of writes sent to Cassandra after coalescing.
+     * @return the number of writes sent to Cassandra.
+     */
+    synchronized long getWritten() {
+        return this.written;
+    }
+
+    /**
+     * Returns the number of batch mutations sent to Cassandra.
+     * @return the number of batch mutations.
+     */
+    synchronized long getBatches() {
+        return this.batches;
+    }
+
+    /**
+     * A single (coalesced) session object write.
+     */
+    static class Write {
+
+        /** Session ID. */
+        private String sid;
+        /** Session object name. */
+        private String name;
+        /** Serialised session object (null to remove it). */
+        private byte[] bytes;
+        /** Write timestamp in milliseconds. */
+        private long timestamp;
+        /** Time-to-live in seconds (0 if the object does not expire). */
+        private int ttl;
+        /** Futures to complete once this write is durable. */
+        private List<Ticket> tickets = new ArrayList<Ticket>(1);
+
+        /**
+         * Creates a new write.
+         * @param sid Session ID.
+         * @param name Session object name.
+         * @param bytes Serialised session object (null to remove it).
+         * @param timestamp Write timestamp in milliseconds.
+         * @param ttl Time-to-live in seconds.
+         */
+        Write(String sid, String name, byte[] bytes, long timestamp, int ttl) {
+            this.sid = sid;
+            this.name = name;
+            this.bytes = bytes;
+            this.timestamp = timestamp;
+            this.ttl = ttl;
+        }
+
+        /**
+         * Returns the session ID.
+         * @return the session ID.
+         */
+        String getId() {
+            return this.sid;
+        }
+
+        /**
+         * Returns the session object name.
+         * @return the session object name.
+         */
+        String getName() {
+            return this.name;
+        }
+
+        /**
+         * Returns the serialised session object.
+         * @return the serialised session object, or null to remove it.
+         */
+        byte[] getBytes() {
+            return this.bytes;
+        }
+
+        /**
+         * Returns the write timestamp.
+         * @return the write timestamp in milliseconds.
+         */
+        long getTimestamp() {
+            return this.timestamp;
+        }
+
+        /**
+         * Returns the time-to-live.
+         * @return the time-to-live in seconds (0 if the object does not expire).
+         */
+        int getTtl() {
+            return this.ttl;
+        }
+    }
+
+    /**
+     * Future for a submitted write.
+     */
+    private static class Ticket implements Future<String> {
+
+        /** Released once the write has completed or failed. */
+        private CountDownLatch done = new CountDownLatch(1);
+        /** New session version stamp. */
+        private String version = null;
+        /** Failure, if the write failed. */
+        private Throwable failure = null;
+
+        void complete(String version) {
+            this.version = version;
+            this.done.countDown();
+        }
+
+        void fail(Throwable failure) {
+            this.failure = failure;
+            this.done.countDown();
+        }
+
+        public boolean cancel(boolean interrupt) {
+            return false;
+        }
+
+        public boolean isCancelled() {
+            return false;
+        }
+
+        public boolean isDone() {
+            return (this.done.getCount() == 0);
+        }
+
+        public String get() throws InterruptedException, ExecutionException {
+            this.done.await();
+            if (this.failure != null) throw new ExecutionException(this.failure);
+            return this.version;
+        }
+
+        public String get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!this.done.await(timeout, unit)) throw new TimeoutException();
+            if (this.failure != null) throw new ExecutionException(this.failure);
+            return this.version;
+        }
+    }
+
+}
@@ -0,0 +1,246 @@
+// @(#)$Id: AdaptiveCache.java,v 1.1 2014/04/03 14:22:05 morten Exp $
+package org.apache.catalina.cassandra.cache;
+
+import java.util.*;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.catalina.cassandra.CassandraSession;
+import org.apache.catalina.cassandra.CassandraStatistics;
+import org.apache.catalina.cassandra.utils.SessionObjectSerialiser;
+import org.apache.catalina.connector.Request;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <ul>
+ *   <li><b>Project:</b> TomcatCassandra</li>
+ *   <li><b>Class:</b> org.apache.catalina.cassandra.cache.AdaptiveCache</li>
+ *   <li><b>Author:</b> morten.jorgensen@openjawtech.com</li>
+ *   <li><b>Created:</b> 3 Apr 2014 14:22:05</li>
+ *   <li><b>Description:</b>
+ *     Implements a request-scope cache for the Cassandra session manager
+ *     for Tomcat that chooses its caching strategy per session. While a
+ *     session only receives one request at a time, the cache works as the
+ *     aggressive write-back cache. Once a session has overlapping requests,
+ *     the cache works as the write-through cache for that session, so that
+ *     concurrent requests see each other's changes, until the session has
+ *     had no overlapping requests for a while.
+ *   </li>
+ *   <li><b>Functional spec. ref.:</b> </li>
+ *   <li><b>Design spec.ref.:</b> </li>
+ * </ul>
+ */
+public class AdaptiveCache extends CacheValve {
+
+    /** Log4J logger instance for class AdaptiveCache. */
+    private final static Logger cat = Logger.getLogger(AdaptiveCache.class);
+    /** Log4J debug setting for class AdaptiveCache. */
+    private final static boolean debug = cat.isDebugEnabled();
+
+    /** Policy name reported to statistics for write-back requests. */
+    public final static String WRITE_BACK = "AggressiveWriteBack";
+    /** Policy name reported to statistics for write-through requests. */
+    public final static String WRITE_THROUGH = "WriteThrough";
+
+    /** Number of completed requests between sweeps of the activity table. */
+    private final static int SWEEP_INTERVAL = 1000;
+
+    /** Request activity per session, keyed by requested session ID. */
+    private Map<String,Activity> activity = new HashMap<String,Activity>();
+
+    /** Number of completed requests since the last sweep. */
+    private int completed = 0;
+
+    /**
+     * Time in milliseconds that a session keeps using write-through after
+     * it last had overlapping requests.
+     */
+    private long concurrentTimeout = 30000L;
+
+    /**
+     * Constructor.
+     */
+    public AdaptiveCache() {
+
+    }
+
+    /**
+     * Sets the time that a session keeps using write-through after it last
+     * had overlapping requests.
+     * @param timeout time in milliseconds.
+     */
+    public void setConcurrentTimeout(long timeout) {
+        this.concurrentTimeout = timeout;
+    }
+
+    /**
+     * Registers the start of a request for a session.
+     * @param sid Requested session ID.
+     */
+    private synchronized void enter(String sid) {
+        Activity session = this.activity.get(sid);
+        if (session == null) {
+            session = new Activity();
+            this.activity.put(sid, session);
+        }
+        session.requests++;
+        if (session.requests > 1) {
+            if (debug && !this.isConcurrent(session)) cat.debug("["+sid+"] Overlapping requests, switching to write-through");
+            session.concurrent = System.currentTimeMillis() + this.concurrentTimeout;
+        }
+    }
+
+    /**
+     * Registers the end of a request for a session.
+     * @param sid Requested session ID.
+     */
+    private synchronized void exit(String sid) {
+        final Activity session = this.activity.get(sid);
+        if (session != null) {
+            session.requests--;
+            if (session.requests == 0 && !this.isConcurrent(session)) this.activity.remove(sid);
+        }
+
+        // Drop sessions that have stopped sending requests.
+        if (++this.completed >= SWEEP_INTERVAL) {
+            this.completed = 0;
+            final Iterator<Activity> sessions = this.activity.values().iterator();
+            while (sessions.hasNext()) {
+                final Activity next = sessions.next();
+                if (next.requests == 0 && !this.isConcurrent(next)) sessions.remove();
+            }
+        }
+    }
+
+    /**
+     * Tells you if a session should currently use write-through.
+     * @param sid Requested session ID.
+     * @return true if the session has, or recently had, overlapping requests.
+     */
+    private synchronized boolean isConcurrent(String sid) {
+        final Activity session = this.activity.get(sid);
+        return (session != null && (session.requests > 1 || this.isConcurrent(session)));
+    }
+
+    /**
+     * Tells you if a session is within its write-through period.
+     * @param session Session activity.
+     * @return true if the session recently had overlapping requests.
+     */
+    private boolean isConcurrent(Activity session) {
+        return (session.concurrent > System.currentTimeMillis());
+    }
+
+    /**
+     * Request activity of a single session.
+     */
+    private static class Activity {
+
+        /** Number of requests in flight. */
+        private int requests = 0;
+        /** Time until which the session uses write-through. */
+        private long concurrent = 0L;
+    }
+
+    /**
+     * Implementation of adaptive cache.
+     */
+    private class Cache extends org.apache.catalina.cassandra.cache.Cache {
+
+        /**
+         * Requested session ID, or null if the request did not refer to a
+         * session (in which case it cannot overlap with another request).
+         */
+        private String sid;
+
+        /**
+         * Dirty session objects that have been updated by the web application
+         * (assumed after setAttribute() has been called), but that we have
+         * not yet written back to Cassandra.
+         */
+        private Set<String> dirty = new LinkedHashSet<String>();
+
+        /** Flags that session objects have been written through. */
+        private boolean writeThrough = false;
+
+        /**
+         * Extends Cache superclass.
+         * @param request Request this cache has scope for.
+         */
+        public Cache(HttpServletRequest request) {
+            super(request);
+            this.sid = request.getRequestedSessionId();
+            if (this.sid != null) AdaptiveCache.this.enter(this.sid);
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see org.apache.cassandra.cache.Cache#write(java.lang.String, java.lang.Object)
+         *
+         * Session objects are written through to Cassandra while the session
+         * has overlapping requests, and written back otherwise. Any session
+         * objects left dirty from before the overlap was detected are
+         * written through at the same time.
+         */
+        public void write(String name, Object object, SessionObjectSerialiser serialiser) {
+            super.write(name, object, serialiser);
+            this.dirty.add(name);
+            if (this.sid == null || !AdaptiveCache.this.isConcurrent(this.sid)) return;
+
+            final CassandraSession cassandra = this.getCassandraSession();
+            if (cassandra == null) return;
+            if (!this.writeThrough && debug) cat.debug("["+this.sid+"] Writing through "+this.dirty.size()+" session objects");
+            this.writeThrough = true;
+            final Iterator<String> keys = this.dirty.iterator();
+            while (keys.hasNext()) {
+                final String key = keys.next();
+                if (!this.isPersistent(key)) continue;
+                final Object value = super.data.get(key);
+                if (value != null && value != NULL)
+                    cassandra.setAttribute(key, value, serialiser);
+                else
+                    cassandra.removeAttribute(key);
+            }
+            this.dirty.clear();
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see org.apache.cassandra.cache.Cache#getDirty()
+         *
+         * Only session objects written through setAttribute(), and not yet
+         * written through, are written back to Cassandra once all request
+         * processing has completed.
+         */
+        protected Map<String,Object> getDirty() {
+            final CassandraStatistics stats = CassandraStatistics.getInstance();
+            if (stats != null) stats.setCachePolicy(this.writeThrough ? WRITE_THROUGH : WRITE_BACK);
+
+            final Map<String,Object> objects = new LinkedHashMap<String,Object>();
+            final Iterator<String> keys = this.dirty.iterator();
+            while (keys.hasNext()) {
+                final String key = keys.next();
+                objects.put(key, super.data.get(key));
+            }
+            return objects;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see org.apache.cassandra.cache.Cache#cleanup()
+         */
+        public void cleanup() {
+            if (this.sid != null) {
+                AdaptiveCache.this.exit(this.sid);
+                this.sid = null;
+            }
+            super.cleanup();
+        }
+    }
+
+    protected org.apache.catalina.cassandra.cache.Cache getCache(Request request) {
+        return new Cache(request);
+    }
+
+}
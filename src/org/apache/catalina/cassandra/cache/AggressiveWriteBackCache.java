@@ -2,10 +2,11 @@
 package org.apache.catalina.cassandra.cache;
 
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.HashSet;
 
-import org.apache.catalina.cassandra.CassandraSession;
 import org.apache.catalina.cassandra.utils.SessionObjectSerialiser;
 import org.apache.catalina.connector.Request;
 
@@ -70,39 +71,19 @@ public class AggressiveWriteBackCache extends CacheValve {
         
         /*
          * (non-Javadoc)
-         * @see org.apache.cassandra.cache.Cache#detach()
+         * @see org.apache.cassandra.cache.Cache#getDirty()
          * 
-         * This method is extended to ensure that all data is written back to
-         * Cassandra once all request processing has completed.
+         * Only session objects written through setAttribute() are written
+         * back to Cassandra once all request processing has completed.
          */
-        public void detach() {
-            // Detach this cache from the current thread.
-            super.detach();
-
-            if (debug) cat.debug("Flushing cache "+this.getClass().getName());
-            
-            // Write all cached entries to cassandra.
-            if (dirty.size() == 0) return;
-            
-            final CassandraSession cassandra = this.getCassandraSession();
-            if (cassandra == null) return;
-            
-            if (this.serialiser == null) {
-                cat.error("Unable to flush write-back cache as no Cassandra read/write operations have taken place within the scope of this request.");
-                return;
-            }
-
-            // Get the names of the dirty session objects
+        protected Map<String,Object> getDirty() {
+            final Map<String,Object> objects = new LinkedHashMap<String,Object>();
             final Iterator<String> keys = dirty.iterator();
             while (keys.hasNext()) {
-                // Get the next dirty session object.
-                final String key = (String)keys.next();
-                final Object object = super.data.get(key);
-                if (object != null && object != NULL)
-                    cassandra.setAttribute(key, object, this.serialiser);
-                else
-                    cassandra.removeAttribute(key);
+                final String key = keys.next();
+                objects.put(key, super.data.get(key));
             }
+            return objects;
         }
     }
 
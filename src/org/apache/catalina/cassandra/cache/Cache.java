@@ -2,6 +2,7 @@
 package org.apache.catalina.cassandra.cache;
 
 import java.util.*;
+import java.nio.ByteBuffer;
 
 import javax.servlet.ServletRequest;
 import javax.servlet.http.HttpServletRequest;
@@ -52,6 +53,48 @@ public abstract class Cache {
      */
     private CassandraSession _cassandra = null;
     
+    /**
+     * Names of the session objects that exist in Cassandra, as given by the
+     * session's attribute index. This is loaded on the first cache miss,
+     * and is null if the session has no attribute index.
+     */
+    private Set<String> index = null;
+
+    /** Flags that we have attempted to load the attribute index. */
+    private boolean indexLoaded = false;
+    
+    /**
+     * Names of all session objects, in Cassandra and in this cache combined.
+     * This is loaded on the first call to getEntries(), and is then kept
+     * up to date as session objects are written and removed.
+     */
+    private Set<String> names = null;
+
+    /**
+     * Read-only snapshot of the session object names returned by
+     * getEntries(). This is rebuilt only after the names have changed.
+     */
+    private List<String> entries = null;
+    
+    /**
+     * Tomcat sessions that have been looked up within the scope of this
+     * request, keyed by session ID. This ensures that every lookup of the
+     * same session within a request returns the same session instance.
+     */
+    private Map<String,TomcatSession> sessions = new HashMap<String,TomcatSession>();
+    
+    /** Flags that session objects are shared with concurrent requests. */
+    private boolean shared = false;
+
+    /**
+     * ID of the session whose shared entry this request holds, or null if
+     * it does not hold one. The entry is released by cleanup().
+     */
+    private String sharedId = null;
+    
+    /** Store for transient session objects (null if none are configured). */
+    private TransientAttributes transients = null;
+    
     /** Lazy-initialised session object serialiser. */
     protected SessionObjectSerialiser serialiser = null;
     
@@ -87,6 +130,36 @@ public abstract class Cache {
 	    return this._cassandra;    
     }
 
+    /**
+     * Enables sharing of session objects with other requests that are in
+     * flight for the same session on this node.
+     */
+    void share() {
+        this.shared = true;
+    }
+
+    /**
+     * Sets the node-local store for transient session objects.
+     * @param transients Transient session object store.
+     */
+    void setTransients(TransientAttributes transients) {
+        this.transients = transients;
+    }
+
+    /**
+     * Obtains the Cassandra session, registering this request with the
+     * session's shared entry if sharing is enabled.
+     * @return CassandraSession instance, or null if not available.
+     */
+    private CassandraSession getSharedSession() {
+        final CassandraSession cassandra = this.getCassandraSession();
+        if (cassandra != null && this.shared && this.sharedId == null) {
+            this.sharedId = cassandra.getId();
+            SharedCache.acquire(this.sharedId);
+        }
+        return cassandra;
+    }
+
     /**
      * This method tells you if the user has accessed the session within the
      * current request/cache scope.
@@ -119,6 +192,26 @@ public abstract class Cache {
         }
         
         this.data.put(name, object);
+        if (this.index != null) {
+            if (object != NULL)
+                this.index.add(name);
+            else
+                this.index.remove(name);
+        }
+        if (this.names != null) {
+            if (object != NULL)
+                this.names.add(name);
+            else
+                this.names.remove(name);
+            this.entries = null;
+        }
+        // A request that writes before it reads must still share the write.
+        if (this.shared) this.getSharedSession();
+        if (this.sharedId != null) SharedCache.write(this.sharedId, name, object);
+        if (this.transients != null && this.transients.matches(name)) {
+            final CassandraSession cassandra = this.getCassandraSession();
+            if (cassandra != null) this.transients.put(cassandra.getId(), name, object);
+        }
 
         // Get the statistics counters for the current request.
         final CassandraStatistics stats = CassandraStatistics.getInstance(); 
@@ -137,19 +230,47 @@ public abstract class Cache {
         // Store reference for later use by detach() method.
         this.serialiser = serialiser;
 
-        // Attempt to get the object from the in-memory cache.
+        // Attempt to get the object from the in-memory cache, or from a
+        // flush of an earlier request that has not yet completed.
         Object object = this.data.get(name);
+        if (object == null) {
+            object = this.getPending(name, serialiser);
+            if (object != null) this.data.put(name, object);
+        }
+        if (object != null && object != NULL && this._cassandra != null && this._cassandra.isExpired(name)) {
+            // The session object has passed its time-to-live.
+            if (debug) cat.debug("Cached object "+name+" has expired");
+            object = NULL;
+            this.data.put(name, NULL);
+        }
+        if (object == null && this.transients != null && this.transients.matches(name)) {
+            final CassandraSession cassandra = this.getCassandraSession();
+            if (cassandra != null) object = this.transients.get(cassandra.getId(), name);
+            if (object != null) this.data.put(name, object);
+        }
         
         // Get the statistics counters for the current request.
         final CassandraStatistics stats = CassandraStatistics.getInstance(); 
         
+        // Cache miss, but the object is never stored in Cassandra, or the
+        // attribute index tells us that it does not exist in Cassandra.
+        if (object == null && (!this.isPersistent(name) || !this.mayExist(name))) {
+            if (stats != null) stats.cacheMiss();
+            if (debug) cat.debug("Cache miss for object "+name+" (not in attribute index, no cassandra query).");
+            this.data.put(name, NULL);
+        }
         // Cache miss.
-        if (object == null) {
+        else if (object == null) {
             if (stats != null) stats.cacheMiss();
             if (debug) cat.debug("Cache miss for object "+name+" (cassandra queried).");
             // See if cassandra has the object
-            final CassandraSession cassandra = this.getCassandraSession();
-            if (cassandra != null) {
+            final CassandraSession cassandra = this.getSharedSession();
+            if (cassandra != null && this.shared) {
+                object = SharedCache.read(cassandra, name, serialiser);
+                this.data.put(name, object);
+                if (object == NULL) object = null;
+            }
+            else if (cassandra != null) {
                 object = cassandra.getAttribute(name, serialiser);
                 if (object != null)
                     this.data.put(name, object);
@@ -171,32 +292,93 @@ public abstract class Cache {
         return object;
     }
 
+    /**
+     * Obtains a session object from a pending asynchronous flush. The flush
+     * holds the serialised object, so this request gets its own copy.
+     * @param name Session object name.
+     * @param serialiser Serialiser for session objects.
+     * @return the pending session object (NULL if it is being removed), or
+     *    null if there is no pending write for the session object.
+     */
+    private Object getPending(String name, SessionObjectSerialiser serialiser) {
+        if (PendingWrites.size() == 0) return null;
+        final CassandraSession cassandra = this.getCassandraSession();
+        if (cassandra == null) return null;
+        final byte[] bytes = PendingWrites.get(cassandra.getId(), name);
+        if (bytes == null) return null;
+        if (bytes == PendingWrites.REMOVED) return NULL;
+        return serialiser.fromByteBuffer(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Checks the session's attribute index to see if a session object may
+     * exist in Cassandra. The index is loaded on first use.
+     * @param name Session object name.
+     * @return false if the object definitely does not exist in Cassandra.
+     */
+    private boolean mayExist(String name) {
+        final Set<String> index = this.getIndex();
+        if (index == null) return true;
+        return index.contains(name);
+    }
+
+    /**
+     * Returns the session's attribute index, loading it on first use.
+     * @return the attribute index, or null if the session has none.
+     */
+    private Set<String> getIndex() {
+        if (!this.indexLoaded) {
+            this.indexLoaded = true;
+            final CassandraSession cassandra = this.getCassandraSession();
+            if (cassandra != null) this.index = cassandra.getAttributeIndex();
+        }
+        return this.index;
+    }
+
     /**
      * Obtains the list of entries in the cache and the Cassandra session
-     * combined.
-     * @return List of entries.
+     * combined. The session object names are read from Cassandra at most
+     * once per request, and the returned list is a read-only snapshot that
+     * is shared between calls until a session object is written or removed.
+     * @return Read-only list of entries.
      */
     public List<String> getEntries() {
-        // This will hold the complete set of session attributes
-        final Set<String> unique = new HashSet<String>();
+        if (this.names == null) {
+            // This will hold the complete set of session attributes
+            final Set<String> unique = new HashSet<String>();
 
-        // Get session attributes that exist in cassandra.
-        final CassandraSession cassandra = this.getCassandraSession();
-        if (cassandra != null) {
-        	unique.addAll(cassandra.getAttributes());
+            // Get session attributes that exist in cassandra. The attribute
+            // index is much cheaper to read than the session objects, so we
+            // use it where we have one.
+            final CassandraSession cassandra = this.getCassandraSession();
+            if (cassandra != null) {
+                final Set<String> index = this.getIndex();
+                if (index != null)
+                    unique.addAll(index);
+                else
+                    unique.addAll(cassandra.getAttributes());
+                PendingWrites.merge(cassandra.getId(), unique);
+                if (this.transients != null) this.transients.merge(cassandra.getId(), unique);
+            }
+
+            // Merge in the session objects written/removed in this cache.
+            final Iterator<String> keys = this.data.keySet().iterator();
+            while (keys.hasNext()) {
+                final String key = keys.next();
+                final Object object = this.data.get(key);
+                if (object != null && object != NULL)
+                    unique.add(key);
+                else
+                    unique.remove(key);
+            }
+
+            this.names = unique;
         }
 
-        // Add all non-NULL objects from this cache
-        final Iterator<String> keys = this.data.keySet().iterator();
-        while (keys.hasNext()) {
-            final String key = keys.next();
-            final Object object = this.data.get(key);
-            if (object != null && object != NULL) unique.add(key);
+        if (this.entries == null) {
+            this.entries = Collections.unmodifiableList(new ArrayList<String>(this.names));
         }
-        
-        final List<String> result = new ArrayList<String>();
-        result.addAll(unique);
-        return result;
+        return this.entries;
     }
     
     /**
@@ -205,9 +387,58 @@ public abstract class Cache {
      */
     public void remove(String name) {
         this.data.put(name, NULL);
+        if (this.index != null) this.index.remove(name);
+        if (this.names != null) {
+            this.names.remove(name);
+            this.entries = null;
+        }
+        if (this.shared) this.getSharedSession();
+        if (this.sharedId != null) SharedCache.write(this.sharedId, name, NULL);
+        if (this.transients != null && this.transients.matches(name)) {
+            final CassandraSession cassandra = this.getCassandraSession();
+            if (cassandra != null) this.transients.remove(cassandra.getId(), name);
+        }
+        if (!this.isPersistent(name)) return;
         final CassandraSession cassandra = this.getCassandraSession();
         if (cassandra != null) cassandra.removeAttribute(name);
     }
+
+    /**
+     * Tells you if a session object may be stored in Cassandra. Session
+     * objects that are not are never read from or removed from Cassandra.
+     * @param name Session object name.
+     * @return true if the session object may be stored in Cassandra.
+     */
+    protected boolean isPersistent(String name) {
+        return (this.transients == null || !this.transients.matches(name));
+    }
+    
+    /**
+     * Obtains a Tomcat session that has already been looked up within the
+     * scope of this request.
+     * @param id Session ID.
+     * @return Tomcat session, or null if not looked up in this request.
+     */
+    public TomcatSession getSession(String id) {
+        return this.sessions.get(id);
+    }
+
+    /**
+     * Registers a Tomcat session with this request, so that later lookups
+     * of the same session ID within this request return the same instance.
+     * @param session Tomcat session.
+     */
+    public void putSession(TomcatSession session) {
+        this.sessions.put(session.getId(), session);
+    }
+
+    /**
+     * Removes a Tomcat session from this request's session registry.
+     * @param id Session ID.
+     */
+    public void removeSession(String id) {
+        this.sessions.remove(id);
+    }
     
     /**
      * Attaches this object to the current thread/request.
@@ -223,6 +454,107 @@ public abstract class Cache {
         Cache.cache.remove();
     }
 
+    /**
+     * Returns the session objects that are to be written back to Cassandra
+     * once request processing has completed. Write-through caches have no
+     * dirty session objects.
+     * @return Dirty session objects, keyed by name (NULL for removed objects).
+     */
+    protected Map<String,Object> getDirty() {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Returns the dirty session objects that may be stored in Cassandra.
+     * @return Dirty session objects, keyed by name (NULL for removed objects).
+     */
+    final Map<String,Object> getWrites() {
+        final Map<String,Object> dirty = this.getDirty();
+        if (this.transients == null || dirty.size() == 0) return dirty;
+        final Map<String,Object> writes = new LinkedHashMap<String,Object>();
+        final Iterator<Map.Entry<String,Object>> objects = dirty.entrySet().iterator();
+        while (objects.hasNext()) {
+            final Map.Entry<String,Object> object = objects.next();
+            if (this.isPersistent(object.getKey())) writes.put(object.getKey(), object.getValue());
+        }
+        return writes;
+    }
+
+    /**
+     * Writes the dirty session objects back to Cassandra.
+     */
+    public void flush() {
+        final Map<String,Object> dirty = this.getWrites();
+        if (dirty.size() == 0) return;
+
+        if (debug) cat.debug("Flushing cache "+this.getClass().getName());
+
+        final CassandraSession cassandra = this.getCassandraSession();
+        if (cassandra == null) return;
+
+        if (this.serialiser == null) {
+            cat.error("Unable to flush write-back cache as no Cassandra read/write operations have taken place within the scope of this request.");
+            return;
+        }
+        final Iterator<Map.Entry<String,Object>> objects = dirty.entrySet().iterator();
+        while (objects.hasNext()) {
+            final Map.Entry<String,Object> object = objects.next();
+            if (object.getValue() != null && object.getValue() != NULL)
+                cassandra.setAttribute(object.getKey(), object.getValue(), this.serialiser);
+            else
+                cassandra.removeAttribute(object.getKey());
+        }
+    }
+
+    /**
+     * Serialises session objects, so that they can be written after the
+     * request has completed without sharing the live objects with the
+     * next request.
+     * @param dirty Session objects, keyed by name (NULL for removed objects).
+     * @param serialiser Serialiser for session objects.
+     * @return Serialised session objects, keyed by name (null for removed
+     *    objects).
+     */
+    static Map<String,byte[]> serialise(Map<String,Object> dirty, SessionObjectSerialiser serialiser) {
+        final Map<String,byte[]> writes = new LinkedHashMap<String,byte[]>();
+        final Iterator<Map.Entry<String,Object>> objects = dirty.entrySet().iterator();
+        while (objects.hasNext()) {
+            final Map.Entry<String,Object> object = objects.next();
+            byte[] bytes = null;
+            if (object.getValue() != null && object.getValue() != NULL) {
+                final ByteBuffer buffer = serialiser.toByteBuffer(object.getValue());
+                bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+            }
+            writes.put(object.getKey(), bytes);
+        }
+        return writes;
+    }
+
+    /**
+     * Writes serialised session objects to Cassandra, and releases their
+     * pending write entries.
+     * @param cassandra Cassandra session.
+     * @param writes Serialised session objects, keyed by name (null for
+     *    removed objects).
+     * @param serialiser Serialiser for session objects.
+     * @param timestamp Write timestamp in milliseconds (0 for current time).
+     * @param pending Pending write entries to release once written.
+     */
+    static void write(CassandraSession cassandra, Map<String,byte[]> writes, SessionObjectSerialiser serialiser, long timestamp, Map<String,PendingWrites.Entry> pending) {
+        final Iterator<Map.Entry<String,byte[]>> objects = writes.entrySet().iterator();
+        while (objects.hasNext()) {
+            final Map.Entry<String,byte[]> object = objects.next();
+            final String key = object.getKey();
+            try {
+                cassandra.setAttributeBytes(key, object.getValue(), serialiser, timestamp);
+            }
+            finally {
+                PendingWrites.release(cassandra.getId(), key, pending.get(key));
+            }
+        }
+    }
+
     /**
      * Obtains the cache instance for the current thread/request.
      * @return the cache instance for the current thread/request.
@@ -235,8 +567,13 @@ public abstract class Cache {
      * Clears some references to prevent stale data from hanging around.
      */
     public void cleanup() {
+        if (this.sharedId != null) {
+            SharedCache.release(this.sharedId);
+            this.sharedId = null;
+        }
     	this._request = null;
     	this._cassandra = null;
+    	this.sessions.clear();
     }
 
 }
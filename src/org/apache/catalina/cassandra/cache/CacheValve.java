@@ -2,9 +2,20 @@
 package org.apache.catalina.cassandra.cache;
 
 import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletException;
 
+import org.apache.catalina.Lifecycle;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.LifecycleListener;
+import org.apache.catalina.cassandra.CassandraSession;
+import org.apache.catalina.cassandra.utils.SessionObjectSerialiser;
+import org.apache.catalina.util.LifecycleSupport;
 import org.apache.catalina.valves.ValveBase;
 import org.apache.catalina.connector.Request;
 import org.apache.catalina.connector.Response;
@@ -21,22 +32,139 @@ import org.apache.log4j.Logger;
  *   <li><b>Author:</b> morten.jorgensen@openjawtech.com</li>
  *   <li><b>Created:</b> 13 Jan 2014 15:11:10</li>
  *   <li><b>Description:</b>
- *     Base class for all valves that handle caching.
+ *     Base class for all valves that handle caching. With asyncFlush
+ *     enabled, the response is completed before the dirty session objects
+ *     are written back, and the write-back runs on a bounded flush
+ *     executor. Session objects are serialised by the request thread before
+ *     the response is completed, and the bytes handed to the executor are
+ *     registered in the node-local pending-writes table until written, and
+ *     are written with the request start time as their Cassandra timestamp.
  *   </li>
  *   <li><b>Functional spec. ref.:</b> </li>
  *   <li><b>Design spec.ref.:</b> </li>
  * </ul>
  */
-public abstract class CacheValve extends ValveBase {
+public abstract class CacheValve extends ValveBase implements Lifecycle {
 
     /** Log4J logger instance for class CacheValve. */
     private final static Logger cat = Logger.getLogger(CacheValve.class);
     /** Log4J debug setting for class CacheValve. */
     private final static boolean debug = cat.isDebugEnabled();
 
+    /** Lifecycle listeners. */
+    private LifecycleSupport lifecycle = new LifecycleSupport(this);
+
+    /** Flags that dirty session objects are written back asynchronously. */
+    private boolean asyncFlush = false;
+
+    /** Number of threads writing back session objects asynchronously. */
+    private int flushThreads = 4;
+
+    /**
+     * Maximum number of flushes waiting for a flush thread. When the queue
+     * is full, the request thread writes back the session objects itself.
+     */
+    private int flushQueueSize = 1000;
+
+    /**
+     * Flags that session objects are shared between requests that are in
+     * flight for the same session at the same time.
+     */
+    private boolean sharedCache = false;
+
+    /** Store for transient session objects (null if none are configured). */
+    private TransientAttributes transients = null;
+
+    /** Name patterns of transient session objects. */
+    private String transientAttributes = null;
+
+    /** Lifetime of transient session objects in seconds. */
+    private int transientLifetime = 60;
+
+    /** Executor for asynchronous flushes (created on first use). */
+    private ThreadPoolExecutor executor = null;
+
     protected CacheValve() {
         
     }
+
+    /**
+     * Enables/disables asynchronous write-back of dirty session objects.
+     * @param async true to flush after the response has been completed.
+     */
+    public void setAsyncFlush(boolean async) {
+        this.asyncFlush = async;
+    }
+
+    /**
+     * Sets the number of threads writing back session objects.
+     * @param threads number of flush threads.
+     */
+    public void setFlushThreads(int threads) {
+        this.flushThreads = threads;
+    }
+
+    /**
+     * Sets the maximum number of flushes waiting for a flush thread.
+     * @param size maximum flush queue size.
+     */
+    public void setFlushQueueSize(int size) {
+        this.flushQueueSize = size;
+    }
+
+    /**
+     * Enables/disables sharing of session objects between concurrent
+     * requests for the same session. Concurrent cache misses for the same
+     * session object are then served by a single read from Cassandra.
+     * @param shared true to share session objects between requests.
+     */
+    public void setSharedCache(boolean shared) {
+        this.sharedCache = shared;
+    }
+
+    /**
+     * Sets the name patterns of transient session objects. Transient session
+     * objects are kept on this node only, until the next request for the
+     * session, and are never written to Cassandra.
+     * @param patterns comma-separated name patterns ('*' matches any
+     *    characters).
+     */
+    public void setTransientAttributes(String patterns) {
+        this.transientAttributes = patterns;
+        this.transients = new TransientAttributes(patterns, this.transientLifetime * 1000L);
+    }
+
+    /**
+     * Sets the lifetime of transient session objects.
+     * @param seconds lifetime in seconds since the object was last set.
+     */
+    public void setTransientLifetime(int seconds) {
+        this.transientLifetime = seconds;
+        if (this.transientAttributes != null) {
+            this.transients = new TransientAttributes(this.transientAttributes, seconds * 1000L);
+        }
+    }
+
+    /**
+     * Returns the executor for asynchronous flushes, creating it on first use.
+     * @return the flush executor.
+     */
+    private synchronized ThreadPoolExecutor getExecutor() {
+        if (this.executor == null) {
+            this.executor = new ThreadPoolExecutor(this.flushThreads, this.flushThreads,
+                    60L, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(this.flushQueueSize),
+                    new ThreadFactory() {
+                        public Thread newThread(Runnable runnable) {
+                            final Thread thread = new Thread(runnable, "CassandraSessionFlush");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    },
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+        return this.executor;
+    }
     
     protected abstract Cache getCache(Request request);
 
@@ -49,9 +177,14 @@ public abstract class CacheValve extends ValveBase {
      */
     public void invoke(Request request, Response response) throws IOException, ServletException {
 
+        Cache cache = null;
         try {
+            final long received = System.currentTimeMillis();
+
             // Create the cache.
-            final Cache cache = getCache(request);
+            cache = getCache(request);
+            if (this.sharedCache) cache.share();
+            if (this.transients != null) cache.setTransients(this.transients);
             cache.attach();
             
             // Process the next valve in the chain
@@ -60,15 +193,116 @@ public abstract class CacheValve extends ValveBase {
             // Time the write of dirty session objects.
             final long start = System.currentTimeMillis();
             cache.detach();
+            if (this.asyncFlush)
+                this.flushLater(cache, response, received);
+            else
+                cache.flush();
             final long stop = System.currentTimeMillis();
             
             request.setAttribute(Cache.FLUSH_TIME_ATTRIBUTE, new Long(stop-start));
-    
-            cache.cleanup();
         }
         catch (Throwable e) {
             cat.error("Error in cache valve: "+e.getMessage(), e);
         }
+        finally {
+            // Always release the session's shared cache entry.
+            if (cache != null) cache.cleanup();
+        }
+    }
+
+    /**
+     * Completes the response and hands the dirty session objects over to the
+     * flush executor.
+     * @param cache Request cache.
+     * @param response The servlet response.
+     * @param timestamp Request start time, used as the write timestamp.
+     * @throws IOException if the response cannot be completed.
+     */
+    private void flushLater(Cache cache, Response response, final long timestamp) throws IOException {
+        final Map<String,Object> dirty = cache.getWrites();
+        if (dirty.size() == 0 || !cache.hasCassandraSession()) return;
+
+        final CassandraSession cassandra = cache.getCassandraSession();
+        final SessionObjectSerialiser serialiser = cache.serialiser;
+        if (serialiser == null) {
+            cat.error("Unable to flush write-back cache as no Cassandra read/write operations have taken place within the scope of this request.");
+            return;
+        }
+
+        // Serialise and register the writes before the client can send its
+        // next request, which may change the live objects.
+        final Map<String,byte[]> writes = Cache.serialise(dirty, serialiser);
+        final Map<String,PendingWrites.Entry> pending = PendingWrites.add(cassandra.getId(), writes);
+        response.finishResponse();
+
+        if (debug) cat.debug("["+cassandra.getId()+"] Handing "+writes.size()+" session objects to flush executor");
+        this.getExecutor().execute(new Runnable() {
+            public void run() {
+                try {
+                    Cache.write(cassandra, writes, serialiser, timestamp, pending);
+                }
+                catch (Throwable e) {
+                    cat.error("["+cassandra.getId()+"] Error flushing session objects: "+e.getMessage(), e);
+                }
+            }
+        });
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.catalina.Lifecycle#addLifecycleListener(org.apache.catalina.LifecycleListener)
+     */
+    public void addLifecycleListener(LifecycleListener listener) {
+        this.lifecycle.addLifecycleListener(listener);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.catalina.Lifecycle#findLifecycleListeners()
+     */
+    public LifecycleListener[] findLifecycleListeners() {
+        return this.lifecycle.findLifecycleListeners();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.catalina.Lifecycle#removeLifecycleListener(org.apache.catalina.LifecycleListener)
+     */
+    public void removeLifecycleListener(LifecycleListener listener) {
+        this.lifecycle.removeLifecycleListener(listener);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.catalina.Lifecycle#start()
+     */
+    public void start() throws LifecycleException {
+        this.lifecycle.fireLifecycleEvent(START_EVENT, null);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apache.catalina.Lifecycle#stop()
+     * 
+     * Waits for pending asynchronous flushes to complete.
+     */
+    public void stop() throws LifecycleException {
+        this.lifecycle.fireLifecycleEvent(STOP_EVENT, null);
+        ThreadPoolExecutor executor = null;
+        synchronized (this) {
+            executor = this.executor;
+            this.executor = null;
+        }
+        if (executor == null) return;
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                cat.error("Timed out waiting for asynchronous session flushes to complete");
+            }
+        }
+        catch (InterruptedException e) {
+            cat.error("Interrupted waiting for asynchronous session flushes to complete");
+        }
     }
     
 }
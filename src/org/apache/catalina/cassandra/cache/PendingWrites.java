@@ -0,0 +1,141 @@
+// @(#)$Id: PendingWrites.java,v 1.1 2014/03/24 13:45:09 morten Exp $
+package org.apache.catalina.cassandra.cache;
+
+import java.util.*;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <ul>
+ *   <li><b>Project:</b> TomcatCassandra</li>
+ *   <li><b>Class:</b> org.apache.catalina.cassandra.cache.PendingWrites</li>
+ *   <li><b>Author:</b> morten.jorgensen@openjawtech.com</li>
+ *   <li><b>Created:</b> 24 Mar 2014 13:45:09</li>
+ *   <li><b>Description:</b>
+ *     Node-local table of session objects that have been handed over to an
+ *     asynchronous flush but not yet written to Cassandra. The request-scope
+ *     caches consult this table before reading from Cassandra, so that the
+ *     next request for the same session on this node sees its own writes
+ *     even if the previous flush has not completed.
+ *   </li>
+ *   <li><b>Functional spec. ref.:</b> </li>
+ *   <li><b>Design spec.ref.:</b> </li>
+ * </ul>
+ */
+final class PendingWrites {
+
+    /** Log4J logger instance for class PendingWrites. */
+    private final static Logger cat = Logger.getLogger(PendingWrites.class);
+    /** Log4J debug setting for class PendingWrites. */
+    private final static boolean debug = cat.isDebugEnabled();
+
+    /** Marker returned for session objects that are being removed. */
+    final static byte[] REMOVED = new byte[0];
+
+    /** Pending session objects, keyed by session ID and object name. */
+    private static Map<String,Map<String,Entry>> sessions = new HashMap<String,Map<String,Entry>>();
+
+    /**
+     * Prevents instantiation.
+     */
+    private PendingWrites() {
+    }
+
+    /**
+     * Registers the session objects of a flush that is about to be handed
+     * over to the flush executor.
+     * @param sid Session ID.
+     * @param dirty Serialised dirty session objects (null for removed objects).
+     * @return the registered entries, to be released once written.
+     */
+    static synchronized Map<String,Entry> add(String sid, Map<String,byte[]> dirty) {
+        Map<String,Entry> objects = sessions.get(sid);
+        if (objects == null) {
+            objects = new HashMap<String,Entry>();
+            sessions.put(sid, objects);
+        }
+        final Map<String,Entry> entries = new HashMap<String,Entry>();
+        final Iterator<Map.Entry<String,byte[]>> iterator = dirty.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<String,byte[]> object = iterator.next();
+            final Entry entry = new Entry(object.getValue());
+            objects.put(object.getKey(), entry);
+            entries.put(object.getKey(), entry);
+        }
+        return entries;
+    }
+
+    /**
+     * Obtains a pending session object.
+     * @param sid Session ID.
+     * @param name Session object name.
+     * @return the serialised pending session object (REMOVED if it is being
+     *    removed), or null if there is no pending write.
+     */
+    static synchronized byte[] get(String sid, String name) {
+        if (sessions.size() == 0) return null;
+        final Map<String,Entry> objects = sessions.get(sid);
+        if (objects == null) return null;
+        final Entry entry = objects.get(name);
+        if (entry == null) return null;
+        return (entry.bytes != null ? entry.bytes : REMOVED);
+    }
+
+    /**
+     * Merges the pending writes for a session into a set of object names.
+     * @param sid Session ID.
+     * @param names Session object names (updated).
+     */
+    static synchronized void merge(String sid, Set<String> names) {
+        final Map<String,Entry> objects = sessions.get(sid);
+        if (objects == null) return;
+        final Iterator<Map.Entry<String,Entry>> iterator = objects.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<String,Entry> entry = iterator.next();
+            if (entry.getValue().bytes != null)
+                names.add(entry.getKey());
+            else
+                names.remove(entry.getKey());
+        }
+    }
+
+    /**
+     * Releases a pending session object once it has been written. Entries
+     * registered by a later flush of the same session are kept.
+     * @param sid Session ID.
+     * @param name Session object name.
+     * @param entry Entry returned by add().
+     */
+    static synchronized void release(String sid, String name, Entry entry) {
+        final Map<String,Entry> objects = sessions.get(sid);
+        if (objects == null || objects.get(name) != entry) return;
+        objects.remove(name);
+        if (objects.size() == 0) sessions.remove(sid);
+    }
+
+    /**
+     * Returns the number of sessions with pending writes.
+     * @return the number of sessions with pending writes.
+     */
+    static synchronized int size() {
+        return sessions.size();
+    }
+
+    /**
+     * A single pending session object write.
+     */
+    static class Entry {
+
+        /** Serialised session object (null if removed). */
+        private byte[] bytes;
+
+        /**
+         * Creates a new pending write.
+         * @param bytes Serialised session object (null if removed).
+         */
+        Entry(byte[] bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+}
@@ -0,0 +1,317 @@
+// @(#)$Id: RuleCache.java,v 1.1 2014/04/04 11:06:53 morten Exp $
+package org.apache.catalina.cassandra.cache;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.catalina.cassandra.CassandraSession;
+import org.apache.catalina.cassandra.utils.SessionObjectSerialiser;
+import org.apache.catalina.connector.Request;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <ul>
+ *   <li><b>Project:</b> TomcatCassandra</li>
+ *   <li><b>Class:</b> org.apache.catalina.cassandra.cache.RuleCache</li>
+ *   <li><b>Author:</b> morten.jorgensen@openjawtech.com</li>
+ *   <li><b>Created:</b> 4 Apr 2014 11:06:53</li>
+ *   <li><b>Description:</b>
+ *     Implements a request-scope cache for the Cassandra session manager
+ *     for Tomcat that chooses its caching strategy per session object. A
+ *     list of rules maps session object names (or classes of session object
+ *     values) to write-through, write-back, aggressive write-back or
+ *     local-only persistence. Local-only session objects live in the
+ *     request cache only and are never read from or written to Cassandra.
+ *   </li>
+ *   <li><b>Functional spec. ref.:</b> </li>
+ *   <li><b>Design spec.ref.:</b> </li>
+ * </ul>
+ */
+public class RuleCache extends CacheValve {
+
+    /** Log4J logger instance for class RuleCache. */
+    private final static Logger cat = Logger.getLogger(RuleCache.class);
+    /** Log4J debug setting for class RuleCache. */
+    private final static boolean debug = cat.isDebugEnabled();
+
+    /** Policy: Written to Cassandra as soon as it is set. */
+    public final static int WRITE_THROUGH = 0;
+    /** Policy: Written back at the end of the request if read or set. */
+    public final static int WRITE_BACK = 1;
+    /** Policy: Written back at the end of the request if set. */
+    public final static int AGGRESSIVE_WRITE_BACK = 2;
+    /** Policy: Never written to Cassandra. */
+    public final static int LOCAL = 3;
+
+    /** Policy names, as used in the rules attribute. */
+    private final static String[] POLICIES = {
+        "write-through", "write-back", "aggressive-write-back", "local"
+    };
+
+    /** Prefix of rule patterns that match the class of the session object. */
+    private final static String CLASS_PREFIX = "class:";
+
+    /** Rules, in the order they are applied. */
+    private List<Rule> rules = new ArrayList<Rule>();
+
+    /** Policy for session objects not matched by any rule. */
+    private int defaultPolicy = AGGRESSIVE_WRITE_BACK;
+
+    /**
+     * Constructor.
+     */
+    public RuleCache() {
+
+    }
+
+    /**
+     * Sets the rules, as a comma-separated list of pattern=policy pairs.
+     * A pattern is either a session object name, where '*' matches any
+     * characters, or "class:" followed by the name of a class or interface
+     * implemented by the session object. The policy is one of
+     * "write-through", "write-back", "aggressive-write-back" or "local". The
+     * first matching rule applies.
+     * @param rules the rules.
+     */
+    public void setRules(String rules) {
+        final List<Rule> list = new ArrayList<Rule>();
+        final StringTokenizer tokens = new StringTokenizer(rules, ",");
+        while (tokens.hasMoreTokens()) {
+            final String token = tokens.nextToken().trim();
+            if (token.length() == 0) continue;
+            final int separator = token.lastIndexOf('=');
+            final int policy = (separator > 0 ? getPolicy(token.substring(separator+1).trim()) : -1);
+            if (policy < 0) {
+                cat.error("Ignoring invalid session object rule "+token);
+                continue;
+            }
+            final String pattern = token.substring(0, separator).trim();
+            if (pattern.startsWith(CLASS_PREFIX))
+                list.add(new Rule(null, pattern.substring(CLASS_PREFIX.length()).trim(), policy));
+            else
+                list.add(new Rule(toRegex(pattern), null, policy));
+        }
+        this.rules = list;
+    }
+
+    /**
+     * Sets the policy for session objects not matched by any rule.
+     * @param policy the policy name (default is "aggressive-write-back").
+     */
+    public void setDefaultPolicy(String policy) {
+        final int value = getPolicy(policy);
+        if (value < 0)
+            cat.error("Ignoring invalid default session object policy "+policy);
+        else
+            this.defaultPolicy = value;
+    }
+
+    /**
+     * Looks up a policy by name.
+     * @param name Policy name.
+     * @return the policy, or -1 if the name is not valid.
+     */
+    private static int getPolicy(String name) {
+        for (int i=0; i<POLICIES.length; i++) {
+            if (POLICIES[i].equalsIgnoreCase(name)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Converts a session object name pattern to a regular expression.
+     * @param pattern Name pattern, where '*' matches any characters.
+     * @return the compiled regular expression.
+     */
+    static Pattern toRegex(String pattern) {
+        final StringBuffer regex = new StringBuffer();
+        final StringTokenizer parts = new StringTokenizer(pattern, "*", true);
+        while (parts.hasMoreTokens()) {
+            final String part = parts.nextToken();
+            if (part.equals("*"))
+                regex.append(".*");
+            else
+                regex.append(Pattern.quote(part));
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * Returns the policy for a session object.
+     * @param name Session object name.
+     * @param object Session object, or null if not known (class rules are
+     *    then skipped).
+     * @return the policy.
+     */
+    int getPolicy(String name, Object object) {
+        final List<Rule> rules = this.rules;
+        for (int i=0; i<rules.size(); i++) {
+            final Rule rule = rules.get(i);
+            if (rule.matches(name, object)) return rule.policy;
+        }
+        return this.defaultPolicy;
+    }
+
+    /**
+     * A single session object rule.
+     */
+    private static class Rule {
+
+        /** Session object name pattern (null for class rules). */
+        private Pattern name;
+        /** Session object class or interface name (null for name rules). */
+        private String type;
+        /** Policy applied to matching session objects. */
+        private int policy;
+
+        /**
+         * Creates a new rule.
+         * @param name Session object name pattern (null for class rules).
+         * @param type Session object class name (null for name rules).
+         * @param policy Policy applied to matching session objects.
+         */
+        Rule(Pattern name, String type, int policy) {
+            this.name = name;
+            this.type = type;
+            this.policy = policy;
+        }
+
+        /**
+         * Tells you if a session object matches this rule.
+         * @param name Session object name.
+         * @param object Session object (or null if not known).
+         * @return true if the session object matches.
+         */
+        boolean matches(String name, Object object) {
+            if (this.name != null) return this.name.matcher(name).matches();
+            if (object == null || object == Cache.NULL) return false;
+            return this.isInstance(object.getClass());
+        }
+
+        /**
+         * Tells you if a class is, extends or implements the rule's class.
+         * Classes are compared by name, as the session object classes are
+         * loaded by the web application's class loader.
+         * @param clazz Class to check.
+         * @return true if the class matches.
+         */
+        private boolean isInstance(Class<?> clazz) {
+            while (clazz != null) {
+                if (clazz.getName().equals(this.type)) return true;
+                final Class<?>[] interfaces = clazz.getInterfaces();
+                for (int i=0; i<interfaces.length; i++) {
+                    if (this.isInstance(interfaces[i])) return true;
+                }
+                clazz = clazz.getSuperclass();
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Implementation of rule-driven cache.
+     */
+    private class Cache extends org.apache.catalina.cassandra.cache.Cache {
+
+        /**
+         * Session objects that have been set by the web application (through
+         * setAttribute()), but not yet written to Cassandra.
+         */
+        private Set<String> written = new HashSet<String>();
+
+        /**
+         * Extends Cache superclass.
+         * @param request Request this cache has scope for.
+         */
+        public Cache(HttpServletRequest request) {
+            super(request);
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see org.apache.cassandra.cache.Cache#write(java.lang.String, java.lang.Object)
+         *
+         * Write-through session objects are written to Cassandra at once.
+         */
+        public void write(String name, Object object, SessionObjectSerialiser serialiser) {
+            super.write(name, object, serialiser);
+            final int policy = RuleCache.this.getPolicy(name, object);
+            if (policy == LOCAL) return;
+            if (policy != WRITE_THROUGH) {
+                this.written.add(name);
+                return;
+            }
+            this.written.remove(name);
+            final CassandraSession cassandra = this.getCassandraSession();
+            if (cassandra != null) {
+                if (object != null)
+                    cassandra.setAttribute(name, object, serialiser);
+                else
+                    cassandra.removeAttribute(name);
+            }
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see org.apache.cassandra.cache.Cache#remove(java.lang.String)
+         *
+         * The session object is removed from Cassandra at once, so there is
+         * nothing left to write back.
+         */
+        public void remove(String name) {
+            this.written.remove(name);
+            super.remove(name);
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see org.apache.cassandra.cache.Cache#isPersistent(java.lang.String)
+         */
+        protected boolean isPersistent(String name) {
+            return (super.isPersistent(name) && RuleCache.this.getPolicy(name, null) != LOCAL);
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see org.apache.cassandra.cache.Cache#getDirty()
+         *
+         * Applies the rules to all cached session objects in a single pass.
+         */
+        protected Map<String,Object> getDirty() {
+            final Map<String,Object> objects = new LinkedHashMap<String,Object>();
+            final Iterator<Map.Entry<String,Object>> entries = super.data.entrySet().iterator();
+            while (entries.hasNext()) {
+                final Map.Entry<String,Object> entry = entries.next();
+                final String name = entry.getKey();
+                final Object object = entry.getValue();
+                if (object == NULL) {
+                    if (this.written.contains(name)) objects.put(name, object);
+                    continue;
+                }
+                switch (RuleCache.this.getPolicy(name, object)) {
+                case WRITE_BACK:
+                    objects.put(name, object);
+                    break;
+                case AGGRESSIVE_WRITE_BACK:
+                case WRITE_THROUGH:
+                    // Write-through objects are only dirty here if a class
+                    // rule did not apply when they were set.
+                    if (this.written.contains(name)) objects.put(name, object);
+                    break;
+                default:
+                    break;
+                }
+            }
+            if (debug) cat.debug("Writing back "+objects.size()+" of "+super.data.size()+" cached session objects");
+            return objects;
+        }
+    }
+
+    protected org.apache.catalina.cassandra.cache.Cache getCache(Request request) {
+        return new Cache(request);
+    }
+
+}
@@ -0,0 +1,192 @@
+// @(#)$Id: SharedCache.java,v 1.1 2014/04/02 09:41:26 morten Exp $
+package org.apache.catalina.cassandra.cache;
+
+import java.util.*;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.catalina.cassandra.CassandraSession;
+import org.apache.catalina.cassandra.utils.SessionObjectSerialiser;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <ul>
+ *   <li><b>Project:</b> TomcatCassandra</li>
+ *   <li><b>Class:</b> org.apache.catalina.cassandra.cache.SharedCache</li>
+ *   <li><b>Author:</b> morten.jorgensen@openjawtech.com</li>
+ *   <li><b>Created:</b> 2 Apr 2014 09:41:26</li>
+ *   <li><b>Description:</b>
+ *     Node-local cache of session objects shared by all requests that are
+ *     in flight for the same session at the same time. A session's entry is
+ *     reference counted: it is created by the first request that needs it
+ *     and dropped when the last of these requests has completed. Concurrent
+ *     cache misses for the same session object result in a single read
+ *     from Cassandra, with the other requests waiting for its result.
+ *   </li>
+ *   <li><b>Functional spec. ref.:</b> </li>
+ *   <li><b>Design spec.ref.:</b> </li>
+ * </ul>
+ */
+final class SharedCache {
+
+    /** Log4J logger instance for class SharedCache. */
+    private final static Logger cat = Logger.getLogger(SharedCache.class);
+    /** Log4J debug setting for class SharedCache. */
+    private final static boolean debug = cat.isDebugEnabled();
+
+    /** Shared session entries, keyed by session ID. */
+    private static Map<String,Entry> sessions = new HashMap<String,Entry>();
+
+    /**
+     * Prevents instantiation.
+     */
+    private SharedCache() {
+    }
+
+    /**
+     * Registers a request with a session's shared entry, creating the entry
+     * if this is the only request in flight for the session.
+     * @param sid Session ID.
+     */
+    static synchronized void acquire(String sid) {
+        Entry entry = sessions.get(sid);
+        if (entry == null) {
+            entry = new Entry();
+            sessions.put(sid, entry);
+        }
+        entry.references++;
+    }
+
+    /**
+     * Releases a request's reference to a session's shared entry. The entry
+     * is dropped once no requests for the session remain in flight.
+     * @param sid Session ID.
+     */
+    static synchronized void release(String sid) {
+        final Entry entry = sessions.get(sid);
+        if (entry == null) return;
+        if (--entry.references == 0) {
+            sessions.remove(sid);
+            if (debug) cat.debug("["+sid+"] Dropped shared cache of "+entry.objects.size()+" session objects");
+        }
+    }
+
+    /**
+     * Obtains a session object, reading it from Cassandra unless another
+     * request has already read it or is reading it now.
+     * @param cassandra Cassandra session.
+     * @param name Session object name.
+     * @param serialiser Serialiser for session objects.
+     * @return the session object, or Cache.NULL if it does not exist.
+     */
+    static Object read(CassandraSession cassandra, String name, SessionObjectSerialiser serialiser) {
+        final String sid = cassandra.getId();
+        Load load = null;
+        boolean owner = false;
+        synchronized (SharedCache.class) {
+            final Entry entry = sessions.get(sid);
+            if (entry == null) {
+                // Not acquired by this request; read without sharing.
+                final Object object = cassandra.getAttribute(name, serialiser);
+                return (object != null ? object : Cache.NULL);
+            }
+            load = entry.objects.get(name);
+            if (load == null) {
+                load = new Load();
+                entry.objects.put(name, load);
+                owner = true;
+            }
+        }
+
+        if (!owner) {
+            if (debug) cat.debug("["+sid+"] Shared cache hit for object "+name);
+            return load.get();
+        }
+
+        try {
+            final Object object = cassandra.getAttribute(name, serialiser);
+            load.complete(object != null ? object : Cache.NULL);
+        }
+        catch (RuntimeException e) {
+            // Let the next request retry the read.
+            synchronized (SharedCache.class) {
+                final Entry entry = sessions.get(sid);
+                if (entry != null && entry.objects.get(name) == load) entry.objects.remove(name);
+            }
+            load.fail(e);
+            throw e;
+        }
+        return load.get();
+    }
+
+    /**
+     * Updates a session object in a session's shared entry, so that other
+     * requests in flight for the session see the change.
+     * @param sid Session ID.
+     * @param name Session object name.
+     * @param object Session object (Cache.NULL if removed).
+     */
+    static synchronized void write(String sid, String name, Object object) {
+        final Entry entry = sessions.get(sid);
+        if (entry == null) return;
+        final Load load = new Load();
+        load.complete(object);
+        entry.objects.put(name, load);
+    }
+
+    /**
+     * Returns the number of sessions with requests in flight.
+     * @return the number of shared session entries.
+     */
+    static synchronized int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Shared session objects of a single session.
+     */
+    private static class Entry {
+
+        /** Number of requests in flight that hold this entry. */
+        private int references = 0;
+        /** Session objects, read or being read, keyed by name. */
+        private Map<String,Load> objects = new HashMap<String,Load>();
+    }
+
+    /**
+     * A session object that has been read, or is being read, from Cassandra.
+     */
+    private static class Load {
+
+        /** Released once the read has completed or failed. */
+        private CountDownLatch done = new CountDownLatch(1);
+        /** Session object (Cache.NULL if it does not exist). */
+        private Object object = null;
+        /** Failure, if the read failed. */
+        private RuntimeException failure = null;
+
+        void complete(Object object) {
+            this.object = object;
+            this.done.countDown();
+        }
+
+        void fail(RuntimeException failure) {
+            this.failure = failure;
+            this.done.countDown();
+        }
+
+        Object get() {
+            try {
+                this.done.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted waiting for shared session object", e);
+            }
+            if (this.failure != null) throw this.failure;
+            return this.object;
+        }
+    }
+
+}
@@ -0,0 +1,189 @@
+// @(#)$Id: TransientAttributes.java,v 1.1 2014/04/07 15:30:12 morten Exp $
+package org.apache.catalina.cassandra.cache;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <ul>
+ *   <li><b>Project:</b> TomcatCassandra</li>
+ *   <li><b>Class:</b> org.apache.catalina.cassandra.cache.TransientAttributes</li>
+ *   <li><b>Author:</b> morten.jorgensen@openjawtech.com</li>
+ *   <li><b>Created:</b> 7 Apr 2014 15:30:12</li>
+ *   <li><b>Description:</b>
+ *     Node-local store for transient session objects, such as flash
+ *     messages and view state, that only need to survive until the next
+ *     request for the session. Session objects whose names match one of the
+ *     configured patterns are kept here for a short lifetime, and are never
+ *     written to Cassandra.
+ *   </li>
+ *   <li><b>Functional spec. ref.:</b> </li>
+ *   <li><b>Design spec.ref.:</b> </li>
+ * </ul>
+ */
+class TransientAttributes {
+
+    /** Log4J logger instance for class TransientAttributes. */
+    private final static Logger cat = Logger.getLogger(TransientAttributes.class);
+    /** Log4J debug setting for class TransientAttributes. */
+    private final static boolean debug = cat.isDebugEnabled();
+
+    /** Number of writes between sweeps for expired session objects. */
+    private final static int SWEEP_INTERVAL = 1000;
+
+    /** Name patterns of transient session objects. */
+    private Pattern[] patterns;
+
+    /** Lifetime of transient session objects in milliseconds. */
+    private long lifetime;
+
+    /** Transient session objects, keyed by session ID and name. */
+    private Map<String,Map<String,Entry>> sessions = new HashMap<String,Map<String,Entry>>();
+
+    /** Number of writes since the last sweep. */
+    private int writes = 0;
+
+    /**
+     * Creates a new transient session object store.
+     * @param patterns Comma-separated name patterns ('*' matches any
+     *    characters).
+     * @param lifetime Lifetime of transient session objects in milliseconds.
+     */
+    TransientAttributes(String patterns, long lifetime) {
+        final List<Pattern> list = new ArrayList<Pattern>();
+        final StringTokenizer tokens = new StringTokenizer(patterns, ",");
+        while (tokens.hasMoreTokens()) {
+            final String token = tokens.nextToken().trim();
+            if (token.length() > 0) list.add(RuleCache.toRegex(token));
+        }
+        this.patterns = list.toArray(new Pattern[list.size()]);
+        this.lifetime = lifetime;
+    }
+
+    /**
+     * Tells you if a session object is transient.
+     * @param name Session object name.
+     * @return true if the name matches a transient pattern.
+     */
+    boolean matches(String name) {
+        for (int i=0; i<this.patterns.length; i++) {
+            if (this.patterns[i].matcher(name).matches()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Stores a transient session object, restarting its lifetime.
+     * @param sid Session ID.
+     * @param name Session object name.
+     * @param object Session object (Cache.NULL to remove it).
+     */
+    synchronized void put(String sid, String name, Object object) {
+        if (object == null || object == Cache.NULL) {
+            this.remove(sid, name);
+            return;
+        }
+        Map<String,Entry> objects = this.sessions.get(sid);
+        if (objects == null) {
+            objects = new HashMap<String,Entry>();
+            this.sessions.put(sid, objects);
+        }
+        objects.put(name, new Entry(object, System.currentTimeMillis() + this.lifetime));
+        if (++this.writes >= SWEEP_INTERVAL) {
+            this.writes = 0;
+            this.sweep();
+        }
+    }
+
+    /**
+     * Obtains a transient session object.
+     * @param sid Session ID.
+     * @param name Session object name.
+     * @return the session object, or null if not found or expired.
+     */
+    synchronized Object get(String sid, String name) {
+        final Map<String,Entry> objects = this.sessions.get(sid);
+        if (objects == null) return null;
+        final Entry entry = objects.get(name);
+        if (entry == null) return null;
+        if (entry.expires < System.currentTimeMillis()) {
+            this.remove(sid, name);
+            return null;
+        }
+        return entry.object;
+    }
+
+    /**
+     * Removes a transient session object.
+     * @param sid Session ID.
+     * @param name Session object name.
+     */
+    synchronized void remove(String sid, String name) {
+        final Map<String,Entry> objects = this.sessions.get(sid);
+        if (objects == null) return;
+        objects.remove(name);
+        if (objects.size() == 0) this.sessions.remove(sid);
+    }
+
+    /**
+     * Adds the names of a session's live transient session objects to a set
+     * of object names.
+     * @param sid Session ID.
+     * @param names Session object names (updated).
+     */
+    synchronized void merge(String sid, Set<String> names) {
+        final Map<String,Entry> objects = this.sessions.get(sid);
+        if (objects == null) return;
+        final long now = System.currentTimeMillis();
+        final Iterator<Map.Entry<String,Entry>> iterator = objects.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<String,Entry> entry = iterator.next();
+            if (entry.getValue().expires >= now) names.add(entry.getKey());
+        }
+    }
+
+    /**
+     * Drops all expired session objects.
+     */
+    private void sweep() {
+        final long now = System.currentTimeMillis();
+        int expired = 0;
+        final Iterator<Map<String,Entry>> sessions = this.sessions.values().iterator();
+        while (sessions.hasNext()) {
+            final Map<String,Entry> objects = sessions.next();
+            final Iterator<Entry> entries = objects.values().iterator();
+            while (entries.hasNext()) {
+                if (entries.next().expires < now) {
+                    entries.remove();
+                    expired++;
+                }
+            }
+            if (objects.size() == 0) sessions.remove();
+        }
+        if (debug) cat.debug("Dropped "+expired+" expired transient session objects");
+    }
+
+    /**
+     * A single transient session object.
+     */
+    private static class Entry {
+
+        /** Session object. */
+        private Object object;
+        /** Time when the session object expires. */
+        private long expires;
+
+        /**
+         * Creates a new transient session object entry.
+         * @param object Session object.
+         * @param expires Time when the session object expires.
+         */
+        Entry(Object object, long expires) {
+            this.object = object;
+            this.expires = expires;
+        }
+    }
+
+}
@@ -1,9 +1,9 @@
 // @(#)$Id: WriteBackCache.java,v 1.2 2012/04/13 16:07:47 morten Exp $
 package org.apache.catalina.cassandra.cache;
 
-import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
-import org.apache.catalina.cassandra.CassandraSession;
 import org.apache.catalina.cassandra.utils.SessionObjectSerialiser;
 import org.apache.catalina.connector.Request;
 
@@ -60,37 +60,14 @@ public class WriteBackCache extends CacheValve {
         
         /*
          * (non-Javadoc)
-         * @see org.apache.cassandra.cache.Cache#detach()
+         * @see org.apache.cassandra.cache.Cache#getDirty()
          * 
-         * This method is extended to ensure that all data is written back to
-         * Cassandra once all request processing has completed.
+         * All cached entries are written back to Cassandra once all request
+         * processing has completed, as the calling code may have changed
+         * the contents of any object it has read.
          */
-        public void detach() {
-            // Detach this cache from the current thread.
-            super.detach();
-
-            // Write all cached entries to cassandra.
-            if (super.data.size() == 0) return;
-
-            final CassandraSession cassandra = this.getCassandraSession();
-            if (cassandra == null) return;
-            
-            if (this.serialiser == null) {
-                cat.error("Unable to flush aggressive write-back cache as no Cassandra read/write operations have taken place within the scope of this request.");
-                return;
-            }
-            
-            // Get the names of the dirty session objects
-            final Iterator<String> keys = super.data.keySet().iterator();
-            while (keys.hasNext()) {
-                // Get the next dirty session object.
-                final String key = (String)keys.next();
-                final Object object = super.data.get(key);
-                if (object != null && object != NULL)
-                    cassandra.setAttribute(key, object, this.serialiser);
-                else
-                    cassandra.removeAttribute(key);
-            }
+        protected Map<String,Object> getDirty() {
+            return new LinkedHashMap<String,Object>(super.data);
         }
     }
 
@@ -62,6 +62,7 @@ public class WriteThroughCache extends CacheValve {
             // Write the session object to the cache.
             super.write(name, object, serialiser);
             // Write the session object through to Cassandra.
+            if (!this.isPersistent(name)) return;
             final CassandraSession cassandra = this.getCassandraSession();
             if (cassandra != null) {
                 if (object != null)
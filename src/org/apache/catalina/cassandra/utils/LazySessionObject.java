@@ -0,0 +1,172 @@
+// @(#)$Id: LazySessionObject.java,v 1.1 2014/02/10 11:02:17 morten Exp $
+package org.apache.catalina.cassandra.utils;
+
+import java.io.NotSerializableException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <ul>
+ *   <li><b>Project:</b> TomcatCassandra</li>
+ *   <li><b>Class:</b> org.apache.catalina.cassandra.utils.LazySessionObject</li>
+ *   <li><b>Author:</b> morten.jorgensen@openjawtech.com</li>
+ *   <li><b>Created:</b> 10 Feb 2014 11:02:17</li>
+ *   <li><b>Description:</b>
+ *     Invocation handler for lazy session object proxies. The proxy holds
+ *     the serialised session object as read from Cassandra, and the object
+ *     is only deserialised when the first method is called on the proxy.
+ *     A proxy that has never been used is written back to Cassandra using
+ *     the original bytes, so untouched objects are never re-serialised.
+ *     Proxies are serialisable, and are replaced by the session object when
+ *     held by another session object that is serialised.
+ *   </li>
+ *   <li><b>Functional spec. ref.:</b> </li>
+ *   <li><b>Design spec.ref.:</b> </li>
+ * </ul>
+ */
+public class LazySessionObject implements InvocationHandler {
+
+    /** Log4J logger instance for class LazySessionObject. */
+    private final static Logger cat = Logger.getLogger(LazySessionObject.class);
+    /** Log4J debug setting for class LazySessionObject. */
+    private final static boolean debug = cat.isDebugEnabled();
+
+    /** Serialiser used to deserialise the session object on demand. */
+    private SessionObjectSerialiser serialiser;
+
+    /** Serialised session object (cleared once the object is deserialised). */
+    private byte[] bytes;
+
+    /** Deserialised session object (null until first use). */
+    private Object target = null;
+
+    /** Set once the session object has been deserialised. */
+    private boolean materialised = false;
+
+    /**
+     * Creates a new lazy session object handler.
+     * @param serialiser Serialiser used to deserialise the object.
+     * @param bytes Serialised session object.
+     */
+    private LazySessionObject(SessionObjectSerialiser serialiser, byte[] bytes) {
+        this.serialiser = serialiser;
+        this.bytes = bytes;
+    }
+
+    /**
+     * Creates a lazy proxy for a serialised session object.
+     * @param serialiser Serialiser used to deserialise the object.
+     * @param bytes Serialised session object.
+     * @param loader Class loader used to define the proxy class.
+     * @param interfaces Interfaces implemented by the proxy.
+     * @return proxy instance for the session object.
+     */
+    public static Object create(SessionObjectSerialiser serialiser, byte[] bytes, ClassLoader loader, Class<?>[] interfaces) {
+        final LazySessionObject handler = new LazySessionObject(serialiser, bytes);
+        final Class<?>[] implemented = new Class<?>[interfaces.length + 1];
+        System.arraycopy(interfaces, 0, implemented, 0, interfaces.length);
+        implemented[interfaces.length] = Replaceable.class;
+        return Proxy.newProxyInstance(loader, implemented, handler);
+    }
+
+    /**
+     * Tells you if an object is a lazy session object proxy.
+     * @param object Object to check.
+     * @return true if the object is a lazy session object proxy.
+     */
+    public static boolean isLazy(Object object) {
+        if (object == null) return false;
+        if (!Proxy.isProxyClass(object.getClass())) return false;
+        return (Proxy.getInvocationHandler(object) instanceof LazySessionObject);
+    }
+
+    /**
+     * Returns the handler for a lazy session object proxy.
+     * @param object Lazy session object proxy.
+     * @return handler for the proxy.
+     */
+    public static LazySessionObject getHandler(Object object) {
+        return (LazySessionObject)Proxy.getInvocationHandler(object);
+    }
+
+    /**
+     * Tells you if the session object has been deserialised.
+     * @return true if the session object has been deserialised.
+     */
+    public synchronized boolean isMaterialised() {
+        return this.materialised;
+    }
+
+    /**
+     * Returns the serialised session object, or null if the object has
+     * already been deserialised.
+     * @return the serialised session object.
+     */
+    public synchronized byte[] getBytes() {
+        return this.bytes;
+    }
+
+    /**
+     * Returns the session object, deserialising it on first use. If the
+     * object cannot be deserialised, the proxy keeps the serialised object,
+     * so that it is written back unchanged rather than as null.
+     * @return the deserialised session object, or null if it cannot be
+     *    deserialised.
+     */
+    public synchronized Object getTarget() {
+        if (!this.materialised) {
+            if (debug) cat.debug("Deserialising lazy session object ("+this.bytes.length+" bytes)");
+            final Object target = this.serialiser.deserialise(ByteBuffer.wrap(this.bytes));
+            if (target == null) return null;
+            this.target = target;
+            this.materialised = true;
+            this.bytes = null;
+        }
+        return this.target;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object, java.lang.reflect.Method, java.lang.Object[])
+     */
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        final Object target = this.getTarget();
+        if (method.getDeclaringClass() == Replaceable.class) {
+            // The proxy is serialised as the session object it stands for.
+            if (target == null) throw new NotSerializableException("Unable to deserialise lazy session object");
+            return target;
+        }
+        if (target == null) {
+            throw new IllegalStateException("Unable to deserialise lazy session object for call to "+method.getName()+"()");
+        }
+        try {
+            return method.invoke(target, args);
+        }
+        catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Implemented by all lazy proxies, so that they are serialisable and are
+     * replaced by the session object they stand for when serialised.
+     */
+    public interface Replaceable extends Serializable {
+
+        /**
+         * Returns the session object to serialise in place of the proxy.
+         * @return the deserialised session object.
+         * @throws ObjectStreamException if the session object cannot be
+         *    deserialised.
+         */
+        Object writeReplace() throws ObjectStreamException;
+    }
+
+}
@@ -3,12 +3,17 @@ package org.apache.catalina.cassandra.utils;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectOutputStream;
 import java.io.ObjectStreamClass;
+import java.io.ObjectStreamConstants;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -50,6 +55,22 @@ public class SessionObjectSerialiser extends AbstractSerializer<Object> implemen
     public ByteBuffer toByteBuffer(Object object) {
         final int compressionLevel = this.manager.getConfig().getCompressionLevel();
 
+        // Lazy proxies that have never been used are written back using the
+        // bytes originally read from Cassandra, otherwise we serialise the
+        // underlying object (and never the proxy itself).
+        if (LazySessionObject.isLazy(object)) {
+            final LazySessionObject lazy = LazySessionObject.getHandler(object);
+            synchronized (lazy) {
+                if (!lazy.isMaterialised()) {
+                    final byte[] bytes = lazy.getBytes();
+                    final CassandraStatistics stats = CassandraStatistics.getInstance(); 
+                    if (stats != null) stats.setLastSize(bytes.length);
+                    return ByteBuffer.wrap(bytes);
+                }
+            }
+            object = lazy.getTarget();
+        }
+
         try {
             final CassandraStatistics stats = CassandraStatistics.getInstance(); 
             final long start = System.currentTimeMillis();
@@ -109,6 +130,25 @@ public class SessionObjectSerialiser extends AbstractSerializer<Object> implemen
             return null;
         }
 
+        if (this.manager.getConfig().isLazyDeserialisation()) {
+            final Object lazy = this.createLazyObject(bytes);
+            if (lazy != null) return lazy;
+        }
+        
+        return this.deserialise(bytes);
+    }
+
+    /**
+     * Deserialises a session object. Unlike fromByteBuffer(ByteBuffer) this
+     * method never returns a lazy proxy.
+     * @param bytes Serialised session object.
+     * @return Deserialised session object, or null if it cannot be read.
+     */
+    public Object deserialise(ByteBuffer bytes) {
+        if ((bytes == null) || !bytes.hasRemaining()) {
+            return null;
+        }
+
         final int compressionLevel = this.manager.getConfig().getCompressionLevel();
         final ClassLoader classLoader = this.manager.getClassLoader();
         
@@ -190,6 +230,91 @@ public class SessionObjectSerialiser extends AbstractSerializer<Object> implemen
         }
     }
 
+    /**
+     * Creates a lazy proxy for a serialised session object, provided that the
+     * class of the object implements one or more of the configured lazy
+     * interfaces. The class name is read from the head of the serialised
+     * stream, so no part of the object itself is deserialised here.
+     * @param bytes Serialised session object.
+     * @return Lazy proxy, or null if the object cannot be loaded lazily.
+     */
+    private Object createLazyObject(ByteBuffer bytes) {
+        final ClassLoader classLoader = this.manager.getClassLoader();
+        if (classLoader == null) return null;
+
+        final int remaining = bytes.remaining();
+        final byte[] data = new byte[remaining];
+        bytes.duplicate().get(data);
+
+        final String name = this.readClassName(data);
+        if (name == null) return null;
+
+        try {
+            final Class<?> clazz = Class.forName(name, false, classLoader);
+            final Class<?>[] interfaces = this.getLazyInterfaces(classLoader, clazz);
+            if (interfaces == null) return null;
+            if (debug) cat.debug("Creating lazy proxy for session object of class "+name);
+            bytes.position(bytes.position() + remaining);
+            return LazySessionObject.create(this, data, classLoader, interfaces);
+        }
+        catch (Throwable e) {
+            // Let the normal deserialisation report the problem.
+            if (debug) cat.debug("Unable to create lazy proxy for class "+name+": "+e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Obtains the configured lazy interfaces that are implemented by a class.
+     * @param classLoader Web application class loader.
+     * @param clazz Class of the serialised session object.
+     * @return Implemented lazy interfaces, or null if there are none.
+     */
+    private Class<?>[] getLazyInterfaces(ClassLoader classLoader, Class<?> clazz) {
+        final List<Class<?>> result = new ArrayList<Class<?>>();
+        final StringTokenizer names = new StringTokenizer(this.manager.getConfig().getLazyInterfaces(), ", ");
+        while (names.hasMoreTokens()) {
+            final String name = names.nextToken();
+            try {
+                final Class<?> iface = Class.forName(name, false, classLoader);
+                if (iface.isInterface() && iface.isAssignableFrom(clazz)) {
+                    result.add(iface);
+                }
+            }
+            catch (ClassNotFoundException e) {
+                cat.error("Unable to load lazy interface "+name+": "+e.getMessage());
+            }
+        }
+        if (result.size() == 0) return null;
+        return result.toArray(new Class<?>[result.size()]);
+    }
+
+    /**
+     * Reads the class name of a serialised object from the head of the
+     * (possibly compressed) object stream.
+     * @param data Serialised session object.
+     * @return Class name, or null if the stream does not start with a
+     *    plain object (such as strings, arrays, enums and proxies).
+     */
+    private String readClassName(byte[] data) {
+        final int compressionLevel = this.manager.getConfig().getCompressionLevel();
+        try {
+            InputStream istr = new ByteArrayInputStream(data);
+            if (compressionLevel >= 0 && data.length > 2 && data[0] == (byte)0x1f && data[1] == (byte)0x8b) {
+                istr = new CompressedInputStream(istr);
+            }
+            final DataInputStream distr = new DataInputStream(istr);
+            if (distr.readShort() != ObjectStreamConstants.STREAM_MAGIC) return null;
+            distr.readShort(); // Stream version
+            if (distr.readByte() != ObjectStreamConstants.TC_OBJECT) return null;
+            if (distr.readByte() != ObjectStreamConstants.TC_CLASSDESC) return null;
+            return distr.readUTF();
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
     /**
      * Extension of the ObjectInputStream class that allows you to specify
      * which class loader to use to create your objects. This is important